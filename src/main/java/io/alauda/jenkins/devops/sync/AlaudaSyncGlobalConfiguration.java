@@ -27,6 +27,7 @@ import io.alauda.devops.client.AlaudaDevOpsClient;
 import io.alauda.jenkins.devops.sync.action.KubernetesClientAction;
 import io.alauda.jenkins.devops.sync.credential.AlaudaToken;
 import io.alauda.jenkins.devops.sync.util.AlaudaUtils;
+import io.alauda.jenkins.devops.sync.util.PipelineConfigToJobMap;
 import io.alauda.jenkins.devops.sync.watcher.*;
 import io.alauda.kubernetes.client.KubernetesClientException;
 import jenkins.model.GlobalConfiguration;
@@ -47,6 +48,7 @@ import javax.validation.constraints.NotNull;
 import java.net.URL;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.TimeUnit;
@@ -62,6 +64,8 @@ import static io.alauda.jenkins.devops.sync.constants.Constants.ALAUDA_DEVOPS_AN
 @Symbol("alaudaSync")
 public class AlaudaSyncGlobalConfiguration extends GlobalConfiguration {
     private static final Logger LOGGER = Logger.getLogger(AlaudaSyncGlobalConfiguration.class.getName());
+    // a smaller heartbeat would send the unchanged status on almost every poll
+    static final int MIN_STATUS_HEARTBEAT = 10;
     private boolean enabled = true;
     private boolean trustCerts = false;
     private String server;
@@ -73,6 +77,13 @@ public class AlaudaSyncGlobalConfiguration extends GlobalConfiguration {
     private String skipBranchSuffix;
     private String sharedNamespace;
     private int watcherAliveCheck = 5;
+    private int statusHeartbeat = 60;
+    private boolean compactStatusJson = false;
+    private int statusSyncThreads = 8;
+    private int maxQueuedPipelines = 0;
+    private int maxBuildsPerNamespace = 0;
+    private String namespaceWeights;
+    private String namespaceBuildLimits;
 
     private String[] namespaces;
     private transient PipelineWatcher pipelineWatcher;
@@ -205,6 +216,111 @@ public class AlaudaSyncGlobalConfiguration extends GlobalConfiguration {
         this.watcherAliveCheck = watcherAliveCheck;
     }
 
+    /**
+     * @return seconds between two heartbeat updates, it's never less than {@link #MIN_STATUS_HEARTBEAT}
+     */
+    public int getStatusHeartbeat() {
+        // the saved value is not passed through the setter
+        return Math.max(MIN_STATUS_HEARTBEAT, statusHeartbeat);
+    }
+
+    @DataBoundSetter
+    public void setStatusHeartbeat(int statusHeartbeat) {
+        this.statusHeartbeat = Math.max(MIN_STATUS_HEARTBEAT, statusHeartbeat);
+    }
+
+    public boolean isCompactStatusJson() {
+        return compactStatusJson;
+    }
+
+    @DataBoundSetter
+    public void setCompactStatusJson(boolean compactStatusJson) {
+        this.compactStatusJson = compactStatusJson;
+    }
+
+    public int getStatusSyncThreads() {
+        return statusSyncThreads;
+    }
+
+    @DataBoundSetter
+    public void setStatusSyncThreads(int statusSyncThreads) {
+        this.statusSyncThreads = statusSyncThreads;
+    }
+
+    public int getMaxQueuedPipelines() {
+        return maxQueuedPipelines;
+    }
+
+    @DataBoundSetter
+    public void setMaxQueuedPipelines(int maxQueuedPipelines) {
+        this.maxQueuedPipelines = maxQueuedPipelines;
+    }
+
+    public int getMaxBuildsPerNamespace() {
+        return maxBuildsPerNamespace;
+    }
+
+    @DataBoundSetter
+    public void setMaxBuildsPerNamespace(int maxBuildsPerNamespace) {
+        this.maxBuildsPerNamespace = maxBuildsPerNamespace;
+    }
+
+    public String getNamespaceWeights() {
+        return namespaceWeights;
+    }
+
+    @DataBoundSetter
+    public void setNamespaceWeights(String namespaceWeights) {
+        this.namespaceWeights = namespaceWeights;
+    }
+
+    public String getNamespaceBuildLimits() {
+        return namespaceBuildLimits;
+    }
+
+    @DataBoundSetter
+    public void setNamespaceBuildLimits(String namespaceBuildLimits) {
+        this.namespaceBuildLimits = namespaceBuildLimits;
+    }
+
+    /**
+     * @return weight of namespaces from lines like {@code namespace=weight}, invalid lines are ignored
+     */
+    @Nonnull
+    public Map<String, Integer> getNamespaceWeightMap() {
+        return parseNamespaceValues(namespaceWeights, "weight");
+    }
+
+    /**
+     * @return max builds of namespaces from lines like {@code namespace=limit}, they take the place of
+     * {@link #getMaxBuildsPerNamespace()}, invalid lines are ignored
+     */
+    @Nonnull
+    public Map<String, Integer> getNamespaceBuildLimitMap() {
+        return parseNamespaceValues(namespaceBuildLimits, "build limit");
+    }
+
+    private static Map<String, Integer> parseNamespaceValues(String text, String kind) {
+        Map<String, Integer> values = new HashMap<>();
+        if (StringUtils.isBlank(text)) {
+            return values;
+        }
+
+        for (String line : text.split("[\\r\\n,]+")) {
+            String[] pair = line.split("=");
+            if (pair.length != 2 || StringUtils.isBlank(pair[0])) {
+                continue;
+            }
+
+            try {
+                values.put(pair[0].trim(), Integer.parseInt(pair[1].trim()));
+            } catch (NumberFormatException e) {
+                LOGGER.warning(() -> "Invalid " + kind + " of namespace: " + line);
+            }
+        }
+        return values;
+    }
+
     @Nonnull
     public String[] getNamespaces() {
         if(namespaces == null) {
@@ -219,6 +335,15 @@ public class AlaudaSyncGlobalConfiguration extends GlobalConfiguration {
         return !jenkins.hasPermission(Jenkins.ADMINISTER) ? (new StandardListBoxModel()).includeCurrentValue(credentialsId) : (new StandardListBoxModel()).includeEmptyValue().includeAs(ACL.SYSTEM, jenkins, AlaudaToken.class).includeCurrentValue(credentialsId);
     }
 
+    @SuppressWarnings("unused")
+    public FormValidation doCheckStatusHeartbeat(@QueryParameter int value) {
+        if (value < MIN_STATUS_HEARTBEAT) {
+            return FormValidation.warning(String.format("Status heartbeat is at least %d seconds, %d will be used.",
+                    MIN_STATUS_HEARTBEAT, MIN_STATUS_HEARTBEAT));
+        }
+        return FormValidation.ok();
+    }
+
     @SuppressWarnings("unused")
     public FormValidation doVerifyConnect(@QueryParameter String server,
                                           @QueryParameter String credentialsId,
@@ -362,6 +487,9 @@ public class AlaudaSyncGlobalConfiguration extends GlobalConfiguration {
     }
 
     public void startWatchers() {
+        // the events need the index of items, otherwise the ones of existing items are dropped
+        PipelineConfigToJobMap.awaitInitialized();
+
         this.jenkinsBindingWatcher = new JenkinsBindingWatcher();
         this.jenkinsBindingWatcher.watch();
 
@@ -33,6 +33,7 @@ public class JenkinsPipelineCause extends Cause {
     private int numFlowNodes = -1;
     private long lastUpdateToAlaudaDevOps = -1;
     private boolean synced = true;
+    private String lastStatusDigest;
 
     public JenkinsPipelineCause(String uid, String namespace, String name, String gitUri,
                                 String commit, String pipelineConfigUid) {
@@ -147,4 +148,15 @@ public class JenkinsPipelineCause extends Cause {
     public void setSynced(boolean synced) {
         this.synced = synced;
     }
+
+    /**
+     * @return digest of the status and annotations which were written into the Pipeline last time
+     */
+    public String getLastStatusDigest() {
+        return lastStatusDigest;
+    }
+
+    public void setLastStatusDigest(String lastStatusDigest) {
+        this.lastStatusDigest = lastStatusDigest;
+    }
 }
@@ -0,0 +1,65 @@
+/**
+ * Copyright (C) 2018 Alauda.io
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.alauda.jenkins.devops.sync;
+
+import hudson.model.InvisibleAction;
+
+import javax.annotation.Nonnull;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Keeps the annotations of a Pipeline which never change during the run, such as the URLs of build and logs.
+ * They are computed once when the run started, and only need to be written into the Pipeline once.
+ * <p>
+ * They are not saved into build.xml, only this marker is. After Jenkins restarted they are computed again
+ * on the next sync, see {@link #isLoaded()}.
+ */
+public class PipelineAnnotationsAction extends InvisibleAction {
+    private transient volatile Map<String, String> annotations;
+    // write them again after Jenkins restarted, it's cheap
+    private transient volatile boolean written;
+
+    public PipelineAnnotationsAction(@Nonnull Map<String, String> annotations) {
+        setAnnotations(annotations);
+    }
+
+    @Nonnull
+    public Map<String, String> getAnnotations() {
+        Map<String, String> current = annotations;
+        return current != null ? current : Collections.emptyMap();
+    }
+
+    public void setAnnotations(@Nonnull Map<String, String> annotations) {
+        this.annotations = Collections.unmodifiableMap(new HashMap<>(annotations));
+    }
+
+    /**
+     * @return false if the action was loaded from build.xml and the annotations are not computed yet
+     */
+    public boolean isLoaded() {
+        return annotations != null;
+    }
+
+    public boolean isWritten() {
+        return written;
+    }
+
+    public void setWritten(boolean written) {
+        this.written = written;
+    }
+}
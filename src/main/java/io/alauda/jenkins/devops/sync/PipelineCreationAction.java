@@ -0,0 +1,82 @@
+/**
+ * Copyright (C) 2018 Alauda.io
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.alauda.jenkins.devops.sync;
+
+import hudson.Extension;
+import hudson.model.Action;
+import jenkins.model.TransientActionFactory;
+import org.jenkinsci.plugins.workflow.job.WorkflowJob;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+
+/**
+ * Shows the status of the Pipeline creation on the job page, see {@link PipelineCreationWorker}
+ */
+public class PipelineCreationAction implements Action {
+    private final PipelineCreationWorker.Status status;
+
+    PipelineCreationAction(PipelineCreationWorker.Status status) {
+        this.status = status;
+    }
+
+    public PipelineCreationWorker.Status getStatus() {
+        return status;
+    }
+
+    public Date getUpdatedAt() {
+        return new Date(status.getUpdatedAt());
+    }
+
+    @CheckForNull
+    @Override
+    public String getIconFileName() {
+        return null;
+    }
+
+    @CheckForNull
+    @Override
+    public String getDisplayName() {
+        return "Pipeline creation";
+    }
+
+    @CheckForNull
+    @Override
+    public String getUrlName() {
+        return null;
+    }
+
+    @Extension
+    public static class Factory extends TransientActionFactory<WorkflowJob> {
+        @Override
+        public Class<WorkflowJob> type() {
+            return WorkflowJob.class;
+        }
+
+        @Nonnull
+        @Override
+        public Collection<? extends Action> createFor(@Nonnull WorkflowJob target) {
+            PipelineCreationWorker.Status status = PipelineCreationWorker.getInstance().getStatus(target);
+            if (status == null) {
+                return Collections.emptyList();
+            }
+            return Collections.singletonList(new PipelineCreationAction(status));
+        }
+    }
+}
@@ -0,0 +1,551 @@
+/**
+ * Copyright (C) 2018 Alauda.io
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.alauda.jenkins.devops.sync;
+
+import hudson.Extension;
+import hudson.XmlFile;
+import hudson.model.Action;
+import hudson.model.BooleanParameterValue;
+import hudson.model.CauseAction;
+import hudson.model.Item;
+import hudson.model.ParameterValue;
+import hudson.model.ParametersAction;
+import hudson.model.StringParameterValue;
+import hudson.model.listeners.ItemListener;
+import hudson.security.ACL;
+import hudson.security.ACLContext;
+import hudson.triggers.SafeTimerTask;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+import io.alauda.devops.client.AlaudaDevOpsClient;
+import io.alauda.jenkins.devops.sync.constants.Annotations;
+import io.alauda.jenkins.devops.sync.listener.PipelineSyncRunListener;
+import io.alauda.jenkins.devops.sync.util.AlaudaUtils;
+import io.alauda.jenkins.devops.sync.util.PipelineGenerator;
+import io.alauda.jenkins.devops.sync.util.PipelineToActionMapper;
+import io.alauda.jenkins.devops.sync.util.PipelineUtils;
+import io.alauda.kubernetes.api.model.ObjectMeta;
+import io.alauda.kubernetes.api.model.Pipeline;
+import io.alauda.kubernetes.api.model.PipelineConfig;
+import io.alauda.kubernetes.api.model.PipelineList;
+import io.alauda.kubernetes.client.KubernetesClientException;
+import jenkins.model.Jenkins;
+import jenkins.util.Timer;
+import org.apache.commons.httpclient.HttpStatus;
+import org.jenkinsci.plugins.workflow.job.WorkflowJob;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import static io.alauda.jenkins.devops.sync.constants.Constants.ALAUDA_DEVOPS_LABELS_JENKINS_CREATION_REQUEST;
+
+/**
+ * Creates the Pipelines for the builds which were triggered in Jenkins. {@link PipelineDecisionHandler}
+ * only records the request while it's holding the lock of queue, the API calls are done here on a few
+ * threads of its own, and retried with backoff for {@link #RETRY_TIMEOUT_MS}.
+ * The status of each job is shown on its page by {@link PipelineCreationAction}.
+ * <p>
+ * Each Pipeline is labeled by the id of its request, so a request which might be created already, because the
+ * call timed out or Jenkins was stopped, is looked up before it's sent again.
+ * <p>
+ * The requests which are not done yet are saved under JENKINS_HOME shortly after they are submitted,
+ * and submitted again when Jenkins is started. Only the well-known causes and the parameters which could be sent to
+ * the Pipeline are saved. The ones submitted just before a crash might still be lost, the build has to be triggered
+ * again in that case.
+ */
+public class PipelineCreationWorker {
+    private static final Logger LOGGER = Logger.getLogger(PipelineCreationWorker.class.getName());
+
+    private static final long RETRY_TIMEOUT_MS = TimeUnit.MINUTES.toMillis(30);
+    private static final long INITIAL_BACKOFF_MS = TimeUnit.SECONDS.toMillis(2);
+    private static final long MAX_BACKOFF_MS = TimeUnit.MINUTES.toMillis(1);
+    private static final int THREADS = 2;
+    private static final long SAVE_DELAY_MS = 1000;
+    private static final String REQUESTS_FILE = "alauda-sync/pipeline-creation-requests.xml";
+
+    private static final PipelineCreationWorker instance = new PipelineCreationWorker();
+
+    // job full name -> status
+    private final Map<String, Status> statuses = new ConcurrentHashMap<>();
+    // request id -> request which is not done yet, guarded by itself
+    private final Map<String, Request> requests = new LinkedHashMap<>();
+    private final AtomicBoolean saveScheduled = new AtomicBoolean();
+    // keeps the saves in order
+    private final Object saveLock = new Object();
+    // the create calls might block for long in an outage, keep them off the shared Timer
+    private final ScheduledExecutorService executor = new ScheduledThreadPoolExecutor(THREADS,
+            new NamingThreadFactory(new DaemonThreadFactory(), "PipelineCreationWorker"));
+
+    private PipelineCreationWorker() {}
+
+    public static PipelineCreationWorker getInstance() {
+        return instance;
+    }
+
+    /**
+     * Record the request of creating Pipeline, it will be sent in background
+     */
+    public void submit(@Nonnull WorkflowJob job, @Nonnull String namespace, @Nonnull String name,
+                       @CheckForNull CauseAction causeAction, @CheckForNull ParametersAction params) {
+        Request request = new Request(job.getFullName(), namespace, name, causeAction, params);
+        synchronized (requests) {
+            requests.put(request.id, request);
+        }
+        scheduleSave();
+        start(request);
+    }
+
+    private void start(Request request) {
+        getStatus(request.jobName).pending.incrementAndGet();
+        request.retryUntil = System.currentTimeMillis() + RETRY_TIMEOUT_MS;
+        schedule(request, 0);
+    }
+
+    private void schedule(Request request, long delay) {
+        executor.schedule(new SafeTimerTask() {
+            @Override
+            protected void doRun() {
+                process(request);
+            }
+        }, delay, TimeUnit.MILLISECONDS);
+    }
+
+    @CheckForNull
+    public Status getStatus(@Nonnull WorkflowJob job) {
+        return statuses.get(job.getFullName());
+    }
+
+    private Status getStatus(String jobName) {
+        return statuses.computeIfAbsent(jobName, Status::new);
+    }
+
+    private void process(Request request) {
+        request.attempts++;
+        boolean retry;
+        try (ACLContext ignored = ACL.as(ACL.SYSTEM)) {
+            retry = create(request);
+        } catch (RuntimeException e) {
+            LOGGER.log(Level.WARNING, "Failed to create Pipeline for job " + request.jobName, e);
+            getStatus(request.jobName).failed(e.getMessage());
+            // not sure how far it went
+            request.maybeCreated = true;
+            retry = true;
+        }
+
+        if (retry) {
+            if (System.currentTimeMillis() < request.retryUntil) {
+                long delay = Math.min(MAX_BACKOFF_MS, INITIAL_BACKOFF_MS << Math.min(request.attempts - 1, 10));
+                LOGGER.info(() -> String.format("Will retry to create Pipeline for job %s in %d ms", request.jobName, delay));
+                schedule(request, delay);
+                return;
+            }
+
+            LOGGER.warning(() -> String.format("Gave up creating Pipeline for job %s after %d attempts, "
+                    + "the build has to be triggered again", request.jobName, request.attempts));
+            Status status = getStatus(request.jobName);
+            status.failed("Gave up after " + request.attempts + " attempts: " + status.getLastError());
+        }
+
+        getStatus(request.jobName).pending.updateAndGet(count -> Math.max(0, count - 1));
+        synchronized (requests) {
+            requests.remove(request.id);
+        }
+        scheduleSave();
+    }
+
+    private void scheduleSave() {
+        if (saveScheduled.compareAndSet(false, true)) {
+            Timer.get().schedule(new SafeTimerTask() {
+                @Override
+                protected void doRun() {
+                    // the changes after this will schedule the next save
+                    saveScheduled.set(false);
+                    save();
+                }
+            }, SAVE_DELAY_MS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private static XmlFile getFile() {
+        return new XmlFile(new File(Jenkins.getInstance().getRootDir(), REQUESTS_FILE));
+    }
+
+    private void save() {
+        XmlFile file = getFile();
+        // submit() is called while holding the lock of queue, don't write the file with the lock of requests
+        synchronized (saveLock) {
+            List<Request> snapshot;
+            synchronized (requests) {
+                snapshot = new ArrayList<>(requests.values());
+            }
+
+            try {
+                if (snapshot.isEmpty()) {
+                    if (file.exists()) {
+                        file.delete();
+                    }
+                    return;
+                }
+                file.write(snapshot);
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, String.format("Failed to save %d Pipeline creation requests into %s, "
+                        + "they will be lost if Jenkins is restarted", snapshot.size(), file), e);
+            }
+        }
+    }
+
+    /**
+     * Submit the requests which were not done before Jenkins was stopped
+     */
+    @SuppressWarnings("unchecked")
+    void resume() {
+        XmlFile file = getFile();
+        if (!file.exists()) {
+            return;
+        }
+
+        List<Request> loaded;
+        try {
+            Object obj = file.read();
+            loaded = obj instanceof List ? (List<Request>) obj : new ArrayList<>();
+        } catch (IOException | RuntimeException e) {
+            LOGGER.log(Level.WARNING, "Failed to load the Pipeline creation requests from " + file
+                    + ", the builds which were triggered before restart are lost", e);
+            file.delete();
+            return;
+        }
+
+        LOGGER.info(String.format("Resuming %d Pipeline creation requests from %s", loaded.size(), file));
+        for (Request request : loaded) {
+            // it might be created just before Jenkins was stopped
+            request.maybeCreated = true;
+            synchronized (requests) {
+                requests.put(request.id, request);
+            }
+            start(request);
+        }
+    }
+
+    private void onDeleted(String jobName) {
+        statuses.keySet().removeIf(name -> name.equals(jobName) || name.startsWith(jobName + "/"));
+    }
+
+    private void onRenamed(String oldName, String newName) {
+        Status status = statuses.remove(oldName);
+        if (status != null) {
+            statuses.put(newName, status.renamed(newName));
+        }
+
+        synchronized (requests) {
+            requests.values().stream().filter(request -> oldName.equals(request.jobName))
+                    .forEach(request -> request.jobName = newName);
+        }
+        scheduleSave();
+    }
+
+    /**
+     * @return true if it should be retried
+     */
+    private boolean create(Request request) {
+        Status status = getStatus(request.jobName);
+        WorkflowJob job = Jenkins.getInstance().getItemByFullName(request.jobName, WorkflowJob.class);
+        if (job == null) {
+            status.failed("Job " + request.jobName + " is gone");
+            return false;
+        }
+
+        AlaudaDevOpsClient client = AlaudaUtils.getAuthenticatedAlaudaClient();
+        if (client == null) {
+            status.failed("Alauda DevOps client is not ready");
+            return true;
+        }
+
+        PipelineConfig config;
+        try {
+            config = client.pipelineConfigs().inNamespace(request.namespace).withName(request.name).get();
+        } catch (KubernetesClientException e) {
+            Throwable cause = e.getCause();
+            LOGGER.warning(() -> e.getMessage() + "; cause: " + (cause != null ? cause.getMessage() : cause));
+            status.failed(e.getMessage());
+            return true;
+        }
+
+        if (config == null) {
+            status.failed("PipelineConfig " + request.namespace + "/" + request.name + " is not found");
+            return false;
+        } else if (config.getMetadata() == null) {
+            LOGGER.warning("PipelineConfig metadata is null");
+            status.failed("PipelineConfig metadata is null");
+            return false;
+        }
+
+        Pipeline pipeline = null;
+        if (request.maybeCreated) {
+            try {
+                pipeline = findCreated(client, request);
+            } catch (KubernetesClientException e) {
+                LOGGER.warning(() -> "Failed to look up the Pipeline of job " + request.jobName + ": " + e.getMessage());
+                status.failed(e.getMessage());
+                return true;
+            }
+        }
+
+        if (pipeline == null) {
+            String jobURL = PipelineSyncRunListener.joinPaths(AlaudaUtils.getJenkinsURL(client, request.namespace), job.getUrl());
+            try {
+                // create k8s resource(Pipeline)
+                pipeline = PipelineGenerator.buildPipeline(config, job, jobURL, request.getActions(), null,
+                        Collections.singletonMap(ALAUDA_DEVOPS_LABELS_JENKINS_CREATION_REQUEST, request.id));
+            } catch (KubernetesClientException e) {
+                LOGGER.warning(config.getMetadata().getName() + " got error : " + e.getMessage());
+                status.failed(e.getMessage());
+
+                if (e.getCode() == HttpStatus.SC_CONFLICT) {
+                    PipelineUtils.pipelinesCheck(config);
+                    return false;
+                }
+                if (e.getCode() == 0) {
+                    // timed out, it might be created anyway
+                    request.maybeCreated = true;
+                    return true;
+                }
+                return e.getCode() >= HttpStatus.SC_INTERNAL_SERVER_ERROR;
+            }
+        }
+
+        String pipelineName = pipeline.getMetadata().getName();
+        ParametersAction params = request.getParams();
+        if (params != null) {
+            PipelineToActionMapper.addParameterAction(pipelineName, params);
+        }
+        CauseAction causeAction = request.getCauseAction();
+        if (causeAction != null) {
+            PipelineToActionMapper.addCauseAction(pipelineName, causeAction);
+            keepCauses(client, pipeline, causeAction);
+        }
+
+        LOGGER.info(() -> "Created Pipeline " + request.namespace + "/" + pipelineName + " for job " + request.jobName);
+        status.created(pipelineName);
+        return false;
+    }
+
+    /**
+     * Keep the causes on the Pipeline too, in case of Jenkins restarted before it's triggered.
+     * They are signed for this Pipeline only, so it can't be done before it's created.
+     */
+    private static void keepCauses(AlaudaDevOpsClient client, Pipeline pipeline, CauseAction causeAction) {
+        ObjectMeta meta = pipeline.getMetadata();
+        Map<String, String> annotations = meta.getAnnotations();
+        if (annotations != null && annotations.containsKey(Annotations.JENKINS_CAUSE_ACTION)) {
+            return;
+        }
+
+        String encoded = PipelineToActionMapper.encodeCauseAction(pipeline, causeAction);
+        if (encoded == null) {
+            return;
+        }
+
+        try {
+            client.pipelines().inNamespace(meta.getNamespace()).withName(meta.getName()).edit()
+                    .editMetadata().addToAnnotations(Annotations.JENKINS_CAUSE_ACTION, encoded).endMetadata()
+                    .done();
+        } catch (KubernetesClientException e) {
+            // they are still kept in memory, only lost if Jenkins is restarted before it's triggered
+            LOGGER.warning(() -> "Failed to keep the causes on Pipeline " + meta.getNamespace() + "/"
+                    + meta.getName() + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * @return the Pipeline which was created by this request before, null if there's no one
+     */
+    @CheckForNull
+    private static Pipeline findCreated(AlaudaDevOpsClient client, Request request) {
+        PipelineList list = client.pipelines().inNamespace(request.namespace)
+                .withLabel(ALAUDA_DEVOPS_LABELS_JENKINS_CREATION_REQUEST, request.id).list();
+        if (list == null || list.getItems() == null || list.getItems().isEmpty()) {
+            return null;
+        }
+
+        Pipeline pipeline = list.getItems().get(0);
+        LOGGER.info(() -> "Pipeline " + request.namespace + "/" + pipeline.getMetadata().getName()
+                + " was created for job " + request.jobName + " already");
+        return pipeline;
+    }
+
+    private static class Request {
+        private final String id = UUID.randomUUID().toString();
+        // it's changed when the job is renamed
+        private volatile String jobName;
+        private final String namespace;
+        private final String name;
+        // the causes which could be restored, see PipelineToActionMapper#describeCauses
+        private final String causes;
+        // only the values which could be sent as the parameters of Pipeline
+        private final List<ParameterValue> parameters;
+        // the actions of the build are not saved, they are restored from above after restart
+        private transient CauseAction causeAction;
+        private transient ParametersAction params;
+        private transient int attempts;
+        private transient long retryUntil;
+        // the create call might have succeeded without response, look it up before trying again
+        private transient volatile boolean maybeCreated;
+
+        Request(String jobName, String namespace, String name, CauseAction causeAction, ParametersAction params) {
+            this.jobName = jobName;
+            this.namespace = namespace;
+            this.name = name;
+            this.causeAction = causeAction;
+            this.params = params;
+            this.causes = PipelineToActionMapper.describeCauses(causeAction);
+
+            this.parameters = new ArrayList<>();
+            if (params != null) {
+                for (ParameterValue value : params.getParameters()) {
+                    if (value instanceof StringParameterValue || value instanceof BooleanParameterValue) {
+                        parameters.add(value);
+                    }
+                }
+            }
+        }
+
+        @CheckForNull
+        CauseAction getCauseAction() {
+            if (causeAction == null && causes != null) {
+                causeAction = PipelineToActionMapper.restoreCauses(causes);
+            }
+            return causeAction;
+        }
+
+        @CheckForNull
+        ParametersAction getParams() {
+            if (params == null && parameters != null && !parameters.isEmpty()) {
+                params = new ParametersAction(parameters);
+            }
+            return params;
+        }
+
+        List<Action> getActions() {
+            List<Action> actions = new ArrayList<>();
+            CauseAction cause = getCauseAction();
+            if (cause != null) {
+                actions.add(cause);
+            }
+            ParametersAction parametersAction = getParams();
+            if (parametersAction != null) {
+                actions.add(parametersAction);
+            }
+            return actions;
+        }
+    }
+
+    /**
+     * Status of the Pipeline creation of one job
+     */
+    public static class Status {
+        private final String jobName;
+        private final AtomicInteger pending = new AtomicInteger();
+        private volatile String lastPipeline;
+        private volatile String lastError;
+        private volatile long updatedAt;
+
+        Status(String jobName) {
+            this.jobName = jobName;
+        }
+
+        private Status renamed(String newName) {
+            Status status = new Status(newName);
+            status.pending.set(pending.get());
+            status.lastPipeline = lastPipeline;
+            status.lastError = lastError;
+            status.updatedAt = updatedAt;
+            return status;
+        }
+
+        public String getJobName() {
+            return jobName;
+        }
+
+        public int getPending() {
+            return pending.get();
+        }
+
+        public String getLastPipeline() {
+            return lastPipeline;
+        }
+
+        public String getLastError() {
+            return lastError;
+        }
+
+        public long getUpdatedAt() {
+            return updatedAt;
+        }
+
+        private void created(String pipelineName) {
+            lastPipeline = pipelineName;
+            lastError = null;
+            updatedAt = System.currentTimeMillis();
+        }
+
+        private void failed(String error) {
+            lastError = error;
+            updatedAt = System.currentTimeMillis();
+        }
+    }
+
+    /**
+     * Resumes the saved requests, and drops the statuses of deleted jobs
+     */
+    @Extension
+    public static class JobListener extends ItemListener {
+        @Override
+        public void onLoaded() {
+            Timer.get().submit(new SafeTimerTask() {
+                @Override
+                protected void doRun() {
+                    instance.resume();
+                }
+            });
+        }
+
+        @Override
+        public void onDeleted(Item item) {
+            instance.onDeleted(item.getFullName());
+        }
+
+        @Override
+        public void onLocationChanged(Item item, String oldFullName, String newFullName) {
+            instance.onRenamed(oldFullName, newFullName);
+        }
+    }
+}
@@ -17,15 +17,6 @@ package io.alauda.jenkins.devops.sync;
 
 import hudson.Extension;
 import hudson.model.*;
-import io.alauda.devops.client.AlaudaDevOpsClient;
-import io.alauda.jenkins.devops.sync.listener.PipelineSyncRunListener;
-import io.alauda.jenkins.devops.sync.util.AlaudaUtils;
-import io.alauda.jenkins.devops.sync.util.PipelineGenerator;
-import io.alauda.jenkins.devops.sync.util.PipelineToActionMapper;
-import io.alauda.jenkins.devops.sync.util.PipelineUtils;
-import io.alauda.kubernetes.api.model.Pipeline;
-import io.alauda.kubernetes.api.model.PipelineConfig;
-import io.alauda.kubernetes.client.KubernetesClientException;
 import org.apache.commons.lang.StringUtils;
 import org.jenkinsci.plugins.workflow.job.WorkflowJob;
 import org.jenkinsci.plugins.workflow.multibranch.WorkflowMultiBranchProject;
@@ -71,51 +62,11 @@ public class PipelineDecisionHandler extends Queue.QueueDecisionHandler {
 
             final String namespace = alaudaJobProperty.getNamespace();
             final String name = alaudaJobProperty.getName();
-            final String jobURL = getJobUrl(workflowJob, namespace);
 
             LOGGER.info(() -> "Got this namespace " + namespace + " from this alaudaJobProperty: " + name);
             // TODO: Add trigger API for pipelineconfig (like above)
 
-            PipelineConfig config = null;
-            try {
-                config = AlaudaUtils.getAuthenticatedAlaudaClient()
-                        .pipelineConfigs().inNamespace(namespace)
-                        .withName(name).get();
-            } catch (KubernetesClientException e) {
-                Throwable cause = e.getCause();
-
-                LOGGER.warning(() -> e.getMessage() + "; cause: " + (cause != null ? cause.getMessage() : cause));
-            }
-
-            if (config == null) {
-                return false;
-            } else if (config.getMetadata() == null) {
-                LOGGER.warning("PipelineConfig metadata is null");
-                return false;
-            }
-
-            Pipeline pipeline;
-            try {
-                // create k8s resource(Pipeline)
-                pipeline = PipelineGenerator.buildPipeline(config, workflowJob, jobURL, actions);
-            } catch (KubernetesClientException e) {
-                LOGGER.warning(config.getMetadata().getName() + " got error : " + e.getMessage());
-
-                if(e.getCode() == 409) {
-                    PipelineUtils.pipelinesCheck(config);
-                }
-
-                return false;
-            }
-
-            ParametersAction params = dumpParams(actions);
-            if (params != null) {
-                LOGGER.fine(() -> "ParametersAction: " + params.toString());
-                PipelineToActionMapper.addParameterAction(pipeline.getMetadata().getName(), params);
-            } else {
-                LOGGER.log(Level.FINE, "The param is null in task : {0}", taskName);
-            }
-
+            CauseAction causeAction = null;
             CauseAction cause = dumpCause(actions);
             if (cause != null) {
                 LOGGER.fine(() -> "get CauseAction: " + cause.getDisplayName());
@@ -135,12 +86,22 @@ public class PipelineDecisionHandler extends Queue.QueueDecisionHandler {
                     }
                 }
 
-                PipelineToActionMapper.addCauseAction(pipeline.getMetadata().getName(), new CauseAction(causes));
+                causeAction = new CauseAction(causes);
             } else {
                 LOGGER.fine(() -> "Get null CauseAction in task : " + taskName);
             }
 
-            // we already create k8s resource, and waiting next round
+            ParametersAction params = dumpParams(actions);
+            if (params != null) {
+                LOGGER.fine(() -> "ParametersAction: " + params.toString());
+            } else {
+                LOGGER.log(Level.FINE, "The param is null in task : {0}", taskName);
+            }
+
+            // we are holding the lock of queue, the Pipeline will be created in background
+            PipelineCreationWorker.getInstance().submit(workflowJob, namespace, name, causeAction, params);
+
+            // the build will be triggered by the Pipeline in next round
             return false;
         }
 
@@ -152,16 +113,6 @@ public class PipelineDecisionHandler extends Queue.QueueDecisionHandler {
         return parent instanceof WorkflowMultiBranchProject;
     }
 
-    private String getJobUrl(WorkflowJob workflowJob, String namespace) {
-        AlaudaDevOpsClient client = AlaudaUtils.getAuthenticatedAlaudaClient();
-        if(client == null) {
-            return null;
-        }
-
-        String jenkinsUrl = AlaudaUtils.getJenkinsURL(client, namespace);
-        return PipelineSyncRunListener.joinPaths(jenkinsUrl, workflowJob.getUrl());
-    }
-
     private boolean isValidProperty(AlaudaJobProperty property) {
         if (property == null) {
             return false;
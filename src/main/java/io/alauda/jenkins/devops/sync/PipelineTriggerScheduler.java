@@ -0,0 +1,432 @@
+/**
+ * Copyright (C) 2018 Alauda.io
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.alauda.jenkins.devops.sync;
+
+import hudson.model.Computer;
+import hudson.model.Executor;
+import hudson.model.Queue;
+import hudson.security.ACL;
+import hudson.security.ACLContext;
+import io.alauda.jenkins.devops.sync.util.JenkinsUtils;
+import io.alauda.jenkins.devops.sync.util.PipelineOutbox;
+import io.alauda.jenkins.devops.sync.util.QueuedPipelineIndex;
+import io.alauda.jenkins.devops.sync.watcher.PipelineWatcher;
+import io.alauda.kubernetes.api.model.ObjectMeta;
+import io.alauda.kubernetes.api.model.Pipeline;
+import jenkins.model.Jenkins;
+import jenkins.util.Timer;
+import org.apache.commons.lang.StringUtils;
+import org.jenkinsci.plugins.workflow.job.WorkflowJob;
+import org.jenkinsci.plugins.workflow.job.WorkflowRun;
+
+import javax.annotation.Nonnull;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Function;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Sits between {@link PipelineWatcher} and {@link JenkinsUtils#triggerJob(WorkflowJob, Pipeline)}, so one namespace
+ * which creates lots of Pipelines at once can't fill the queue of Jenkins and delay all the others.
+ * <p>
+ * New Pipelines are kept in a queue per namespace. They are admitted into the queue of Jenkins by weighted round-robin,
+ * a namespace takes up to its weight of Pipelines in each round, as long as there are less than {@link AlaudaSyncGlobalConfiguration#getMaxQueuedPipelines()}
+ * Pipeline builds waiting in the queue of Jenkins, and the namespace has less queued and running builds than
+ * {@link AlaudaSyncGlobalConfiguration#getMaxBuildsPerNamespace()}, or its own limit in
+ * {@link AlaudaSyncGlobalConfiguration#getNamespaceBuildLimitMap()}.
+ * <p>
+ * A Pipeline which can't be admitted right now is set to {@code Queued} with its position in the queue of its namespace
+ * as annotation {@link io.alauda.jenkins.devops.sync.constants.Constants#ALAUDA_DEVOPS_ANNOTATIONS_JENKINS_TRIGGER_POSITION}.
+ * Those Pipelines are still taken as new ones, so they are picked up again after Jenkins restarts.
+ */
+public class PipelineTriggerScheduler {
+    private static final Logger LOGGER = Logger.getLogger(PipelineTriggerScheduler.class.getName());
+
+    private static final long DISPATCH_INTERVAL_MS = TimeUnit.SECONDS.toMillis(2);
+    private static final long POSITION_REFRESH_INTERVAL_MS = TimeUnit.SECONDS.toMillis(30);
+    // refresh the positions of the head ones first, the others will get theirs later
+    private static final int MAX_POSITION_UPDATES = 100;
+    private static final int MAX_TRIGGER_ATTEMPTS = 5;
+
+    private static final PipelineTriggerScheduler instance = new PipelineTriggerScheduler();
+
+    // namespace -> queue, the namespace which was served last goes to the end
+    private final LinkedHashMap<String, NamespaceQueue> queues = new LinkedHashMap<>();
+    private final Object dispatchLock = new Object();
+    private final AtomicBoolean dispatchScheduled = new AtomicBoolean();
+    private long lastPositionRefresh;
+
+    PipelineTriggerScheduler() {}
+
+    public static PipelineTriggerScheduler getInstance() {
+        return instance;
+    }
+
+    /**
+     * Add the new Pipeline into the queue of its namespace, it's triggered right now if there's enough capacity
+     * @param job job of the Pipeline
+     * @param pipeline new Pipeline
+     * @return true if it's triggered or kept to be triggered later
+     */
+    public boolean submit(@Nonnull WorkflowJob job, @Nonnull Pipeline pipeline) {
+        ObjectMeta meta = pipeline.getMetadata();
+        if (meta == null || meta.getUid() == null) {
+            return false;
+        }
+
+        enqueue(job.getFullName(), pipeline);
+        dispatch();
+
+        QueuedPipeline waiting = null;
+        synchronized (this) {
+            NamespaceQueue queue = queues.get(meta.getNamespace());
+            QueuedPipeline queued = queue == null ? null : queue.pipelines.get(meta.getUid());
+            if (queued != null) {
+                queued.position = queue.positionOf(meta.getUid());
+                // it might be submitted again when it's listed, don't write the same position again
+                if (queued.position != queued.writtenPosition) {
+                    queued.writtenPosition = queued.position;
+                    waiting = queued;
+                }
+            }
+        }
+
+        // it might be admitted by another dispatch in the meantime
+        if (waiting != null && isWaiting(waiting)) {
+            int position = waiting.writtenPosition;
+            LOGGER.fine(() -> "Pipeline " + meta.getNamespace() + "/" + meta.getName()
+                    + " is waiting for trigger at position " + position);
+            PipelineOutbox.getInstance().updateTriggerPosition(waiting.pipeline, position);
+        }
+        if (size() > 0) {
+            scheduleDispatch(DISPATCH_INTERVAL_MS);
+        }
+        return true;
+    }
+
+    synchronized void enqueue(@Nonnull String jobName, @Nonnull Pipeline pipeline) {
+        queues.computeIfAbsent(pipeline.getMetadata().getNamespace(), NamespaceQueue::new).add(jobName, pipeline);
+    }
+
+    /**
+     * Drop the Pipeline if it's still waiting for trigger
+     * @param pipeline target Pipeline
+     * @return true if it was waiting
+     */
+    public synchronized boolean remove(@Nonnull Pipeline pipeline) {
+        ObjectMeta meta = pipeline.getMetadata();
+        NamespaceQueue queue = meta == null ? null : queues.get(meta.getNamespace());
+        if (queue == null || queue.pipelines.remove(meta.getUid()) == null) {
+            return false;
+        }
+
+        if (queue.pipelines.isEmpty()) {
+            queues.remove(queue.namespace);
+        }
+        return true;
+    }
+
+    /**
+     * Try to admit more Pipelines soon, it's safe to call it while holding the lock of queue
+     */
+    public void onCapacityChanged() {
+        if (size() > 0) {
+            scheduleDispatch(0);
+        }
+    }
+
+    private synchronized boolean isWaiting(QueuedPipeline queued) {
+        ObjectMeta meta = queued.pipeline.getMetadata();
+        NamespaceQueue queue = queues.get(meta.getNamespace());
+        return queue != null && queue.pipelines.get(meta.getUid()) == queued;
+    }
+
+    public synchronized int size() {
+        int count = 0;
+        for (NamespaceQueue queue : queues.values()) {
+            count += queue.pipelines.size();
+        }
+        return count;
+    }
+
+    private void scheduleDispatch(long delay) {
+        if (dispatchScheduled.compareAndSet(false, true)) {
+            Timer.get().schedule(() -> {
+                dispatchScheduled.set(false);
+                try (ACLContext ignored = ACL.as(ACL.SYSTEM)) {
+                    dispatch();
+                    refreshPositions();
+                } catch (RuntimeException e) {
+                    LOGGER.log(Level.WARNING, "Failed to dispatch the Pipelines waiting for trigger", e);
+                }
+
+                if (size() > 0) {
+                    scheduleDispatch(DISPATCH_INTERVAL_MS);
+                }
+            }, delay, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private void dispatch() {
+        synchronized (dispatchLock) {
+            for (QueuedPipeline queued : admit()) {
+                if (!trigger(queued)) {
+                    retryLater(queued);
+                }
+            }
+        }
+    }
+
+    /**
+     * Take the Pipelines which can be triggered now by weighted round-robin
+     */
+    private List<QueuedPipeline> admit() {
+        AlaudaSyncGlobalConfiguration config = AlaudaSyncGlobalConfiguration.get();
+        int maxQueued = config != null ? config.getMaxQueuedPipelines() : 0;
+        int maxPerNamespace = config != null ? config.getMaxBuildsPerNamespace() : 0;
+        Map<String, Integer> limits = config != null ? config.getNamespaceBuildLimitMap() : new HashMap<>();
+        Map<String, Integer> weights = config != null ? config.getNamespaceWeightMap() : new HashMap<>();
+
+        QueuedPipelineIndex queuedIndex = QueuedPipelineIndex.getInstance();
+        int budget = maxQueued > 0 ? maxQueued - queuedIndex.getQueuedCount() : Integer.MAX_VALUE;
+        List<QueuedPipeline> admitted = new ArrayList<>();
+        if (budget <= 0) {
+            return admitted;
+        }
+
+        boolean limited = maxPerNamespace > 0 || limits.values().stream().anyMatch(limit -> limit > 0);
+        Map<String, Integer> running = limited ? countRunningBuilds() : new HashMap<>();
+        // the limit counts the builds of the namespace which are running or queued in Jenkins already
+        return admit(budget, namespace -> {
+            int limit = limits.getOrDefault(namespace, maxPerNamespace);
+            return limit > 0 ? limit - running.getOrDefault(namespace, 0) - queuedIndex.getQueuedCount(namespace)
+                    : Integer.MAX_VALUE;
+        }, weights);
+    }
+
+    /**
+     * @param budget max count of Pipelines to take
+     * @param capacityOf count of Pipelines which the namespace can take, it's asked once per namespace
+     * @param weights count of Pipelines which the namespace takes in each round, 1 by default
+     * @return the Pipelines which were taken out of the queues
+     */
+    synchronized List<QueuedPipeline> admit(int budget, @Nonnull Function<String, Integer> capacityOf,
+                                            @Nonnull Map<String, Integer> weights) {
+        List<QueuedPipeline> admitted = new ArrayList<>();
+        // capacity of each namespace which is left in this dispatch
+        Map<String, Integer> capacities = new HashMap<>();
+        boolean progress = true;
+        while (budget > 0 && progress && !queues.isEmpty()) {
+            progress = false;
+            for (NamespaceQueue queue : new ArrayList<>(queues.values())) {
+                int capacity = capacities.computeIfAbsent(queue.namespace, capacityOf);
+
+                int quantum = Math.max(1, weights.getOrDefault(queue.namespace, 1));
+                Iterator<QueuedPipeline> it = queue.pipelines.values().iterator();
+                for (int i = 0; i < quantum && budget > 0 && capacity > 0 && it.hasNext(); i++) {
+                    admitted.add(it.next());
+                    it.remove();
+                    budget--;
+                    capacity--;
+                    progress = true;
+                }
+                capacities.put(queue.namespace, capacity);
+
+                // it's served in this round, let the others go first next time
+                queues.remove(queue.namespace);
+                if (!queue.pipelines.isEmpty()) {
+                    queues.put(queue.namespace, queue);
+                }
+                if (budget <= 0) {
+                    break;
+                }
+            }
+        }
+        return admitted;
+    }
+
+    /**
+     * @return false if it should be tried again
+     */
+    private boolean trigger(QueuedPipeline queued) {
+        Pipeline pipeline = queued.pipeline;
+        ObjectMeta meta = pipeline.getMetadata();
+        try {
+            WorkflowJob job = Jenkins.getInstance().getItemByFullName(queued.jobName, WorkflowJob.class);
+            if (job == null) {
+                // the job might be renamed or recreated in the meantime
+                job = JenkinsUtils.getJobFromPipeline(pipeline);
+            }
+            if (job == null) {
+                LOGGER.info(() -> "No job for Pipeline " + meta.getNamespace() + "/" + meta.getName() + " at this time");
+                PipelineWatcher.addPipelineToNoPCList(pipeline);
+                return true;
+            }
+
+            if (JenkinsUtils.triggerJob(job, pipeline)) {
+                return true;
+            }
+        } catch (IOException | RuntimeException e) {
+            LOGGER.log(Level.WARNING, "Failed to trigger Pipeline " + meta.getNamespace() + "/" + meta.getName(), e);
+        }
+
+        // it's done if the build is in the queue of Jenkins already
+        return !QueuedPipelineIndex.getInstance().getItemIds(meta.getUid()).isEmpty();
+    }
+
+    /**
+     * Put the Pipeline back to the head of its namespace, e.g. the API server didn't answer
+     */
+    private void retryLater(QueuedPipeline queued) {
+        ObjectMeta meta = queued.pipeline.getMetadata();
+        if (++queued.attempts >= MAX_TRIGGER_ATTEMPTS) {
+            // it is still waiting for trigger on the platform, the next relist of new Pipelines brings it back
+            LOGGER.warning(() -> "Failed to trigger Pipeline " + meta.getNamespace() + "/" + meta.getName()
+                    + " after " + queued.attempts + " attempts, give up for now");
+            return;
+        }
+
+        synchronized (this) {
+            NamespaceQueue queue = queues.computeIfAbsent(meta.getNamespace(), NamespaceQueue::new);
+            if (!queue.pipelines.containsKey(meta.getUid())) {
+                queue.addFirst(queued);
+            }
+        }
+        scheduleDispatch(DISPATCH_INTERVAL_MS);
+    }
+
+    private void refreshPositions() {
+        long now = System.currentTimeMillis();
+        List<QueuedPipeline> changed = new ArrayList<>();
+        synchronized (this) {
+            if (now - lastPositionRefresh < POSITION_REFRESH_INTERVAL_MS) {
+                return;
+            }
+            lastPositionRefresh = now;
+
+            for (NamespaceQueue queue : queues.values()) {
+                int position = 1;
+                for (QueuedPipeline waiting : queue.pipelines.values()) {
+                    waiting.position = position++;
+                    if (waiting.position != waiting.writtenPosition) {
+                        changed.add(waiting);
+                    }
+                }
+            }
+            changed.sort(Comparator.comparingInt(waiting -> waiting.position));
+            if (changed.size() > MAX_POSITION_UPDATES) {
+                changed = new ArrayList<>(changed.subList(0, MAX_POSITION_UPDATES));
+            }
+            changed.forEach(waiting -> waiting.writtenPosition = waiting.position);
+        }
+
+        for (QueuedPipeline waiting : changed) {
+            // it might be admitted by a dispatch from the watcher in the meantime
+            if (isWaiting(waiting)) {
+                PipelineOutbox.getInstance().updateTriggerPosition(waiting.pipeline, waiting.writtenPosition);
+            }
+        }
+    }
+
+    /**
+     * Pipeline runs take one-off executors, the nested node blocks don't count
+     */
+    private static Map<String, Integer> countRunningBuilds() {
+        Map<String, Integer> counts = new HashMap<>();
+        for (Computer computer : Jenkins.getInstance().getComputers()) {
+            List<Executor> executors = new ArrayList<>(computer.getExecutors());
+            executors.addAll(computer.getOneOffExecutors());
+            for (Executor executor : executors) {
+                Queue.Executable executable = executor.getCurrentExecutable();
+                if (!(executable instanceof WorkflowRun)) {
+                    continue;
+                }
+
+                JenkinsPipelineCause cause = ((WorkflowRun) executable).getCause(JenkinsPipelineCause.class);
+                if (cause != null && StringUtils.isNotBlank(cause.getNamespace())) {
+                    counts.merge(cause.getNamespace(), 1, Integer::sum);
+                }
+            }
+        }
+        return counts;
+    }
+
+    private static class NamespaceQueue {
+        private final String namespace;
+        // Pipeline uid -> Pipeline, in arrival order
+        private final LinkedHashMap<String, QueuedPipeline> pipelines = new LinkedHashMap<>();
+
+        NamespaceQueue(String namespace) {
+            this.namespace = namespace;
+        }
+
+        void add(String jobName, Pipeline pipeline) {
+            String uid = pipeline.getMetadata().getUid();
+            QueuedPipeline existing = pipelines.get(uid);
+            if (existing != null) {
+                // keep the position, take the latest one
+                existing.jobName = jobName;
+                existing.pipeline = pipeline;
+            } else {
+                pipelines.put(uid, new QueuedPipeline(jobName, pipeline));
+            }
+        }
+
+        void addFirst(QueuedPipeline queued) {
+            LinkedHashMap<String, QueuedPipeline> rest = new LinkedHashMap<>(pipelines);
+            pipelines.clear();
+            pipelines.put(queued.pipeline.getMetadata().getUid(), queued);
+            pipelines.putAll(rest);
+        }
+
+        int positionOf(String uid) {
+            int position = 1;
+            for (String key : pipelines.keySet()) {
+                if (key.equals(uid)) {
+                    return position;
+                }
+                position++;
+            }
+            return -1;
+        }
+    }
+
+    static class QueuedPipeline {
+        private String jobName;
+        private Pipeline pipeline;
+        private int position;
+        private int writtenPosition = -1;
+        private int attempts;
+
+        QueuedPipeline(String jobName, Pipeline pipeline) {
+            this.jobName = jobName;
+            this.pipeline = pipeline;
+        }
+
+        Pipeline getPipeline() {
+            return pipeline;
+        }
+    }
+}
@@ -2,12 +2,17 @@ package io.alauda.jenkins.devops.sync.action;
 
 import antlr.ANTLRException;
 import hudson.Extension;
+import hudson.model.Job;
+import hudson.model.Run;
 import hudson.model.UnprotectedRootAction;
 import hudson.util.HttpResponses;
 import io.alauda.devops.client.AlaudaDevOpsConfigBuilder;
 import io.alauda.devops.client.DefaultAlaudaDevOpsClient;
+import io.alauda.jenkins.devops.sync.listener.RunStatusCache;
 import io.alauda.jenkins.devops.sync.util.CredentialsUtils;
 import io.alauda.jenkins.devops.sync.util.CronUtils;
+import io.alauda.jenkins.devops.sync.watcher.PipelineConfigDebouncer;
+import io.alauda.jenkins.devops.sync.watcher.PipelineConfigWatcher;
 import io.alauda.jenkins.devops.sync.watcher.ResourcesCache;
 import io.alauda.kubernetes.client.Config;
 import io.alauda.kubernetes.client.KubernetesClientException;
@@ -18,12 +23,16 @@ import org.apache.http.HttpRequest;
 import org.jenkinsci.Symbol;
 import org.kohsuke.stapler.HttpResponse;
 import org.kohsuke.stapler.QueryParameter;
+import org.kohsuke.stapler.StaplerRequest;
+import org.kohsuke.stapler.StaplerResponse;
 import org.kohsuke.stapler.export.Exported;
 import org.kohsuke.stapler.export.ExportedBean;
 
 import javax.annotation.CheckForNull;
+import javax.servlet.http.HttpServletResponse;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.URL;
 import java.util.Calendar;
 import java.util.HashMap;
@@ -106,6 +115,25 @@ public class KubernetesClientAction implements UnprotectedRootAction {
         return HttpResponses.okJSON(array);
     }
 
+    /**
+     * Counters of the events of PipelineConfigs, see {@link PipelineConfigDebouncer}
+     */
+    public HttpResponse doPipelineConfigEvents() {
+        try {
+            Jenkins.getInstance().checkPermission(Jenkins.ADMINISTER);
+        } catch (AccessDeniedException e) {
+            return HttpResponses.errorJSON("No administer");
+        }
+
+        PipelineConfigDebouncer lanes = PipelineConfigWatcher.getEventLanes();
+        Map<String, Long> result = new HashMap<>();
+        result.put("received", lanes.getReceivedCount());
+        result.put("absorbed", lanes.getAbsorbedCount());
+        result.put("converted", lanes.getConvertedCount());
+        result.put("pending", (long) lanes.getPendingCount());
+        return HttpResponses.okJSON(result);
+    }
+
     /**
      * Do check cronTab text
      * @param cronText cron text
@@ -143,6 +171,39 @@ public class KubernetesClientAction implements UnprotectedRootAction {
         return HttpResponses.okJSON(result);
     }
 
+    /**
+     * Stages and parallel branches of a run with their edges, in the same format with the stages annotation.
+     * They come from the status sync so that the flow graph is not walked for every request.
+     * Clients should revalidate it by the ETag.
+     * @param job full name of job
+     * @param build number of run
+     */
+    public void doRunStatus(StaplerRequest req, StaplerResponse rsp,
+                            @QueryParameter String job, @QueryParameter int build) throws IOException {
+        Job<?, ?> item = job == null ? null : Jenkins.getInstance().getItemByFullName(job, Job.class);
+        Run<?, ?> run = item == null ? null : item.getBuildByNumber(build);
+        RunStatusCache.Entry status = run == null ? null : RunStatusCache.getInstance().get(run);
+        byte[] json = status == null ? null : status.getJson();
+        if (json == null) {
+            rsp.sendError(HttpServletResponse.SC_NOT_FOUND, "No status of run");
+            return;
+        }
+
+        String etag = status.getEtag();
+        rsp.setHeader("ETag", etag);
+        rsp.setHeader("Cache-Control", "private, no-cache");
+        if (etag != null && etag.equals(req.getHeader("If-None-Match"))) {
+            rsp.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+            return;
+        }
+
+        rsp.setContentType("application/json;charset=UTF-8");
+        rsp.setContentLength(json.length);
+        try (OutputStream out = rsp.getOutputStream()) {
+            out.write(json);
+        }
+    }
+
     public URL connectTest(String server, String credentialId, boolean trustCerts) {
         AlaudaDevOpsConfigBuilder configBuilder = new AlaudaDevOpsConfigBuilder();
         if (server != null && !server.isEmpty()) {
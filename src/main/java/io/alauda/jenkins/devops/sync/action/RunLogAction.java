@@ -0,0 +1,514 @@
+/**
+ * Copyright (C) 2018 Alauda.io
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.alauda.jenkins.devops.sync.action;
+
+import hudson.Extension;
+import hudson.Util;
+import hudson.console.AnnotatedLargeText;
+import hudson.console.ConsoleNote;
+import hudson.model.Job;
+import hudson.model.RootAction;
+import hudson.model.Run;
+import jenkins.model.Jenkins;
+import org.jenkinsci.plugins.workflow.actions.LogAction;
+import org.jenkinsci.plugins.workflow.flow.FlowExecution;
+import org.jenkinsci.plugins.workflow.graph.FlowNode;
+import org.jenkinsci.plugins.workflow.job.WorkflowRun;
+import org.kohsuke.stapler.QueryParameter;
+import org.kohsuke.stapler.StaplerRequest;
+import org.kohsuke.stapler.StaplerResponse;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+import javax.servlet.http.HttpServletResponse;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Serves the plain text log of a run, or of one step of a Pipeline run, by byte range. Console notes are removed
+ * like {@code /consoleText} does, the offsets count the bytes of the plain text.
+ * <p>
+ * Usage: {@code /alauda-log/?job=<full name>&build=<number>[&node=<flow node id>]}, the range is taken
+ * from the {@code Range: bytes=<start>-[<end>]} header or the {@code start} parameter. The log is append-only,
+ * so a range is identified by its bounds and clients can revalidate it with {@code If-None-Match}.
+ * With {@code wait=<seconds>} the request waits a few seconds for new bytes when there's nothing after
+ * {@code start} yet. Response headers {@code X-Text-Size} and {@code X-More-Data} are the same as the
+ * progressive text of Jenkins.
+ * <p>
+ * Only complete lines are served while the log is still being written, so the offsets never move.
+ * The offsets of the plain text are mapped to the raw log by {@link PlainTextIndex}, it's kept for the
+ * recently read logs, so following a log only reads the new bytes.
+ */
+@Extension
+public class RunLogAction implements RootAction {
+    private static final Logger logger = Logger.getLogger(RunLogAction.class.getName());
+
+    public static final String URL_NAME = "alauda-log";
+
+    private static final Pattern RANGE_PATTERN = Pattern.compile("^bytes=(\\d+)-(\\d*)$");
+    // the request thread is held while waiting, keep it short and let clients poll again
+    private static final int MAX_WAIT_SECONDS = 5;
+    private static final long WAIT_INTERVAL_MS = 500;
+    private static final int GZIP_MIN_SIZE = 1024;
+    private static final int BUFFER_SIZE = 8192;
+    private static final int MAX_INDEXES = 200;
+    private static final byte ESC = 0x1b;
+
+    // run id and node -> index of its log
+    private static final Map<String, PlainTextIndex> indexes = new LinkedHashMap<String, PlainTextIndex>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, PlainTextIndex> eldest) {
+            return size() > MAX_INDEXES;
+        }
+    };
+
+    @CheckForNull
+    @Override
+    public String getIconFileName() {
+        return null;
+    }
+
+    @CheckForNull
+    @Override
+    public String getDisplayName() {
+        return "Alauda run log";
+    }
+
+    @CheckForNull
+    @Override
+    public String getUrlName() {
+        return URL_NAME;
+    }
+
+    /**
+     * @param run target run
+     * @return the log URL of target run, it's relative to the root URL of Jenkins
+     */
+    public static String getLogUrl(@Nonnull Run run) {
+        return "/" + URL_NAME + "/?job=" + Util.rawEncode(run.getParent().getFullName()) + "&build=" + run.getNumber();
+    }
+
+    @SuppressWarnings("unused")
+    public void doIndex(StaplerRequest req, StaplerResponse rsp,
+                        @QueryParameter String job, @QueryParameter int build, @QueryParameter String node,
+                        @QueryParameter long start, @QueryParameter int wait) throws IOException, InterruptedException {
+        Job<?, ?> item = job == null ? null : Jenkins.getInstance().getItemByFullName(job, Job.class);
+        Run<?, ?> run = item == null ? null : item.getBuildByNumber(build);
+        if (run == null) {
+            rsp.sendError(HttpServletResponse.SC_NOT_FOUND, "No such run");
+            return;
+        }
+
+        LogSource source = getLogSource(run, node);
+        if (source == null) {
+            rsp.sendError(HttpServletResponse.SC_NOT_FOUND, "No log of node " + node);
+            return;
+        }
+
+        long end = -1;
+        boolean ranged = false;
+        String range = req.getHeader("Range");
+        if (range != null) {
+            Matcher matcher = RANGE_PATTERN.matcher(range.trim());
+            if (matcher.matches()) {
+                ranged = true;
+                start = Long.parseLong(matcher.group(1));
+                if (!matcher.group(2).isEmpty()) {
+                    end = Long.parseLong(matcher.group(2)) + 1;
+                }
+            }
+        }
+        start = Math.max(0, start);
+
+        PlainTextIndex index = getIndex(run, node);
+        long length = index.update(source);
+        if (wait > 0 && start >= length && !source.isComplete()) {
+            length = waitForNewBytes(source, index, start, Math.min(wait, MAX_WAIT_SECONDS));
+        }
+        boolean complete = source.isComplete() && index.isComplete();
+        boolean explicitEnd = end >= 0;
+        end = end < 0 ? length : Math.min(end, length);
+
+        if (start > length || (explicitEnd && end <= start)) {
+            rsp.setHeader("Content-Range", "bytes */" + length);
+            rsp.sendError(HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+            return;
+        }
+
+        String etag = "\"" + Util.getDigestOf(run.getExternalizableId() + "#" + node + "#" + start
+                + "-" + end + "#" + complete) + "\"";
+        rsp.setHeader("ETag", etag);
+        rsp.setHeader("Cache-Control", "private, no-cache");
+        rsp.setHeader("Accept-Ranges", "bytes");
+        rsp.setHeader("X-Text-Size", String.valueOf(end));
+        rsp.setHeader("X-More-Data", String.valueOf(!complete || end < length));
+        if (etag.equals(req.getHeader("If-None-Match"))) {
+            rsp.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+            return;
+        }
+
+        rsp.setContentType("text/plain;charset=UTF-8");
+        boolean partial = ranged && end > start;
+        if (partial) {
+            rsp.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+            rsp.setHeader("Content-Range", "bytes " + start + "-" + (end - 1) + "/" + (complete ? String.valueOf(length) : "*"));
+        }
+
+        long size = Math.max(0, end - start);
+        String acceptEncoding = req.getHeader("Accept-Encoding");
+        // the range of a partial response is of the encoded body, so it can't be compressed on the fly
+        if (!partial && size >= GZIP_MIN_SIZE && acceptEncoding != null && acceptEncoding.contains("gzip")) {
+            rsp.setHeader("Content-Encoding", "gzip");
+            rsp.setHeader("Vary", "Accept-Encoding");
+            try (OutputStream out = new GZIPOutputStream(rsp.getOutputStream(), BUFFER_SIZE)) {
+                index.write(source, start, end, out);
+            }
+        } else {
+            rsp.setHeader("Content-Length", String.valueOf(size));
+            try (OutputStream out = rsp.getOutputStream()) {
+                index.write(source, start, end, out);
+            }
+        }
+    }
+
+    private static PlainTextIndex getIndex(Run<?, ?> run, String node) {
+        String key = run.getExternalizableId() + "#" + (node == null ? "" : node);
+        synchronized (indexes) {
+            return indexes.computeIfAbsent(key, k -> new PlainTextIndex());
+        }
+    }
+
+    private long waitForNewBytes(LogSource source, PlainTextIndex index, long start, int waitSeconds)
+            throws IOException, InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(waitSeconds);
+        long length = index.update(source);
+        while (length <= start && !source.isComplete() && System.nanoTime() < deadline) {
+            Thread.sleep(WAIT_INTERVAL_MS);
+            length = index.update(source);
+        }
+        return length;
+    }
+
+    @CheckForNull
+    private LogSource getLogSource(Run<?, ?> run, String node) throws IOException {
+        if (node == null || node.isEmpty()) {
+            File logFile = run.getLogFile();
+            // the log might be compressed by other plugins, the random access is not possible then
+            if (logFile.exists() && !logFile.getName().endsWith(".gz")) {
+                return new FileLogSource(run, logFile);
+            }
+            return new TextLogSource(run.getLogText());
+        }
+
+        if (!(run instanceof WorkflowRun)) {
+            return null;
+        }
+
+        FlowExecution execution = ((WorkflowRun) run).getExecution();
+        FlowNode flowNode = execution == null ? null : execution.getNode(node);
+        LogAction logAction = flowNode == null ? null : flowNode.getAction(LogAction.class);
+        if (logAction == null) {
+            logger.fine(() -> "No log action of node " + node + " in run " + run.getExternalizableId());
+            return null;
+        }
+        return new TextLogSource(logAction.getLogText());
+    }
+
+    /**
+     * Raw log which has console notes
+     */
+    private interface LogSource {
+        long length() throws IOException;
+
+        boolean isComplete();
+
+        /**
+         * Write the raw bytes from start, it might write more than the end
+         */
+        void write(long start, long end, OutputStream out) throws IOException;
+    }
+
+    private static class FileLogSource implements LogSource {
+        private final Run<?, ?> run;
+        private final File file;
+
+        FileLogSource(Run<?, ?> run, File file) {
+            this.run = run;
+            this.file = file;
+        }
+
+        @Override
+        public long length() {
+            return file.length();
+        }
+
+        @Override
+        public boolean isComplete() {
+            return !run.isLogUpdated();
+        }
+
+        @Override
+        public void write(long start, long end, OutputStream out) throws IOException {
+            try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+                raf.seek(start);
+                byte[] buffer = new byte[BUFFER_SIZE];
+                long remaining = end - start;
+                while (remaining > 0) {
+                    int read = raf.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+                    if (read < 0) {
+                        break;
+                    }
+                    out.write(buffer, 0, read);
+                    remaining -= read;
+                }
+            }
+        }
+    }
+
+    private static class TextLogSource implements LogSource {
+        private final AnnotatedLargeText<?> text;
+
+        TextLogSource(AnnotatedLargeText<?> text) {
+            this.text = text;
+        }
+
+        @Override
+        public long length() {
+            return text.length();
+        }
+
+        @Override
+        public boolean isComplete() {
+            return text.isComplete();
+        }
+
+        @Override
+        public void write(long start, long end, OutputStream out) throws IOException {
+            // it always writes to the end, the scanner stops it when it has enough
+            text.writeRawLogTo(start, out);
+        }
+    }
+
+    /**
+     * Offsets of the plain text and of the raw log at some line ends, console notes never span lines.
+     * The scanned part only grows by complete lines, the last line is taken when the log is complete.
+     */
+    private static class PlainTextIndex {
+        private static final long CHECKPOINT_INTERVAL = 256 * 1024;
+
+        // {raw offset, plain offset} of line ends, in order
+        private final List<long[]> checkpoints = new ArrayList<>();
+        private long rawEnd;
+        private long plainEnd;
+        private boolean complete;
+
+        PlainTextIndex() {
+            checkpoints.add(new long[]{0, 0});
+        }
+
+        /**
+         * Scan the new bytes of the log
+         * @return length of the plain text which can be served
+         */
+        synchronized long update(LogSource source) throws IOException {
+            boolean sourceComplete = source.isComplete();
+            long rawLength = source.length();
+            if (rawLength < rawEnd) {
+                // it's not the same log any more
+                checkpoints.subList(1, checkpoints.size()).clear();
+                rawEnd = 0;
+                plainEnd = 0;
+            }
+            if (rawLength == rawEnd) {
+                complete = sourceComplete;
+                return plainEnd;
+            }
+
+            LineScanner scanner = new LineScanner(rawEnd, plainEnd, rawLength) {
+                @Override
+                void onLine(long rawLineEnd, long plainLineStart, byte[] plain, int plainLength) {
+                    rawEnd = rawLineEnd;
+                    plainEnd = plainLineStart + plainLength;
+                    if (rawEnd - checkpoints.get(checkpoints.size() - 1)[0] >= CHECKPOINT_INTERVAL) {
+                        checkpoints.add(new long[]{rawEnd, plainEnd});
+                    }
+                }
+            };
+            scanner.scan(source, sourceComplete);
+            complete = sourceComplete && rawEnd == rawLength;
+            return plainEnd;
+        }
+
+        synchronized boolean isComplete() {
+            return complete;
+        }
+
+        /**
+         * Write the plain text in [start, end), it must be in the scanned part
+         */
+        void write(LogSource source, long start, long end, OutputStream out) throws IOException {
+            if (end <= start) {
+                return;
+            }
+
+            long[] from;
+            long rawLimit;
+            boolean includeLast;
+            synchronized (this) {
+                from = checkpoints.get(0);
+                for (long[] checkpoint : checkpoints) {
+                    if (checkpoint[1] > start) {
+                        break;
+                    }
+                    from = checkpoint;
+                }
+                rawLimit = rawEnd;
+                includeLast = complete;
+            }
+
+            LineScanner scanner = new LineScanner(from[0], from[1], rawLimit) {
+                @Override
+                void onLine(long rawLineEnd, long plainLineStart, byte[] plain, int plainLength) throws IOException {
+                    long lineEnd = plainLineStart + plainLength;
+                    if (lineEnd > start) {
+                        int offset = (int) Math.max(0, start - plainLineStart);
+                        int count = (int) (Math.min(end, lineEnd) - plainLineStart) - offset;
+                        out.write(plain, offset, count);
+                    }
+                    if (lineEnd >= end) {
+                        throw new StopScan();
+                    }
+                }
+            };
+            scanner.scan(source, includeLast);
+        }
+    }
+
+    /**
+     * Stops the writing of log when the scanner has enough
+     */
+    private static class StopScan extends IOException {
+        @Override
+        public synchronized Throwable fillInStackTrace() {
+            return this;
+        }
+    }
+
+    /**
+     * Takes raw bytes from an offset and calls back with the plain text of each line
+     */
+    private abstract static class LineScanner extends OutputStream {
+        // raw bytes of the current line, it's reused for all lines
+        private byte[] line = new byte[BUFFER_SIZE];
+        private int lineLength;
+        private final long rawLimit;
+        private long raw;
+        private long plain;
+
+        LineScanner(long raw, long plain, long rawLimit) {
+            this.raw = raw;
+            this.plain = plain;
+            this.rawLimit = rawLimit;
+        }
+
+        abstract void onLine(long rawLineEnd, long plainLineStart, byte[] plain, int plainLength) throws IOException;
+
+        void scan(LogSource source, boolean includeLast) throws IOException {
+            try {
+                source.write(raw, rawLimit, this);
+                if (includeLast && lineLength > 0) {
+                    endLine();
+                }
+            } catch (StopScan e) {
+                // it has enough
+            }
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(@Nonnull byte[] b, int off, int len) throws IOException {
+            int end = off + len;
+            while (off < end) {
+                long room = rawLimit - raw - lineLength;
+                if (room <= 0) {
+                    throw new StopScan();
+                }
+
+                int limit = (int) Math.min(end, off + room);
+                int lineEnd = off;
+                while (lineEnd < limit && b[lineEnd] != '\n') {
+                    lineEnd++;
+                }
+                boolean newLine = lineEnd < limit;
+                if (newLine) {
+                    lineEnd++;
+                }
+
+                append(b, off, lineEnd - off);
+                off = lineEnd;
+                if (newLine) {
+                    endLine();
+                }
+            }
+        }
+
+        private void append(byte[] b, int off, int len) {
+            if (lineLength + len > line.length) {
+                line = Arrays.copyOf(line, Math.max(line.length * 2, lineLength + len));
+            }
+            System.arraycopy(b, off, line, lineLength, len);
+            lineLength += len;
+        }
+
+        private void endLine() throws IOException {
+            byte[] text = line;
+            int textLength = lineLength;
+            // most lines have no notes, don't decode them
+            for (int i = 0; i < lineLength; i++) {
+                if (line[i] == ESC) {
+                    text = ConsoleNote.removeNotes(new String(line, 0, lineLength, StandardCharsets.UTF_8))
+                            .getBytes(StandardCharsets.UTF_8);
+                    textLength = text.length;
+                    break;
+                }
+            }
+
+            raw += lineLength;
+            long lineStart = plain;
+            plain += textLength;
+            // the buffer is only written again after the callback
+            lineLength = 0;
+            onLine(raw, lineStart, text, textLength);
+        }
+    }
+}
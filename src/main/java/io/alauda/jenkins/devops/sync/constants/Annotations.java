@@ -24,6 +24,7 @@ public final class Annotations {
     public static final String GENERATED_BY = "jenkins.alauda.io/generated-by";
     public static final String GENERATED_BY_JENKINS = "jenkins";
     public static final String DISABLE_SYNC_CREATE = "jenkins.alauda.io/disable-sync-create";
+    public static final String JENKINS_CAUSE_ACTION = "jenkins.alauda.io/cause-action";
 
     public static final String MULTI_BRANCH_BRANCH = "alauda.io/jenkins.branch";
     public static final String MULTI_BRANCH_STALE_BRANCH = "alauda.io/jenkins.stale.branch";
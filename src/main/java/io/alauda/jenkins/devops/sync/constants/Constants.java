@@ -25,6 +25,8 @@ public final class Constants {
     public static final String ALAUDA_DEVOPS_ANNOTATIONS_PIPELINE_NUMBER = "alauda.io/pipeline.number";
     public static final String ALAUDA_DEVOPS_ANNOTATIONS_COMMIT = "alauda.io/commit";
     public static final String ALAUDA_DEVOPS_LABELS_PIPELINE_CONFIG = "pipelineConfig";
+    // id of the request which created the Pipeline for a build triggered in Jenkins, see PipelineCreationWorker
+    public static final String ALAUDA_DEVOPS_LABELS_JENKINS_CREATION_REQUEST = "alauda.io/jenkins-creation-request";
     public static final String ALAUDA_DEVOPS_ANNOTATIONS_JENKINS_BUILD_URI = "alauda.io/jenkins-build-uri";
     public static final String ALAUDA_DEVOPS_ANNOTATIONS_JENKINS_LOG_URL = "alauda.io/jenkins-log-url";
     public static final String ALAUDA_DEVOPS_ANNOTATIONS_JENKINS_CONSOLE_LOG_URL = "alauda.io/jenkins-console-log-url";
@@ -35,11 +37,20 @@ public final class Constants {
     public static final String ALAUDA_DEVOPS_ANNOTATIONS_JENKINS_STEPS = "alauda.io/jenkins-steps";
     public static final String ALAUDA_DEVOPS_ANNOTATIONS_JENKINS_VIEW_LOG = "alauda.io/jenkins-view-log";
     public static final String ALAUDA_DEVOPS_ANNOTATIONS_JENKINS_PROGRESSIVE_LOG = "alauda.io/jenkins-progressive-log";
+    // ranged log of run, append "&node=<id>" for the log of one step
+    public static final String ALAUDA_DEVOPS_ANNOTATIONS_JENKINS_LOG_RANGE_URL = "alauda.io/jenkins-log-range-url";
+    // stages and parallel branches of run in the format of the stages annotation, served from the status sync
+    public static final String ALAUDA_DEVOPS_ANNOTATIONS_JENKINS_RUN_STATUS_URL = "alauda.io/jenkins-run-status-url";
+
+    // position of a Pipeline which is held by the trigger scheduler, it's removed once the build is queued in Jenkins
+    public static final String ALAUDA_DEVOPS_ANNOTATIONS_JENKINS_TRIGGER_POSITION = "alauda.io/jenkins-trigger-position";
 
     public static final String ALAUDA_DEVOPS_ANNOTATIONS_JENKINS_PENDING_INPUT_ACTION_JSON = "alauda.io/jenkins-pending-input-actions-json";
 
     public static final String ALAUDA_DEVOPS_ANNOTATIONS_JENKINS_STATUS_JSON = "alauda.io/jenkins-status-json";
     public static final String ALAUDA_DEVOPS_ANNOTATIONS_JENKINS_STAGES_JSON = "alauda.io/jenkins-stages-json";
+    // format of the status and stages JSON, there's no such annotation for the full format
+    public static final String ALAUDA_DEVOPS_ANNOTATIONS_JENKINS_STATUS_FORMAT = "alauda.io/jenkins-status-format";
 
     public static final String ALAUDA_DEVOPS_ANNOTATIONS_JENKINS_NAMESPACE = "alauda.io/jenkins-namespace";
 
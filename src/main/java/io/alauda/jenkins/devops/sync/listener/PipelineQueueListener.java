@@ -20,7 +20,9 @@ import hudson.model.Cause;
 import hudson.model.Queue;
 import hudson.model.queue.QueueListener;
 import io.alauda.jenkins.devops.sync.JenkinsPipelineCause;
-import io.alauda.jenkins.devops.sync.util.AlaudaUtils;
+import io.alauda.jenkins.devops.sync.PipelineTriggerScheduler;
+import io.alauda.jenkins.devops.sync.util.PipelineOutbox;
+import io.alauda.jenkins.devops.sync.util.QueuedPipelineIndex;
 
 import java.util.List;
 import java.util.logging.Logger;
@@ -29,9 +31,29 @@ import java.util.logging.Logger;
 public class PipelineQueueListener extends QueueListener {
     private static final Logger logger = Logger.getLogger(PipelineQueueListener.class.getName());
 
+    @Override
+    public void onEnterWaiting(Queue.WaitingItem wi) {
+        super.onEnterWaiting(wi);
+        QueuedPipelineIndex.getInstance().add(wi);
+    }
+
+    @Override
+    public void onEnterBlocked(Queue.BlockedItem bi) {
+        super.onEnterBlocked(bi);
+        QueuedPipelineIndex.getInstance().update(bi);
+    }
+
+    @Override
+    public void onEnterBuildable(Queue.BuildableItem bi) {
+        super.onEnterBuildable(bi);
+        QueuedPipelineIndex.getInstance().update(bi);
+    }
+
     @Override
     public void onLeft(Queue.LeftItem leftItem) {
         super.onLeft(leftItem);
+        QueuedPipelineIndex.getInstance().remove(leftItem);
+        PipelineTriggerScheduler.getInstance().onCapacityChanged();
 
         boolean isCancelled = leftItem.isCancelled();
         if (!isCancelled) {
@@ -54,16 +76,9 @@ public class PipelineQueueListener extends QueueListener {
         if (pipelineCause != null) {
             String namespace = pipelineCause.getNamespace();
             String name = pipelineCause.getName();
-            AlaudaUtils.getAuthenticatedAlaudaClient()
-                    .pipelines()
-                    .inNamespace(namespace)
-                    .withName(name)
-                    .edit()
-                    .editOrNewStatus()
-                    .withAborted(Boolean.TRUE)
-                    .endStatus().done();
+            PipelineOutbox.getInstance().abort(namespace, name);
 
-            logger.info("Item " + leftItem + " already sync with alauda'resource.");
+            logger.fine(() -> "Item " + leftItem + " is cancelled, queued the abort of Pipeline " + namespace + "/" + name);
         } else {
             logger.warning("Can not found JenkinsPipelineCause, item url: " + itemUrl);
         }
@@ -17,41 +17,43 @@ package io.alauda.jenkins.devops.sync.listener;
 
 import com.cloudbees.hudson.plugins.folder.Folder;
 import com.cloudbees.workflow.rest.external.*;
-import com.fasterxml.jackson.core.JsonProcessingException;
-import com.fasterxml.jackson.databind.ObjectMapper;
-import com.fasterxml.jackson.databind.SerializationFeature;
 import com.google.common.base.Predicate;
 import com.jenkinsci.plugins.badge.action.BadgeAction;
 import hudson.Extension;
 import hudson.PluginManager;
+import hudson.Util;
 import hudson.model.*;
 import hudson.model.Job;
 import hudson.model.listeners.RunListener;
+import hudson.security.ACL;
+import hudson.security.ACLContext;
 import hudson.triggers.SafeTimerTask;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
 import io.alauda.devops.client.AlaudaDevOpsClient;
 import io.alauda.jenkins.devops.sync.AlaudaSyncGlobalConfiguration;
 import io.alauda.jenkins.devops.sync.JenkinsPipelineCause;
+import io.alauda.jenkins.devops.sync.PipelineAnnotationsAction;
+import io.alauda.jenkins.devops.sync.action.RunLogAction;
 import io.alauda.jenkins.devops.sync.constants.Constants;
 import io.alauda.jenkins.devops.sync.constants.PipelinePhases;
 import io.alauda.jenkins.devops.sync.util.AlaudaUtils;
 import io.alauda.jenkins.devops.sync.util.JenkinsUtils;
 import io.alauda.jenkins.devops.sync.util.WorkflowJobUtils;
 import io.alauda.jenkins.devops.sync.util.PipelineUtils;
+import io.alauda.jenkins.devops.sync.util.UnsyncedRunJournal;
 import io.alauda.kubernetes.api.model.*;
 import io.alauda.kubernetes.client.KubernetesClientException;
-import io.jenkins.blueocean.rest.factory.BlueRunFactory;
-import io.jenkins.blueocean.rest.model.BluePipelineNode;
-import io.jenkins.blueocean.rest.model.BluePipelineStep;
-import io.jenkins.blueocean.rest.model.BlueRun;
-import io.jenkins.blueocean.rest.model.BlueRun.BlueRunResult;
 import jenkins.model.Jenkins;
 import jenkins.util.Timer;
 import net.sf.json.JSONArray;
 import net.sf.json.JSONObject;
 import org.apache.commons.httpclient.HttpStatus;
+import org.jenkinsci.plugins.workflow.flow.FlowExecution;
 import org.jenkinsci.plugins.workflow.job.WorkflowJob;
 import org.jenkinsci.plugins.workflow.job.WorkflowRun;
 import org.jenkinsci.plugins.workflow.multibranch.WorkflowMultiBranchProject;
+import org.jenkinsci.plugins.workflow.support.actions.PauseAction;
 import org.jenkinsci.plugins.workflow.support.steps.input.InputAction;
 import org.jenkinsci.plugins.workflow.support.steps.input.InputStepExecution;
 import org.kohsuke.stapler.DataBoundConstructor;
@@ -63,7 +65,9 @@ import java.io.IOException;
 import java.lang.reflect.Constructor;
 import java.lang.reflect.Method;
 import java.util.*;
-import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
 import java.util.concurrent.atomic.AtomicBoolean;
@@ -87,10 +91,17 @@ public class PipelineSyncRunListener extends RunListener<Run> {
     private long delayPollPeriodMs = 1000; // 1 seconds
     private static final long maxDelay = 30000;
 
-    private transient Set<Run> runsToPoll = new CopyOnWriteArraySet<>();
+    private transient RunPollScheduler scheduler = new RunPollScheduler();
+    // status of one run is synced by one thread at a time, different runs are synced concurrently
+    // unless they share a stripe, the locks are striped so there's nothing to clean up for old runs
+    private static final int RUN_LOCK_STRIPES = 64;
+    private final transient Object[] runLocks = createRunLocks();
+    private final transient Object syncExecutorLock = new Object();
+    private transient ThreadPoolExecutor syncExecutor;
 
     private transient AtomicBoolean timerStarted = new AtomicBoolean(false);
     private transient AtomicBoolean unSyncedTimerStarted = new AtomicBoolean(false);
+    private transient AtomicBoolean legacyScanned = new AtomicBoolean(false);
 
     @DataBoundConstructor
     public PipelineSyncRunListener() {
@@ -104,7 +115,10 @@ public class PipelineSyncRunListener extends RunListener<Run> {
     @Override
     public void onStarted(Run run, TaskListener listener) {
         if (shouldPollRun(run)) {
-            if (runsToPoll.add(run)) {
+            JenkinsPipelineCause cause = (JenkinsPipelineCause) run.getCause(JenkinsPipelineCause.class);
+            getAnnotationsAction(run, cause);
+
+            if (scheduler.startIfAbsent(run.getExternalizableId())) {
                 logger.info("starting polling build " + run.getUrl());
             }
             checkTimerStarted();
@@ -120,7 +134,7 @@ public class PipelineSyncRunListener extends RunListener<Run> {
                 protected void doRun() throws Exception {
                     pollLoop();
                 }
-            }, delayPollPeriodMs, pollPeriodMs, TimeUnit.MILLISECONDS);
+            }, delayPollPeriodMs, RunPollScheduler.TICK_MS, TimeUnit.MILLISECONDS);
         }
 
         if(unSyncedTimerStarted.compareAndSet(false, true)) {
@@ -134,6 +148,29 @@ public class PipelineSyncRunListener extends RunListener<Run> {
     }
 
     private void findUnSyncedRecords() {
+        UnsyncedRunJournal journal = UnsyncedRunJournal.getInstance();
+        if (!journal.isExisted() && legacyScanned.compareAndSet(false, true)) {
+            // the unsynced runs of older versions are not in the journal, find them once
+            findUnSyncedRecordsFromBuilds(journal);
+            journal.markMigrated();
+        }
+
+        for (String runId : journal.getRunIds()) {
+            Run run = Run.fromExternalizableId(runId);
+            JenkinsPipelineCause cause = run != null
+                    ? (JenkinsPipelineCause) run.getCause(JenkinsPipelineCause.class) : null;
+            if (cause == null) {
+                journal.remove(runId);
+                continue;
+            }
+
+            // the flag on the cause might not be saved yet, the journal is the one to trust
+            cause.setSynced(false);
+            scheduler.startIfAbsent(runId);
+        }
+    }
+
+    private void findUnSyncedRecordsFromBuilds(UnsyncedRunJournal journal) {
         List<Folder> folders = Jenkins.getInstance().getItems(Folder.class);
         if(folders == null) {
             return;
@@ -152,196 +189,538 @@ public class PipelineSyncRunListener extends RunListener<Run> {
 
                 job.getBuilds().filter(new UnSyncedBuild()).forEach((run) -> {
                     if(run instanceof Run) {
-                        runsToPoll.add((Run) run);
+                        journal.add(((Run) run).getExternalizableId());
                     }
                 });
             });
         });
     }
 
-    class UnSyncedBuild implements Predicate<Run> {
-        @Override
-        public boolean apply(@Nullable Run run) {
-            if(run == null) {
-                return false;
-            }
-
-            JenkinsPipelineCause cause = (JenkinsPipelineCause) run.getCause(JenkinsPipelineCause.class);
-            if(cause == null) {
-                return false;
-            }
+    private void markUnSynced(Run run, JenkinsPipelineCause cause) {
+        cause.setSynced(false);
+        UnsyncedRunJournal.getInstance().add(run.getExternalizableId());
+    }
 
-            return !cause.isSynced();
+    private void markSynced(Run run, JenkinsPipelineCause cause) {
+        boolean wasSynced = cause.isSynced();
+        cause.setSynced(true);
+        if (!wasSynced) {
+            UnsyncedRunJournal.getInstance().remove(run.getExternalizableId());
         }
     }
 
     @Override
     public void onCompleted(Run run, @Nonnull TaskListener listener) {
         if (shouldPollRun(run)) {
-            try {
-                pollRun(run);
-
-                runsToPoll.remove(run);
-                logger.info("onCompleted " + run.getUrl());
-                JenkinsUtils.maybeScheduleNext(((WorkflowRun) run).getParent());
-            } catch (TimeoutException e) {
-                e.printStackTrace();
-            } catch (InterruptedException e) {
-                e.printStackTrace();
+            String runId = run.getExternalizableId();
+            // no more progress updates, the final status goes first
+            scheduler.remove(runId);
+            synchronized (getRunLock(runId)) {
+                sendFinalStatus(run);
             }
+
+            logger.info("onCompleted " + run.getUrl());
+            JenkinsUtils.maybeScheduleNext(((WorkflowRun) run).getParent());
         }
     }
 
     @Override
-    public synchronized void onDeleted(Run run) {
+    public void onDeleted(Run run) {
         if (!shouldPollRun(run)) {
             return;
         }
 
+        String runId = run.getExternalizableId();
+        synchronized (getRunLock(runId)) {
+            deletePipeline(run);
+        }
+        RunStatusCache.getInstance().remove(runId);
+
+        logger.info("onDeleted " + run.getUrl());
+    }
+
+    private void deletePipeline(Run run) {
         JenkinsPipelineCause cause = (JenkinsPipelineCause) run.getCause(JenkinsPipelineCause.class);
         if (cause != null) {
             String namespace = cause.getNamespace();
             String pipelineName = cause.getName();
 
-            boolean result = false;
-            try{
-                result = PipelineUtils.delete(namespace, pipelineName);
-            } catch (KubernetesClientException e) {
-                logger.warning(e.getMessage());
-            }
+            PipelineUtils.delete(namespace, pipelineName);
 
             int buildNum = run.getNumber();
-            logger.info("Delete `Pipeline` result is: " + result + "; name is: " + pipelineName + "; buildNum is: " + buildNum);
+            logger.info("Deleting `Pipeline` in background; name is: " + pipelineName + "; buildNum is: " + buildNum);
         }
 
-        runsToPoll.remove(run);
-
-        logger.info("onDeleted " + run.getUrl());
+        scheduler.remove(run.getExternalizableId());
+        UnsyncedRunJournal.getInstance().remove(run.getExternalizableId());
     }
 
     @Override
-    public synchronized void onFinalized(Run run) {
-        if (shouldPollRun(run)) {
-            try {
-                pollRun(run);
+    public void onFinalized(Run run) {
+        if (!shouldPollRun(run)) {
+            return;
+        }
 
-                runsToPoll.remove(run);
+        String runId = run.getExternalizableId();
+        scheduler.remove(runId);
+        // the full status with stages follows the final status
+        getSyncExecutor().execute(() -> {
+            try (ACLContext ignored = ACL.as(ACL.SYSTEM)) {
+                pollRun(run);
                 logger.info("onFinalized " + run.getUrl());
-            } catch (TimeoutException e) {
-                e.printStackTrace();
-            } catch (InterruptedException e) {
-                e.printStackTrace();
+            } catch (KubernetesClientException | TimeoutException | InterruptedException e) {
+                logger.log(WARNING, "Failed to sync the status of run " + run.getUrl(), e);
+            }
+        });
+    }
+
+    /**
+     * Send the phase, result and finish time of the completed run without computing the stages,
+     * users and the next serial build are waiting for it.
+     */
+    private void sendFinalStatus(Run run) {
+        JenkinsPipelineCause cause = (JenkinsPipelineCause) run.getCause(JenkinsPipelineCause.class);
+        AlaudaDevOpsClient client = getAuthenticatedAlaudaClient();
+        if (cause == null || client == null) {
+            return;
+        }
+
+        String namespace = cause.getNamespace();
+        String name = cause.getName();
+        // the run is still building in onCompleted, take the phase from its result
+        Result runResult = run.getResult();
+        String phase = runResult != null ? PipelineUtils.resultToPipelinePhase(runResult) : runToPipelinePhase(run);
+        try {
+            Pipeline pipeline = client.pipelines().inNamespace(namespace).withName(name).get();
+            if (pipeline == null) {
+                markUnSynced(run, cause);
+                logger.warning(() -> String.format("Pipeline name[%s], namesapce[%s] don't exists", name, namespace));
+                return;
+            }
+
+            PipelineStatus status = pipeline.getStatus();
+            if (status == null) {
+                status = new PipelineStatusBuilder().build();
             }
+            status.setPhase(phase);
+            long started = getStartTime(run);
+            if (started > 0) {
+                status.setStartedAt(formatTimestamp(started));
+                status.setFinishedAt(formatTimestamp(started + getDuration(run)));
+            }
+            status.setUpdatedAt(AlaudaUtils.getCurrentTimestamp());
+
+            PipelineStatusJenkins statusJenkins = status.getJenkins();
+            if (statusJenkins == null) {
+                statusJenkins = new PipelineStatusJenkinsBuilder().build();
+            }
+            statusJenkins.setBuild(String.valueOf(getRunNumber(run)));
+            statusJenkins.setResult(getRunResult(run));
+            Result result = run.getResult();
+            if (result != null) {
+                statusJenkins.setStatus(StatusExt.valueOf(result).name());
+            }
+            status.setJenkins(statusJenkins);
+            pipeline.setStatus(status);
+
+            logger.log(INFO, "Patching final status of pipeline {0}/{1}: setting phase to {2}", new Object[]{namespace, name, phase});
+            client.pipelines().inNamespace(namespace).withName(name).patch(pipeline);
+        } catch (KubernetesClientException e) {
+            // the full status sync will try it again
+            markUnSynced(run, cause);
+            logger.log(WARNING, "Failed to patch final status of pipeline " + namespace + "/" + name, e);
         }
     }
 
     private void pollLoop() {
-        for (Run run : runsToPoll) {
-            try {
-                pollRun(run);
+        List<String> dueRuns = scheduler.tick();
+        if (dueRuns.isEmpty()) {
+            return;
+        }
+        logger.fine(() -> String.format("%d of %d runs are due to poll", dueRuns.size(), scheduler.size()));
+
+        // a run is not due again until its poll is done, so it's never polled by two threads
+        ExecutorService executor = getSyncExecutor();
+        for (String runId : dueRuns) {
+            executor.execute(() -> {
+                try (ACLContext ignored = ACL.as(ACL.SYSTEM)) {
+                    pollDueRun(runId);
+                }
+            });
+        }
+    }
+
+    private void pollDueRun(String runId) {
+        Run run = Run.fromExternalizableId(runId);
+        if (!(run instanceof WorkflowRun)) {
+            scheduler.remove(runId);
+            return;
+        }
+
+        try {
+            String inputFingerprint = getInputFingerprint((WorkflowRun) run);
+            // other parallel branches might still be running while one is waiting for input
+            if (inputFingerprint != null && hasRunningHeads((WorkflowRun) run)) {
+                inputFingerprint = null;
+            }
+            JenkinsPipelineCause cause = (JenkinsPipelineCause) run.getCause(JenkinsPipelineCause.class);
+            if (inputFingerprint != null && inputFingerprint.equals(scheduler.getInputFingerprint(runId))
+                    && cause != null && cause.isSynced()) {
+                // still waiting for the same input, nothing to sync
+                scheduler.waitForInput(runId, inputFingerprint);
+                return;
+            }
+
+            boolean changed = pollRun(run);
+            if (!run.isBuilding()) {
+                scheduler.remove(runId);
+            } else if (inputFingerprint != null) {
+                scheduler.waitForInput(runId, inputFingerprint);
+            } else {
+                scheduler.pollAgain(runId, changed);
+            }
+        } catch (KubernetesClientException | TimeoutException | InterruptedException e) {
+            logger.log(WARNING, "Failed to poll run " + runId, e);
+            scheduler.pollAgain(runId, false);
+        } catch (RuntimeException e) {
+            logger.log(WARNING, "Failed to poll run " + runId, e);
+            scheduler.pollAgain(runId, false);
+        }
+    }
 
-                StatusExt status = RunExt.create((WorkflowRun) run).getStatus();
-                switch(status) {
-                    case IN_PROGRESS:
-                    case PAUSED_PENDING_INPUT:
-                        continue;
-                    default:
-                        runsToPoll.remove(run);
+    /**
+     * The pool size follows {@link AlaudaSyncGlobalConfiguration#getStatusSyncThreads()}
+     */
+    private ExecutorService getSyncExecutor() {
+        int threads = Math.max(1, AlaudaSyncGlobalConfiguration.get().getStatusSyncThreads());
+        synchronized (syncExecutorLock) {
+            if (syncExecutor == null) {
+                syncExecutor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                        new LinkedBlockingQueue<>(),
+                        new NamingThreadFactory(new DaemonThreadFactory(), "PipelineStatusSync"));
+                syncExecutor.allowCoreThreadTimeOut(true);
+            } else if (syncExecutor.getMaximumPoolSize() != threads) {
+                // the core size can't be larger than the maximum size
+                if (threads > syncExecutor.getMaximumPoolSize()) {
+                    syncExecutor.setMaximumPoolSize(threads);
+                    syncExecutor.setCorePoolSize(threads);
+                } else {
+                    syncExecutor.setCorePoolSize(threads);
+                    syncExecutor.setMaximumPoolSize(threads);
                 }
-            } catch (KubernetesClientException e) {
-                e.printStackTrace();
-            } catch (TimeoutException e) {
-                e.printStackTrace();
-            } catch (InterruptedException e) {
-                e.printStackTrace();
             }
+            return syncExecutor;
+        }
+    }
+
+    private static Object[] createRunLocks() {
+        Object[] locks = new Object[RUN_LOCK_STRIPES];
+        for (int i = 0; i < locks.length; i++) {
+            locks[i] = new Object();
+        }
+        return locks;
+    }
+
+    private Object getRunLock(String runId) {
+        return runLocks[(runId.hashCode() & Integer.MAX_VALUE) % runLocks.length];
+    }
+
+    /**
+     * @return the number of runs which were due in the last tick of poll
+     */
+    public int getDueRunsCount() {
+        return scheduler.getLastDueCount();
+    }
+
+    public int getPollingRunsCount() {
+        return scheduler.size();
+    }
+
+    /**
+     * @return true if any head of the flow is not paused, e.g. not waiting for input
+     */
+    private boolean hasRunningHeads(WorkflowRun run) {
+        FlowExecution execution = run.getExecution();
+        if (execution == null) {
+            return false;
+        }
+        return execution.getCurrentHeads().stream().anyMatch(head -> !PauseAction.isPaused(head));
+    }
+
+    /**
+     * @return ids of the pending inputs, or null if the run is not waiting for input
+     */
+    @Nullable
+    private String getInputFingerprint(WorkflowRun run) throws TimeoutException, InterruptedException {
+        InputAction inputAction = run.getAction(InputAction.class);
+        if (inputAction == null) {
+            return null;
         }
+
+        List<InputStepExecution> executions = inputAction.getExecutions();
+        if (executions == null || executions.isEmpty()) {
+            return null;
+        }
+
+        StringBuilder builder = new StringBuilder();
+        for (InputStepExecution execution : executions) {
+            builder.append(execution.getId()).append(',');
+        }
+        return builder.toString();
     }
 
-    private synchronized void pollRun(Run run) throws TimeoutException, InterruptedException {
+    /**
+     * @return true if the status of Pipeline was changed by this poll
+     */
+    private boolean pollRun(Run run) throws TimeoutException, InterruptedException {
         if (!(run instanceof WorkflowRun)) {
             throw new IllegalStateException("Cannot poll a non-workflow run");
         }
 
-        RunExt wfRunExt = RunExt.create((WorkflowRun) run);
+        synchronized (getRunLock(run.getExternalizableId())) {
+            return doPollRun(run);
+        }
+    }
 
-        // try blue run
-        BlueRun blueRun = null;
+    private boolean doPollRun(Run run) throws TimeoutException, InterruptedException {
+        PipelineJson pipeJson;
         try {
-            blueRun = BlueRunFactory.getRun(run, null);
-        } catch (Throwable t) {
-            logger.log(Level.WARNING, "pollRun", t);
+            pipeJson = StageExtractor.extract((WorkflowRun) run);
+        } catch (RuntimeException e) {
+            logger.log(WARNING, "Failed to extract stages of run " + run.getExternalizableId(), e);
+            pipeJson = new PipelineJson();
         }
 
         try {
-            upsertPipeline(run, wfRunExt, blueRun);
+            return upsertPipeline(run, pipeJson);
         } catch (KubernetesClientException e) {
             if (e.getCode() == HttpStatus.SC_UNPROCESSABLE_ENTITY) {
-                runsToPoll.remove(run);
+                scheduler.remove(run.getExternalizableId());
                 logger.log(WARNING, "Cannot update status: {0}", e.getMessage());
-                return;
+                return false;
             }
             throw e;
         }
     }
 
-    private boolean shouldUpdatePipeline(JenkinsPipelineCause cause, int latestStageNum, int latestNumFlowNodes, StatusExt status) {
-        long currTime = TimeUnit.NANOSECONDS.toMillis(System.nanoTime());
-        logger.fine(String.format("shouldUpdatePipeline curr time %s last update %s curr stage num %s last stage num %s" + "curr flow num %s last flow num %s status %s", String.valueOf(currTime), String.valueOf(cause.getLastUpdateToAlaudaDevOps()), String.valueOf(latestStageNum), String.valueOf(cause.getNumStages()), String.valueOf(latestNumFlowNodes), String.valueOf(cause.getNumFlowNodes()), status.toString()));
+    private boolean shouldUpdatePipeline(JenkinsPipelineCause cause, String statusDigest) {
+        // it's kept in the cause of run, so it must be the wall clock which survives restarts
+        long currTime = System.currentTimeMillis();
+        logger.fine(String.format("shouldUpdatePipeline curr time %s last update %s curr digest %s last digest %s synced %s",
+                String.valueOf(currTime), String.valueOf(cause.getLastUpdateToAlaudaDevOps()),
+                statusDigest, cause.getLastStatusDigest(), String.valueOf(cause.isSynced())));
 
-        // if we have not updated in maxDelay time, update
-        if (currTime > (cause.getLastUpdateToAlaudaDevOps() + pollPeriodMs)) {
+        // the last update failed, try it again
+        if (!cause.isSynced()) {
             return true;
         }
 
-        // if the num of stages has changed, update
-        if (cause.getNumStages() != latestStageNum) {
+        // if the content has changed, update
+        if (!statusDigest.equals(cause.getLastStatusDigest())) {
             return true;
         }
 
-        // if the num of flow nodes has changed, update
-        if (cause.getNumFlowNodes() != latestNumFlowNodes) {
-            return true;
-        }
+        // nothing changed, only update when we have been quiet for too long
+        long heartbeatMs = TimeUnit.SECONDS.toMillis(AlaudaSyncGlobalConfiguration.get().getStatusHeartbeat());
+        return currTime > (cause.getLastUpdateToAlaudaDevOps() + heartbeatMs);
+    }
 
-        // if the run is in some sort of terminal state, update
-        if (status != StatusExt.IN_PROGRESS) {
-            return true;
+    /**
+     * The durations of running stages grow on every poll, so only the state of stages and the progress of
+     * the flow graph are taken into account here. Durations will be refreshed by the heartbeat.
+     */
+    private String stagesFingerprint(PipelineJson pipeJson) {
+        StringBuilder builder = new StringBuilder();
+        builder.append(pipeJson.flowFingerprint).append('|');
+        for (PipelineStage stage : pipeJson.stages) {
+            builder.append(stage.id).append(':').append(stage.status).append(':').append(stage.result)
+                    .append(':').append(stage.edges != null ? stage.edges.size() : 0).append(';');
         }
-
-        return false;
+        return builder.toString();
     }
 
-    private String toBlueJson(@NotNull PipelineJson pipeJson) {
-        ObjectMapper blueJsonMapper = new ObjectMapper();
-        blueJsonMapper.disable(SerializationFeature.FAIL_ON_EMPTY_BEANS);
-        blueJsonMapper.disable(SerializationFeature.FAIL_ON_SELF_REFERENCES);
-
-        try {
-            return blueJsonMapper.writeValueAsString(pipeJson);
-        } catch (JsonProcessingException e) {
-            logger.log(SEVERE, "Failed to serialize blueJson run. " + e, e);
-            logger.log(SEVERE, "blueJson data: " + pipeJson);
+    /**
+     * Digest of the content which we write into Pipeline, the updatedAt is not part of it
+     * @param contents status and annotations
+     * @return digest of all contents
+     */
+    private String statusDigest(String... contents) {
+        StringBuilder builder = new StringBuilder();
+        for (String content : contents) {
+            builder.append(content).append('\n');
         }
+        return Util.getDigestOf(builder.toString());
+    }
 
-        return null;
+    private String toBlueJson(@NotNull PipelineJson pipeJson) {
+        return StatusJsonSerializer.toStagesJson(pipeJson);
     }
 
-    private void upsertPipeline(Run run, RunExt wfRunExt, BlueRun blueRun) throws TimeoutException, InterruptedException {
+    private boolean upsertPipeline(Run run, PipelineJson pipeJson) throws TimeoutException, InterruptedException {
         if(run == null) {
-            return;
+            return false;
         }
 
         final AlaudaDevOpsClient client = getAuthenticatedAlaudaClient();
         if(client == null) {
-            return;
+            return false;
         }
         JenkinsPipelineCause cause = (JenkinsPipelineCause) run.getCause(JenkinsPipelineCause.class);
         if (cause == null) {
-            return;
+            return false;
         }
 
         String namespace = cause.getNamespace();
+        String rootUrl = ""; // TODO should remove this, AlaudaUtils.getJenkinsURL(client, namespace);
+        PipelineAnnotationsAction annotationsAction = getAnnotationsAction(run, cause);
+
+        RunStatusCache.getInstance().put(run.getExternalizableId(), pipeJson);
+
+        String phase = runToPipelinePhase(run);
+        long started = getStartTime(run);
+        String startTime = null;
+        String completionTime = null;
+        String updatedTime = AlaudaUtils.getCurrentTimestamp();
+        if (started > 0) {
+            startTime = formatTimestamp(started);
+            long duration = getDuration(run);
+            if (duration > 0) {
+                completionTime = formatTimestamp(started + duration);
+            }
+        }
+
+        String badgeJson = toBadgeJson(run);
+        String runResult = getRunResult(run);
+
+        String statusDigest = statusDigest(phase, startTime, completionTime, runResult,
+                stagesFingerprint(pipeJson), badgeJson);
+        boolean needToUpdate = this.shouldUpdatePipeline(cause, statusDigest);
+        if (!needToUpdate) {
+            logger.fine(() -> String.format("Pipeline %s/%s is not changed, skip to update it",
+                    cause.getNamespace(), cause.getName()));
+            return false;
+        }
+
+        // it walks the flow graph again, only do it when the Pipeline is going to be patched
+        RunExt wfRunExt = RunExt.create((WorkflowRun) run);
+
+        Set<String> skippedStages = new HashSet<>();
+        for (PipelineStage stage : pipeJson.stages) {
+            if (Constants.JOB_STATUS_NOT_BUILT.equals(stage.result)) {
+                skippedStages.add(stage.id);
+            }
+        }
+
+        if (!wfRunExt.get_links().self.href.matches("^https?://.*$")) {
+            wfRunExt.get_links().self.setHref(joinPaths(rootUrl, wfRunExt.get_links().self.href));
+        }
+        int newNumStages = wfRunExt.getStages().size();
+        int newNumFlowNodes = 0;
+        List<StageNodeExt> validStageList = new ArrayList<>();
+        for (StageNodeExt stage : wfRunExt.getStages()) {
+            // the StatusExt.getStatus() cannot be trusted for declarative
+            // pipeline;
+            // for example, skipped steps/stages will be marked as complete;
+            // the stage extractor reads the status which declarative tagged
+            if (skippedStages.contains(stage.getId())) {
+                logger.info("skipping stage " + stage.getName() + " for the status JSON for pipeline run " + run.getDisplayName() + " because it was not executed (most likely because of a failure in another stage)");
+                continue;
+            }
+            validStageList.add(stage);
+
+            FlowNodeExt.FlowNodeLinks links = stage.get_links();
+            if (!links.self.href.matches("^https?://.*$")) {
+                links.self.setHref(joinPaths(rootUrl, links.self.href));
+            }
+            if (links.getLog() != null && !links.getLog().href.matches("^https?://.*$")) {
+                links.getLog().setHref(joinPaths(rootUrl, links.getLog().href));
+            }
+            newNumFlowNodes = newNumFlowNodes + stage.getStageFlowNodes().size();
+            for (AtomFlowNodeExt node : stage.getStageFlowNodes()) {
+                FlowNodeExt.FlowNodeLinks nodeLinks = node.get_links();
+                if (!nodeLinks.self.href.matches("^https?://.*$")) {
+                    nodeLinks.self.setHref(joinPaths(rootUrl, nodeLinks.self.href));
+                }
+                if (nodeLinks.getLog() != null && !nodeLinks.getLog().href.matches("^https?://.*$")) {
+                    nodeLinks.getLog().setHref(joinPaths(rootUrl, nodeLinks.getLog().href));
+                }
+            }
+        }
+        // override stages in case declarative has fooled base pipeline support
+        wfRunExt.setStages(validStageList);
+        String blueJson = toBlueJson(pipeJson);
+
+        logger.log(INFO, "Patching pipeline {0}/{1}: setting phase to {2}", new Object[]{cause.getNamespace(), cause.getName(), phase});
+        Pipeline pipeline = client.pipelines().inNamespace(cause.getNamespace()).withName(cause.getName()).get();
+        if (pipeline == null) {
+            markUnSynced(run, cause);
+            logger.warning(() -> String.format("Pipeline name[%s], namesapce[%s] don't exists", cause.getName(), cause.getNamespace()));
+            return false;
+        }
+
+        Map<String, String> annotations = pipeline.getMetadata().getAnnotations();
+        if (AlaudaSyncGlobalConfiguration.get().isCompactStatusJson()) {
+            annotations.put(ALAUDA_DEVOPS_ANNOTATIONS_JENKINS_STATUS_JSON, StatusJsonCodec.encodeRun(wfRunExt));
+            annotations.put(ALAUDA_DEVOPS_ANNOTATIONS_JENKINS_STAGES_JSON, StatusJsonCodec.encodeStages(pipeJson));
+            annotations.put(ALAUDA_DEVOPS_ANNOTATIONS_JENKINS_STATUS_FORMAT, StatusJsonCodec.FORMAT_VERSION);
+        } else {
+            String json = StatusJsonSerializer.toRunJson(wfRunExt);
+            annotations.put(ALAUDA_DEVOPS_ANNOTATIONS_JENKINS_STATUS_JSON, json);
+            annotations.put(ALAUDA_DEVOPS_ANNOTATIONS_JENKINS_STAGES_JSON, blueJson);
+            annotations.remove(ALAUDA_DEVOPS_ANNOTATIONS_JENKINS_STATUS_FORMAT);
+        }
+
+        // the static ones only need to be written in the first patch
+        boolean writeStaticAnnotations = !annotationsAction.isWritten();
+        if (writeStaticAnnotations) {
+            annotations.putAll(annotationsAction.getAnnotations());
+        }
+        annotations.put(ANNOTATION_BADGE, badgeJson);
+        pipeline.getMetadata().setAnnotations(annotations);
+
+        // status
+        PipelineStatus status = createPipelineStatus(pipeline, phase, startTime, completionTime, updatedTime, blueJson, run, wfRunExt);
+        pipeline.setStatus(status);
+
+        try {
+            Pipeline result = client
+                    .pipelines().inNamespace(namespace)
+                    .withName(pipeline.getMetadata().getName())
+                    .patch(pipeline);
+            logger.fine("updated pipeline: " + result);
+        } catch (Exception e) {
+            markUnSynced(run, cause);
+            throw e;
+        }
+
+        cause.setNumFlowNodes(newNumFlowNodes);
+        cause.setNumStages(newNumStages);
+        cause.setLastUpdateToAlaudaDevOps(System.currentTimeMillis());
+        String lastStatusDigest = cause.getLastStatusDigest();
+        cause.setLastStatusDigest(statusDigest);
+        markSynced(run, cause);
+        if (writeStaticAnnotations) {
+            annotationsAction.setWritten(true);
+        }
+        return !statusDigest.equals(lastStatusDigest);
+    }
+
+    /**
+     * Find the annotations which never change during the run, create them if the run has none yet.
+     */
+    private PipelineAnnotationsAction getAnnotationsAction(Run run, JenkinsPipelineCause cause) {
+        PipelineAnnotationsAction action = run.getAction(PipelineAnnotationsAction.class);
+        if (action == null) {
+            action = new PipelineAnnotationsAction(createStaticAnnotations(run, cause));
+            run.addAction(action);
+        } else if (!action.isLoaded()) {
+            // the annotations are not kept in build.xml
+            action.setAnnotations(createStaticAnnotations(run, cause));
+        }
+        return action;
+    }
+
+    private Map<String, String> createStaticAnnotations(Run run, JenkinsPipelineCause cause) {
         String rootUrl = ""; // TODO should remove this, AlaudaUtils.getJenkinsURL(client, namespace);
         String buildUrl = joinPaths(rootUrl, run.getUrl());
         String logsUrl = joinPaths(buildUrl, "/consoleText");
@@ -450,120 +829,7 @@ public class PipelineSyncRunListener extends RunListener<Run> {
             if (logger.isLoggable(Level.FINE)) logger.log(Level.FINE, "upsertPipeline", t);
         }
 
-        Map<String, BlueRunResult> blueRunResults = new HashMap<>();
-        PipelineJson pipeJson = new PipelineJson();
-        Map<String, PipelineStage> stageMap = new HashMap<>();
-
-        try {
-            if (blueRun != null && blueRun.getNodes() != null) {
-                Iterator<BluePipelineNode> iter = blueRun.getNodes().iterator();
-                PipelineStage pipeStage;
-                while (iter.hasNext()) {
-                    BluePipelineNode node = iter.next();
-                    if (node != null) {
-                        BlueRunResult result = node.getResult();
-                        BlueRun.BlueRunState state = node.getStateObj();
-
-                        pipeStage = new PipelineStage(node.getId(), node.getDisplayName(), state != null ? state.name() : Constants.JOB_STATUS_NOT_BUILT, result != null ? result.name() : Constants.JOB_STATUS_UNKNOWN, node.getStartTimeString(), node.getDurationInMillis(), 0L, node.getEdges());
-                        stageMap.put(node.getDisplayName(), pipeStage);
-                        pipeJson.addStage(pipeStage);
-
-
-                        blueRunResults.put(node.getDisplayName(), node.getResult());
-                    }
-                }
-            }
-        } catch (Exception e) {
-            logger.log(WARNING, "Failed to fetch stages from blue ocean API. " + e, e);
-        }
-
-        if (!wfRunExt.get_links().self.href.matches("^https?://.*$")) {
-            wfRunExt.get_links().self.setHref(joinPaths(rootUrl, wfRunExt.get_links().self.href));
-        }
-        int newNumStages = wfRunExt.getStages().size();
-        int newNumFlowNodes = 0;
-        List<StageNodeExt> validStageList = new ArrayList<>();
-        List<BlueJsonStage> blueStages = new ArrayList<>();
-        for (StageNodeExt stage : wfRunExt.getStages()) {
-            // the StatusExt.getStatus() cannot be trusted for declarative
-            // pipeline;
-            // for example, skipped steps/stages will be marked as complete;
-            // we leverage the blue ocean state machine to determine this
-            BlueRunResult result = blueRunResults.get(stage.getName());
-            if (result != null && result == BlueRunResult.NOT_BUILT) {
-                logger.info("skipping stage " + stage.getName() + " for the status JSON for pipeline run " + run.getDisplayName() + " because it was not executed (most likely because of a failure in another stage)");
-                continue;
-            }
-            validStageList.add(stage);
-
-            FlowNodeExt.FlowNodeLinks links = stage.get_links();
-            if (!links.self.href.matches("^https?://.*$")) {
-                links.self.setHref(joinPaths(rootUrl, links.self.href));
-            }
-            if (links.getLog() != null && !links.getLog().href.matches("^https?://.*$")) {
-                links.getLog().setHref(joinPaths(rootUrl, links.getLog().href));
-            }
-            newNumFlowNodes = newNumFlowNodes + stage.getStageFlowNodes().size();
-            for (AtomFlowNodeExt node : stage.getStageFlowNodes()) {
-                FlowNodeExt.FlowNodeLinks nodeLinks = node.get_links();
-                if (!nodeLinks.self.href.matches("^https?://.*$")) {
-                    nodeLinks.self.setHref(joinPaths(rootUrl, nodeLinks.self.href));
-                }
-                if (nodeLinks.getLog() != null && !nodeLinks.getLog().href.matches("^https?://.*$")) {
-                    nodeLinks.getLog().setHref(joinPaths(rootUrl, nodeLinks.getLog().href));
-                }
-            }
-
-            StatusExt status = stage.getStatus();
-            if (status != null) {
-                PipelineStage pipeStage = stageMap.get(stage.getName());
-                if (pipeStage != null) {
-                    pipeStage.pause_duration_millis = stage.getPauseDurationMillis();
-                }
-            }
-        }
-        // override stages in case declarative has fooled base pipeline support
-        wfRunExt.setStages(validStageList);
-
-        boolean needToUpdate = this.shouldUpdatePipeline(cause, newNumStages, newNumFlowNodes, wfRunExt.getStatus());
-        if (!needToUpdate) {
-            return;
-        }
-
-        String json = null;
-        try {
-            json = new ObjectMapper().writeValueAsString(wfRunExt);
-        } catch (JsonProcessingException e) {
-            logger.log(SEVERE, "Failed to serialize workflow run. " + e, e);
-        }
-
-
-        String phase = runToPipelinePhase(run);
-        long started = getStartTime(run);
-        String startTime = null;
-        String completionTime = null;
-        String updatedTime = AlaudaUtils.getCurrentTimestamp();
-        if (started > 0) {
-            startTime = formatTimestamp(started);
-            long duration = getDuration(run);
-            if (duration > 0) {
-                completionTime = formatTimestamp(started + duration);
-            }
-        }
-
-        logger.log(INFO, "Patching pipeline {0}/{1}: setting phase to {2}", new Object[]{cause.getNamespace(), cause.getName(), phase});
-        Pipeline pipeline = client.pipelines().inNamespace(cause.getNamespace()).withName(cause.getName()).get();
-        if (pipeline == null) {
-            cause.setSynced(false);
-            logger.warning(() -> String.format("Pipeline name[%s], namesapce[%s] don't exists", cause.getName(), cause.getNamespace()));
-            return;
-        }
-
-        String blueJson = toBlueJson(pipeJson);
-
-        Map<String, String> annotations = pipeline.getMetadata().getAnnotations();
-        annotations.put(ALAUDA_DEVOPS_ANNOTATIONS_JENKINS_STATUS_JSON, json);
-        annotations.put(ALAUDA_DEVOPS_ANNOTATIONS_JENKINS_STAGES_JSON, blueJson);
+        Map<String, String> annotations = new HashMap<>();
         annotations.put(ALAUDA_DEVOPS_ANNOTATIONS_JENKINS_BUILD_URI, buildUrl);
         annotations.put(ALAUDA_DEVOPS_ANNOTATIONS_JENKINS_LOG_URL, logsUrl);
         annotations.put(ALAUDA_DEVOPS_ANNOTATIONS_JENKINS_CONSOLE_LOG_URL, logsConsoleUrl);
@@ -574,36 +840,14 @@ public class PipelineSyncRunListener extends RunListener<Run> {
         annotations.put(ALAUDA_DEVOPS_ANNOTATIONS_JENKINS_STEPS, stepsUrl);
         annotations.put(ALAUDA_DEVOPS_ANNOTATIONS_JENKINS_STEPS_LOG, stepsLogUrl);
         annotations.put(ALAUDA_DEVOPS_ANNOTATIONS_JENKINS_PROGRESSIVE_LOG, progressiveLogUrl);
+        annotations.put(ALAUDA_DEVOPS_ANNOTATIONS_JENKINS_LOG_RANGE_URL, RunLogAction.getLogUrl(run));
+        annotations.put(ALAUDA_DEVOPS_ANNOTATIONS_JENKINS_RUN_STATUS_URL, "/alauda/runStatus?job="
+                + Util.rawEncode(run.getParent().getFullName()) + "&build=" + run.getNumber());
         annotations.put(ALAUDA_DEVOPS_ANNOTATIONS_CHANGE_TITLE, changeTitle);
-        pipeline.getMetadata().setAnnotations(annotations);
-
-        badgeHandle(run, annotations);
-
-        // status
-        PipelineStatus status = createPipelineStatus(pipeline, phase, startTime, completionTime, updatedTime, blueJson, run, wfRunExt);
-        pipeline.setStatus(status);
-
-        try {
-            Pipeline result = client
-                    .pipelines().inNamespace(namespace)
-                    .withName(pipeline.getMetadata().getName())
-                    .patch(pipeline);
-            logger.fine("updated pipeline: " + result);
-        } catch (Exception e) {
-            cause.setSynced(false);
-            throw e;
-        }
-
-        cause.setNumFlowNodes(newNumFlowNodes);
-        cause.setNumStages(newNumStages);
-        cause.setLastUpdateToAlaudaDevOps(TimeUnit.NANOSECONDS.toMillis(System.nanoTime()));
+        return annotations;
     }
 
-    private void badgeHandle(@NotNull Run run, Map<String, String> annotations) {
-        if (annotations == null) {
-            return;
-        }
-
+    private String toBadgeJson(@NotNull Run run) {
         JSONArray jsonArray = new JSONArray();
 
         List<? extends Action> actions = run.getAllActions();
@@ -621,7 +865,7 @@ public class PipelineSyncRunListener extends RunListener<Run> {
 
             jsonArray.add(jsonObject);
         });
-        annotations.put(ANNOTATION_BADGE, jsonArray.toString());
+        return jsonArray.toString();
     }
 
     private PipelineStatus createPipelineStatus(Pipeline pipeline, String phase, String startTime, String completionTime, String updatedTime, String blueJson, Run run, RunExt wfRunExt) {
@@ -665,12 +909,7 @@ public class PipelineSyncRunListener extends RunListener<Run> {
                 }
             }
         }
-        try {
-            return new ObjectMapper().writeValueAsString(pendingInputActions);
-        } catch (JsonProcessingException e) {
-            logger.log(SEVERE, "Failed to serialize pending actions. " + e, e);
-            return null;
-        }
+        return StatusJsonSerializer.toPendingInputsJson(pendingInputActions);
     }
 
     private long getStartTime(Run run) {
@@ -775,21 +1014,11 @@ public class PipelineSyncRunListener extends RunListener<Run> {
         return joined.replaceAll("/+", "/").replaceAll("/\\?", "?").replaceAll("/#", "#").replaceAll(":/", "://");
     }
 
-    private static class BlueJsonStage {
-        public StageNodeExt stage;
-        public BlueRunResult result;
-        public List<BluePipelineNode.Edge> edges;
-
-        public BlueJsonStage(StageNodeExt stage, BlueRunResult result, List<BluePipelineNode.Edge> edges, List<BluePipelineStep> steps) {
-            this.stage = stage;
-            this.result = result;
-            this.edges = edges;
-        }
-    }
-
-    private static class PipelineJson {
+    static class PipelineJson {
         public String start_stage_id;
         public List<PipelineStage> stages;
+        // progress of the flow graph, it's not part of the JSON
+        String flowFingerprint;
 
         public PipelineJson() {
             start_stage_id = null;
@@ -804,7 +1033,7 @@ public class PipelineSyncRunListener extends RunListener<Run> {
         }
     }
 
-    private static class PipelineStage {
+    static class PipelineStage {
         public String id;
         public String name;
         public String status;
@@ -812,10 +1041,10 @@ public class PipelineSyncRunListener extends RunListener<Run> {
         public String start_time;
         public Long duration_millis;
         public Long pause_duration_millis;
-        public List<BluePipelineNode.Edge> edges;
+        public List<PipelineEdge> edges;
 
         PipelineStage(String id, String name, String status, String result, String start_time, Long duration_millis,
-                      Long pause_duration_millis, List<BluePipelineNode.Edge> edges) {
+                      Long pause_duration_millis, List<PipelineEdge> edges) {
             this.id = id;
             this.name = name;
             this.status = status;
@@ -826,4 +1055,12 @@ public class PipelineSyncRunListener extends RunListener<Run> {
             this.edges = edges;
         }
     }
+
+    static class PipelineEdge {
+        public String id;
+
+        PipelineEdge(String id) {
+            this.id = id;
+        }
+    }
 }
@@ -0,0 +1,203 @@
+/**
+ * Copyright (C) 2018 Alauda.io
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.alauda.jenkins.devops.sync.listener;
+
+import javax.annotation.Nonnull;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decides when to poll each run, runs are kept on a hashed timing wheel by their external id.
+ * A run is polled often right after it started or after its status changed, and less often
+ * when nothing changed for a while. Runs which are only waiting for input, with no other parallel branch
+ * running, are only checked for the change of their input, see {@link #waitForInput(String, String)}.
+ */
+class RunPollScheduler {
+    static final long TICK_MS = 1000;
+    static final long MIN_INTERVAL = TimeUnit.SECONDS.toMillis(2);
+    static final long MAX_INTERVAL = TimeUnit.SECONDS.toMillis(30);
+    static final long INPUT_CHECK_INTERVAL = TimeUnit.SECONDS.toMillis(10);
+
+    private static final int WHEEL_SIZE = 64;
+
+    private final Map<String, Task> tasks = new ConcurrentHashMap<>();
+    private final List<Set<Task>> wheel = new ArrayList<>(WHEEL_SIZE);
+    private long currentTick;
+    private volatile int lastDueCount;
+
+    RunPollScheduler() {
+        for (int i = 0; i < WHEEL_SIZE; i++) {
+            wheel.add(new HashSet<>());
+        }
+    }
+
+    /**
+     * Poll the run soon with the shortest interval, it's used when the run started
+     * @param runId external id of run
+     */
+    void start(@Nonnull String runId) {
+        Task task = tasks.computeIfAbsent(runId, Task::new);
+        synchronized (this) {
+            task.interval = MIN_INTERVAL;
+            task.inputFingerprint = null;
+            schedule(task, TICK_MS);
+        }
+    }
+
+    /**
+     * Same with {@link #start(String)}, but do nothing if the run is scheduled already
+     * @param runId external id of run
+     * @return true if the run was not scheduled
+     */
+    boolean startIfAbsent(@Nonnull String runId) {
+        if (tasks.containsKey(runId)) {
+            return false;
+        }
+        start(runId);
+        return true;
+    }
+
+    /**
+     * Schedule the next poll after a poll
+     * @param runId external id of run
+     * @param changed whether the status of run changed in the last poll
+     */
+    void pollAgain(@Nonnull String runId, boolean changed) {
+        Task task = tasks.get(runId);
+        if (task == null) {
+            return;
+        }
+
+        synchronized (this) {
+            task.inputFingerprint = null;
+            task.interval = changed ? MIN_INTERVAL : Math.min(task.interval * 2, MAX_INTERVAL);
+            schedule(task, task.interval);
+        }
+    }
+
+    /**
+     * Stop polling the run until its input changed
+     * @param runId external id of run
+     * @param inputFingerprint the fingerprint of pending inputs of run
+     */
+    void waitForInput(@Nonnull String runId, @Nonnull String inputFingerprint) {
+        Task task = tasks.get(runId);
+        if (task == null) {
+            return;
+        }
+
+        synchronized (this) {
+            task.inputFingerprint = inputFingerprint;
+            schedule(task, INPUT_CHECK_INTERVAL);
+        }
+    }
+
+    /**
+     * @param runId external id of run
+     * @return the fingerprint of pending inputs when the run is waiting for input, otherwise null
+     */
+    String getInputFingerprint(@Nonnull String runId) {
+        Task task = tasks.get(runId);
+        return task != null ? task.inputFingerprint : null;
+    }
+
+    void remove(@Nonnull String runId) {
+        Task task = tasks.remove(runId);
+        if (task == null) {
+            return;
+        }
+
+        synchronized (this) {
+            if (task.slot >= 0) {
+                wheel.get(task.slot).remove(task);
+                task.slot = -1;
+            }
+        }
+    }
+
+    boolean contains(String runId) {
+        return tasks.containsKey(runId);
+    }
+
+    /**
+     * Move the wheel one tick forward
+     * @return external id of the runs which are due in this tick
+     */
+    @Nonnull
+    synchronized List<String> tick() {
+        currentTick++;
+        Set<Task> bucket = wheel.get((int) (currentTick % WHEEL_SIZE));
+
+        List<String> due = new ArrayList<>();
+        bucket.removeIf(task -> {
+            if (task.rounds > 0) {
+                task.rounds--;
+                return false;
+            }
+
+            task.slot = -1;
+            due.add(task.runId);
+            return true;
+        });
+
+        lastDueCount = due.size();
+        return due;
+    }
+
+    /**
+     * @return the number of runs which were due in the last tick
+     */
+    int getLastDueCount() {
+        return lastDueCount;
+    }
+
+    int size() {
+        return tasks.size();
+    }
+
+    private void schedule(Task task, long delayMs) {
+        if (task.slot >= 0) {
+            wheel.get(task.slot).remove(task);
+            task.slot = -1;
+        }
+        // it was removed in the meantime
+        if (tasks.get(task.runId) != task) {
+            return;
+        }
+
+        long ticks = Math.max(1, (delayMs + TICK_MS - 1) / TICK_MS);
+        task.slot = (int) ((currentTick + ticks) % WHEEL_SIZE);
+        task.rounds = (ticks - 1) / WHEEL_SIZE;
+        wheel.get(task.slot).add(task);
+    }
+
+    private static class Task {
+        private final String runId;
+        private long interval = MIN_INTERVAL;
+        private int slot = -1;
+        private long rounds;
+        private volatile String inputFingerprint;
+
+        Task(String runId) {
+            this.runId = runId;
+        }
+    }
+}
@@ -0,0 +1,117 @@
+/**
+ * Copyright (C) 2018 Alauda.io
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.alauda.jenkins.devops.sync.listener;
+
+import hudson.Util;
+import hudson.model.Run;
+import org.jenkinsci.plugins.workflow.job.WorkflowRun;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The latest stages and parallel branches of runs with their edges, it's the same tree which the status sync
+ * extracted for the stages annotation, see {@link StageExtractor}.
+ * The JSON and its ETag are computed once per update, no matter how many clients are reading it.
+ * Runs which are not synced recently are loaded on demand.
+ */
+public class RunStatusCache {
+    private static final int MAX_ENTRIES = 500;
+    private static final RunStatusCache instance = new RunStatusCache();
+
+    private final Map<String, Entry> entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+            return size() > MAX_ENTRIES;
+        }
+    };
+
+    private RunStatusCache() {}
+
+    public static RunStatusCache getInstance() {
+        return instance;
+    }
+
+    synchronized void put(@Nonnull String runId, @Nonnull PipelineSyncRunListener.PipelineJson pipeJson) {
+        entries.put(runId, new Entry(pipeJson));
+    }
+
+    synchronized void remove(@Nonnull String runId) {
+        entries.remove(runId);
+    }
+
+    /**
+     * @param run target run
+     * @return the status of run, null if it's not a Pipeline run
+     */
+    @CheckForNull
+    public Entry get(@Nonnull Run run) {
+        if (!(run instanceof WorkflowRun)) {
+            return null;
+        }
+
+        String runId = run.getExternalizableId();
+        synchronized (this) {
+            Entry entry = entries.get(runId);
+            if (entry != null) {
+                return entry;
+            }
+        }
+
+        Entry entry = new Entry(StageExtractor.extract((WorkflowRun) run));
+        synchronized (this) {
+            // the status sync might put a newer one in the meantime
+            return entries.putIfAbsent(runId, entry) == null ? entry : entries.get(runId);
+        }
+    }
+
+    public static class Entry {
+        private final PipelineSyncRunListener.PipelineJson pipeJson;
+        private byte[] json;
+        private String etag;
+
+        Entry(PipelineSyncRunListener.PipelineJson pipeJson) {
+            this.pipeJson = pipeJson;
+        }
+
+        @CheckForNull
+        public synchronized byte[] getJson() {
+            serialize();
+            return json;
+        }
+
+        @CheckForNull
+        public synchronized String getEtag() {
+            serialize();
+            return etag;
+        }
+
+        private void serialize() {
+            if (json != null) {
+                return;
+            }
+
+            String text = StatusJsonSerializer.toStagesJson(pipeJson);
+            if (text != null) {
+                json = text.getBytes(StandardCharsets.UTF_8);
+                etag = "\"" + Util.getDigestOf(text) + "\"";
+            }
+        }
+    }
+}
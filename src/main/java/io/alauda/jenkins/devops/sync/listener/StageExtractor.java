@@ -0,0 +1,399 @@
+/**
+ * Copyright (C) 2018 Alauda.io
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.alauda.jenkins.devops.sync.listener;
+
+import hudson.model.Action;
+import hudson.model.Result;
+import io.alauda.jenkins.devops.sync.constants.Constants;
+import org.jenkinsci.plugins.pipeline.modeldefinition.actions.ExecutionModelAction;
+import org.jenkinsci.plugins.pipeline.modeldefinition.ast.ModelASTStage;
+import org.jenkinsci.plugins.pipeline.modeldefinition.ast.ModelASTStages;
+import org.jenkinsci.plugins.workflow.actions.ErrorAction;
+import org.jenkinsci.plugins.workflow.actions.LabelAction;
+import org.jenkinsci.plugins.workflow.actions.TagsAction;
+import org.jenkinsci.plugins.workflow.actions.ThreadNameAction;
+import org.jenkinsci.plugins.workflow.actions.TimingAction;
+import org.jenkinsci.plugins.workflow.flow.FlowExecution;
+import org.jenkinsci.plugins.workflow.graph.BlockEndNode;
+import org.jenkinsci.plugins.workflow.graph.BlockStartNode;
+import org.jenkinsci.plugins.workflow.graph.FlowNode;
+import org.jenkinsci.plugins.workflow.graphanalysis.DepthFirstScanner;
+import org.jenkinsci.plugins.workflow.job.WorkflowRun;
+import org.jenkinsci.plugins.workflow.steps.FlowInterruptedException;
+import org.jenkinsci.plugins.workflow.support.actions.PauseAction;
+import org.jenkinsci.plugins.workflow.support.steps.input.InputAction;
+import org.jenkinsci.plugins.workflow.support.steps.input.InputStepExecution;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeoutException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Extracts the stages and parallel branches of a Pipeline run by walking its flow graph once.
+ * It produces the same stage model with the nodes of BlueOcean REST: stages, their edges, start time,
+ * durations, pause time, state and result, and the skipped stages of declarative Pipeline.
+ * The stages of a running declarative Pipeline which have not started yet are listed from its model,
+ * without state and result.
+ * <p>
+ * Only the top-level stages and the branches of their parallel step are listed,
+ * the pause time, pending inputs and warnings of nested steps are counted into the listed ones.
+ */
+final class StageExtractor {
+    private static final Logger LOGGER = Logger.getLogger(StageExtractor.class.getName());
+
+    // the tag and values of declarative Pipeline for the status of stages
+    private static final String STAGE_STATUS_TAG = "STAGE_STATUS";
+    private static final String SKIPPED_PREFIX = "SKIPPED_";
+    private static final String STATUS_UNSTABLE = "UNSTABLE";
+    private static final String STATUS_FAILED_AND_CONTINUED = "FAILED_AND_CONTINUED";
+    // added by the unstable and warnError steps since workflow-api 2.30, which is newer than ours
+    private static final String WARNING_ACTION_CLASS = "org.jenkinsci.plugins.workflow.actions.WarningAction";
+    // same format with the start time of BlueOcean
+    private static final String DATE_FORMAT = "yyyy-MM-dd'T'HH:mm:ss.SSSZ";
+    // the stages which have not started have no flow node
+    private static final String FUTURE_STAGE_ID_PREFIX = "future-";
+
+    private StageExtractor() {}
+
+    @Nonnull
+    static PipelineSyncRunListener.PipelineJson extract(@Nonnull WorkflowRun run) {
+        PipelineSyncRunListener.PipelineJson pipeJson = new PipelineSyncRunListener.PipelineJson();
+        FlowExecution execution = run.getExecution();
+        if (execution == null) {
+            return pipeJson;
+        }
+
+        List<FlowNode> nodes = new ArrayList<>(new DepthFirstScanner().allNodes(execution));
+        pipeJson.flowFingerprint = flowFingerprint(execution, nodes.size());
+        // parents always have smaller ids than their children
+        nodes.sort(Comparator.comparingLong(StageExtractor::idOf));
+
+        Map<String, String> enclosing = new HashMap<>();
+        Map<String, String> owners = new HashMap<>();
+        Map<String, BlockEndNode> ends = new HashMap<>();
+        Map<String, Block> blocks = new LinkedHashMap<>();
+        Set<String> pendingInputs = getPendingInputNodeIds(run);
+        for (FlowNode node : nodes) {
+            String enclosingId = findEnclosingId(node, enclosing);
+            enclosing.put(node.getId(), enclosingId);
+            if (node instanceof BlockEndNode) {
+                ends.put(((BlockEndNode) node).getStartNode().getId(), (BlockEndNode) node);
+            }
+
+            // the nearest listed stage or branch which encloses this node
+            String ownerId = null;
+            if (enclosingId != null) {
+                ownerId = blocks.containsKey(enclosingId) ? enclosingId : owners.get(enclosingId);
+            }
+            owners.put(node.getId(), ownerId);
+
+            if (node instanceof BlockStartNode && node.getAction(LabelAction.class) != null) {
+                Block owner = ownerId != null ? blocks.get(ownerId) : null;
+                boolean branch = node.getAction(ThreadNameAction.class) != null;
+                // top-level stages, and the parallel branches of them or at the top level
+                if ((!branch && owner == null) || (branch && (owner == null || (owner.parent == null && !owner.branch)))) {
+                    Block block = new Block(node, branch, owner);
+                    blocks.put(node.getId(), block);
+                    if (owner != null) {
+                        owner.branches.add(block);
+                    }
+                    continue;
+                }
+            }
+
+            long pause = PauseAction.getPauseDuration(node);
+            boolean paused = PauseAction.isPaused(node) || pendingInputs.contains(node.getId());
+            Result warning = getWarning(node);
+            for (Block owner = ownerId != null ? blocks.get(ownerId) : null; owner != null; owner = owner.parent) {
+                owner.pauseMillis += pause;
+                owner.paused |= paused;
+                if (warning != null) {
+                    owner.warning = owner.warning == null ? warning : owner.warning.combine(warning);
+                }
+            }
+        }
+
+        List<Block> sequence = new ArrayList<>();
+        for (Block block : blocks.values()) {
+            if (block.parent == null) {
+                sequence.add(block);
+            }
+        }
+        if (run.isBuilding()) {
+            addFutureStages(run, sequence);
+        }
+
+        long now = System.currentTimeMillis();
+        for (int i = 0; i < sequence.size(); i++) {
+            Block block = sequence.get(i);
+            Block next = i + 1 < sequence.size() ? sequence.get(i + 1) : null;
+
+            List<PipelineSyncRunListener.PipelineEdge> edges = new ArrayList<>();
+            if (block.branches.isEmpty()) {
+                addEdge(edges, next);
+            } else {
+                block.branches.forEach(branch -> addEdge(edges, branch));
+            }
+            pipeJson.addStage(toStage(run, block, ends, edges, now));
+
+            for (Block branch : block.branches) {
+                List<PipelineSyncRunListener.PipelineEdge> branchEdges = new ArrayList<>();
+                addEdge(branchEdges, next);
+                pipeJson.addStage(toStage(run, branch, ends, branchEdges, now));
+            }
+        }
+        return pipeJson;
+    }
+
+    /**
+     * Append the top-level stages of declarative model which have not started yet, they are matched by name
+     */
+    private static void addFutureStages(WorkflowRun run, List<Block> sequence) {
+        ExecutionModelAction model = run.getAction(ExecutionModelAction.class);
+        ModelASTStages stages = model != null ? model.getStages() : null;
+        if (stages == null || stages.getStages() == null) {
+            return;
+        }
+
+        Set<String> started = new HashSet<>();
+        sequence.forEach(block -> started.add(block.name));
+        for (ModelASTStage stage : stages.getStages()) {
+            if (started.contains(stage.getName())) {
+                continue;
+            }
+
+            Block block = new Block(FUTURE_STAGE_ID_PREFIX + sequence.size(), stage.getName(), false, null);
+            ModelASTStages parallel = stage.getParallel();
+            if (parallel != null && parallel.getStages() != null) {
+                for (ModelASTStage branch : parallel.getStages()) {
+                    block.branches.add(new Block(block.id + "-" + block.branches.size(), branch.getName(), true, block));
+                }
+            }
+            sequence.add(block);
+        }
+    }
+
+    private static PipelineSyncRunListener.PipelineStage toStage(WorkflowRun run, Block block, Map<String, BlockEndNode> ends,
+                                                                 List<PipelineSyncRunListener.PipelineEdge> edges, long now) {
+        FlowNode start = block.start;
+        if (start == null) {
+            // same with the future nodes of BlueOcean
+            return new PipelineSyncRunListener.PipelineStage(block.id, block.name, null, null, null,
+                    null, null, edges);
+        }
+
+        BlockEndNode end = ends.get(start.getId());
+
+        String state;
+        String result;
+        TagsAction tags = start.getAction(TagsAction.class);
+        String stageStatus = tags != null ? tags.getTagValue(STAGE_STATUS_TAG) : null;
+        if (stageStatus != null && stageStatus.startsWith(SKIPPED_PREFIX)) {
+            state = Constants.JOB_STATUS_SKIPPED;
+            result = Constants.JOB_STATUS_NOT_BUILT;
+        } else if (end != null) {
+            state = Constants.JOB_STATUS_FINISHED;
+            result = toResult(end, stageStatus, block.warning);
+        } else if (run.isBuilding() && block.paused) {
+            state = Constants.JOB_STATUS_PAUSED;
+            result = Constants.JOB_STATUS_UNKNOWN;
+        } else if (run.isBuilding()) {
+            state = Constants.JOB_STATUS_RUNNING;
+            result = Constants.JOB_STATUS_UNKNOWN;
+        } else {
+            // the run is over but the block is not closed, e.g. Jenkins was killed
+            Result runResult = run.getResult();
+            state = Constants.JOB_STATUS_FINISHED;
+            result = runResult != null ? runResult.toString() : Constants.JOB_STATUS_UNKNOWN;
+        }
+
+        long startTime = TimingAction.getStartTime(start);
+        Long duration = null;
+        if (startTime > 0) {
+            long endTime = end != null ? TimingAction.getStartTime(end) : now;
+            duration = Math.max(0, endTime - startTime);
+        }
+
+        return new PipelineSyncRunListener.PipelineStage(block.id, block.name, state, result, startTime > 0 ? new SimpleDateFormat(DATE_FORMAT).format(new Date(startTime)) : null,
+                duration, block.pauseMillis, edges);
+    }
+
+    private static String toResult(BlockEndNode end, @CheckForNull String stageStatus, @CheckForNull Result warning) {
+        ErrorAction error = end.getAction(ErrorAction.class);
+        Result result;
+        if (error != null) {
+            result = error.getError() instanceof FlowInterruptedException ? Result.ABORTED : Result.FAILURE;
+        } else if (STATUS_FAILED_AND_CONTINUED.equals(stageStatus)) {
+            result = Result.FAILURE;
+        } else if (STATUS_UNSTABLE.equals(stageStatus)) {
+            result = Result.UNSTABLE;
+        } else {
+            result = Result.SUCCESS;
+        }
+
+        if (warning != null) {
+            result = result.combine(warning);
+        }
+        return result.toString();
+    }
+
+    /**
+     * @return text which changes whenever a step is started or done
+     */
+    private static String flowFingerprint(FlowExecution execution, int nodeCount) {
+        StringBuilder builder = new StringBuilder().append(nodeCount).append(':');
+        for (FlowNode head : execution.getCurrentHeads()) {
+            builder.append(head.getId()).append(',');
+        }
+        return builder.toString();
+    }
+
+    /**
+     * @return ids of the nodes which are waiting for input
+     */
+    @Nonnull
+    private static Set<String> getPendingInputNodeIds(WorkflowRun run) {
+        Set<String> ids = new HashSet<>();
+        InputAction inputAction = run.getAction(InputAction.class);
+        if (inputAction == null) {
+            return ids;
+        }
+
+        try {
+            List<InputStepExecution> executions = inputAction.getExecutions();
+            if (executions == null) {
+                return ids;
+            }
+
+            for (InputStepExecution execution : executions) {
+                FlowNode node = execution.getContext().get(FlowNode.class);
+                if (node != null) {
+                    ids.add(node.getId());
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (IOException | TimeoutException e) {
+            LOGGER.log(Level.FINE, "Failed to get the pending inputs of " + run.getFullDisplayName(), e);
+        }
+        return ids;
+    }
+
+    /**
+     * @return result of the WarningAction on the node, it's looked up by name since our workflow-api doesn't have it
+     */
+    @CheckForNull
+    private static Result getWarning(FlowNode node) {
+        for (Action action : node.getActions()) {
+            if (!WARNING_ACTION_CLASS.equals(action.getClass().getName())) {
+                continue;
+            }
+
+            try {
+                Method getResult = action.getClass().getMethod("getResult");
+                Object result = getResult.invoke(action);
+                return result instanceof Result ? (Result) result : null;
+            } catch (ReflectiveOperationException e) {
+                LOGGER.log(Level.FINE, "Failed to get the result of " + action, e);
+                return null;
+            }
+        }
+        return null;
+    }
+
+    private static void addEdge(List<PipelineSyncRunListener.PipelineEdge> edges, @CheckForNull Block target) {
+        if (target != null) {
+            edges.add(new PipelineSyncRunListener.PipelineEdge(target.id));
+        }
+    }
+
+    /**
+     * @return id of the block start node which directly encloses the node
+     */
+    @CheckForNull
+    private static String findEnclosingId(FlowNode node, Map<String, String> enclosing) {
+        if (node instanceof BlockEndNode) {
+            return enclosing.get(((BlockEndNode) node).getStartNode().getId());
+        }
+
+        List<FlowNode> parents = node.getParents();
+        if (parents.isEmpty()) {
+            return null;
+        }
+
+        FlowNode parent = parents.get(0);
+        if (parent instanceof BlockStartNode) {
+            return parent.getId();
+        }
+        // the sibling after a block or an atom step
+        return enclosing.get(parent.getId());
+    }
+
+    private static long idOf(FlowNode node) {
+        try {
+            return Long.parseLong(node.getId());
+        } catch (NumberFormatException e) {
+            return Long.MAX_VALUE;
+        }
+    }
+
+    private static class Block {
+        private final String id;
+        private final String name;
+        // null if it has not started yet
+        private final FlowNode start;
+        private final boolean branch;
+        private final Block parent;
+        private final Collection<Block> branches = new ArrayList<>();
+        private long pauseMillis;
+        // some step in it is waiting for input or paused
+        private boolean paused;
+        // the worst result of the warnings in it
+        private Result warning;
+
+        Block(FlowNode start, boolean branch, Block parent) {
+            LabelAction label = start.getAction(LabelAction.class);
+            this.id = start.getId();
+            this.name = label != null ? label.getDisplayName() : start.getDisplayName();
+            this.start = start;
+            this.branch = branch;
+            this.parent = parent;
+        }
+
+        Block(String id, String name, boolean branch, Block parent) {
+            this.id = id;
+            this.name = name;
+            this.start = null;
+            this.branch = branch;
+            this.parent = parent;
+        }
+    }
+}
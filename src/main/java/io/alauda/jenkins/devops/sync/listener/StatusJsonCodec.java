@@ -0,0 +1,191 @@
+/**
+ * Copyright (C) 2018 Alauda.io
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.alauda.jenkins.devops.sync.listener;
+
+import com.cloudbees.workflow.rest.external.AtomFlowNodeExt;
+import com.cloudbees.workflow.rest.external.ErrorExt;
+import com.cloudbees.workflow.rest.external.RunExt;
+import com.cloudbees.workflow.rest.external.StageNodeExt;
+import com.cloudbees.workflow.rest.external.StatusExt;
+import com.fasterxml.jackson.core.JsonGenerator;
+
+import javax.annotation.CheckForNull;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Compact representation of the status and stages JSON annotations. Compared with the full one,
+ * the links which could be derived from the URL annotations and the empty fields are dropped.
+ * Payloads larger than {@link #GZIP_THRESHOLD} are compressed and written as
+ * {@link #GZIP_PREFIX} followed by the base64 of the gzip data.
+ * <p>
+ * The Pipeline carries {@link #FORMAT_VERSION} in annotation
+ * {@link io.alauda.jenkins.devops.sync.constants.Constants#ALAUDA_DEVOPS_ANNOTATIONS_JENKINS_STATUS_FORMAT}
+ * when this format is used, there is no such annotation for the full format.
+ */
+class StatusJsonCodec {
+    private static final Logger LOGGER = Logger.getLogger(StatusJsonCodec.class.getName());
+
+    static final String FORMAT_VERSION = "v2";
+    static final String GZIP_PREFIX = "gzip;base64,";
+    static final int GZIP_THRESHOLD = 16 * 1024;
+
+    private StatusJsonCodec() {}
+
+    @CheckForNull
+    static String encodeRun(RunExt runExt) {
+        ByteArrayOutputStream out = toRunJson(runExt);
+        return out == null ? null : encode(out);
+    }
+
+    /**
+     * @return the compact JSON of run without compression
+     */
+    @CheckForNull
+    static ByteArrayOutputStream toRunJson(RunExt runExt) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (JsonGenerator gen = StatusJsonSerializer.getFactory().createGenerator(out)) {
+            gen.writeStartObject();
+            gen.writeStringField("id", runExt.getId());
+            gen.writeStringField("name", runExt.getName());
+            writeStatus(gen, runExt.getStatus());
+            gen.writeNumberField("startTimeMillis", runExt.getStartTimeMillis());
+            gen.writeNumberField("endTimeMillis", runExt.getEndTimeMillis());
+            gen.writeNumberField("durationMillis", runExt.getDurationMillis());
+            gen.writeNumberField("queueDurationMillis", runExt.getQueueDurationMillis());
+            gen.writeNumberField("pauseDurationMillis", runExt.getPauseDurationMillis());
+
+            gen.writeArrayFieldStart("stages");
+            for (StageNodeExt stage : runExt.getStages()) {
+                gen.writeStartObject();
+                gen.writeStringField("id", stage.getId());
+                gen.writeStringField("name", stage.getName());
+                writeStatus(gen, stage.getStatus());
+                gen.writeNumberField("startTimeMillis", stage.getStartTimeMillis());
+                gen.writeNumberField("durationMillis", stage.getDurationMillis());
+                gen.writeNumberField("pauseDurationMillis", stage.getPauseDurationMillis());
+                writeError(gen, stage.getError());
+
+                gen.writeArrayFieldStart("nodes");
+                for (AtomFlowNodeExt node : stage.getStageFlowNodes()) {
+                    gen.writeStartObject();
+                    gen.writeStringField("id", node.getId());
+                    gen.writeStringField("name", node.getName());
+                    writeStatus(gen, node.getStatus());
+                    if (node.getParameterDescription() != null) {
+                        gen.writeStringField("parameterDescription", node.getParameterDescription());
+                    }
+                    gen.writeNumberField("startTimeMillis", node.getStartTimeMillis());
+                    gen.writeNumberField("durationMillis", node.getDurationMillis());
+                    writeError(gen, node.getError());
+                    gen.writeEndObject();
+                }
+                gen.writeEndArray();
+                gen.writeEndObject();
+            }
+            gen.writeEndArray();
+            gen.writeEndObject();
+        } catch (IOException e) {
+            LOGGER.log(Level.SEVERE, "Failed to serialize compact status. " + e, e);
+            return null;
+        }
+        return out;
+    }
+
+    @CheckForNull
+    static String encodeStages(PipelineSyncRunListener.PipelineJson pipeJson) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (JsonGenerator gen = StatusJsonSerializer.getFactory().createGenerator(out)) {
+            gen.writeStartObject();
+            if (pipeJson.start_stage_id != null) {
+                gen.writeStringField("start_stage_id", pipeJson.start_stage_id);
+            }
+
+            gen.writeArrayFieldStart("stages");
+            for (PipelineSyncRunListener.PipelineStage stage : pipeJson.stages) {
+                gen.writeStartObject();
+                gen.writeStringField("id", stage.id);
+                gen.writeStringField("name", stage.name);
+                gen.writeStringField("status", stage.status);
+                gen.writeStringField("result", stage.result);
+                if (stage.start_time != null) {
+                    gen.writeStringField("start_time", stage.start_time);
+                }
+                if (stage.duration_millis != null) {
+                    gen.writeNumberField("duration_millis", stage.duration_millis);
+                }
+                if (stage.pause_duration_millis != null) {
+                    gen.writeNumberField("pause_duration_millis", stage.pause_duration_millis);
+                }
+
+                // only the id of edges is useful
+                if (stage.edges != null && !stage.edges.isEmpty()) {
+                    gen.writeArrayFieldStart("edges");
+                    for (PipelineSyncRunListener.PipelineEdge edge : stage.edges) {
+                        gen.writeString(edge.id);
+                    }
+                    gen.writeEndArray();
+                }
+                gen.writeEndObject();
+            }
+            gen.writeEndArray();
+            gen.writeEndObject();
+        } catch (IOException e) {
+            LOGGER.log(Level.SEVERE, "Failed to serialize compact stages. " + e, e);
+            return null;
+        }
+
+        return encode(out);
+    }
+
+    private static void writeStatus(JsonGenerator gen, StatusExt status) throws IOException {
+        if (status != null) {
+            gen.writeStringField("status", status.name());
+        }
+    }
+
+    private static void writeError(JsonGenerator gen, ErrorExt error) throws IOException {
+        if (error == null) {
+            return;
+        }
+
+        gen.writeObjectFieldStart("error");
+        gen.writeStringField("message", error.getMessage());
+        gen.writeStringField("type", error.getType());
+        gen.writeEndObject();
+    }
+
+    private static String encode(ByteArrayOutputStream json) {
+        if (json.size() <= GZIP_THRESHOLD) {
+            return new String(json.toByteArray(), StandardCharsets.UTF_8);
+        }
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(json.size() / 4);
+        try (OutputStream out = new GZIPOutputStream(bytes)) {
+            json.writeTo(out);
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Failed to compress compact status, use the plain one", e);
+            return new String(json.toByteArray(), StandardCharsets.UTF_8);
+        }
+        return GZIP_PREFIX + Base64.getEncoder().encodeToString(bytes.toByteArray());
+    }
+}
@@ -0,0 +1,140 @@
+/**
+ * Copyright (C) 2018 Alauda.io
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.alauda.jenkins.devops.sync.listener;
+
+import com.cloudbees.workflow.rest.external.PendingInputActionsExt;
+import com.cloudbees.workflow.rest.external.RunExt;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.fasterxml.jackson.databind.SerializationFeature;
+
+import javax.annotation.CheckForNull;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Serializes the status of runs. The bean metadata is introspected only once, all the writers
+ * are thread-safe and shared by all runs. Stage lists are written by {@link JsonGenerator} directly
+ * instead of building a tree first.
+ */
+final class StatusJsonSerializer {
+    private static final Logger LOGGER = Logger.getLogger(StatusJsonSerializer.class.getName());
+
+    private static final ObjectMapper MAPPER = new ObjectMapper()
+            .disable(SerializationFeature.FAIL_ON_EMPTY_BEANS)
+            .disable(SerializationFeature.FAIL_ON_SELF_REFERENCES);
+
+    private static final ObjectWriter RUN_WRITER = MAPPER.writerFor(RunExt.class);
+    private static final ObjectWriter PENDING_INPUTS_WRITER =
+            MAPPER.writerFor(new TypeReference<List<PendingInputActionsExt>>() {});
+
+    private StatusJsonSerializer() {}
+
+    static JsonFactory getFactory() {
+        return MAPPER.getFactory();
+    }
+
+    @CheckForNull
+    static String toRunJson(RunExt runExt) {
+        try {
+            return RUN_WRITER.writeValueAsString(runExt);
+        } catch (IOException e) {
+            LOGGER.log(Level.SEVERE, "Failed to serialize workflow run. " + e, e);
+            return null;
+        }
+    }
+
+    @CheckForNull
+    static String toPendingInputsJson(List<PendingInputActionsExt> pendingInputActions) {
+        try {
+            return PENDING_INPUTS_WRITER.writeValueAsString(pendingInputActions);
+        } catch (IOException e) {
+            LOGGER.log(Level.SEVERE, "Failed to serialize pending actions. " + e, e);
+            return null;
+        }
+    }
+
+    @CheckForNull
+    static String toStagesJson(PipelineSyncRunListener.PipelineJson pipeJson) {
+        StringWriter writer = new StringWriter(256 + pipeJson.stages.size() * 256);
+        try {
+            writeStages(pipeJson, writer);
+        } catch (IOException e) {
+            LOGGER.log(Level.SEVERE, "Failed to serialize blueJson run. " + e, e);
+            return null;
+        }
+        return writer.toString();
+    }
+
+    static void writeStages(PipelineSyncRunListener.PipelineJson pipeJson, Writer out) throws IOException {
+        try (JsonGenerator gen = getFactory().createGenerator(out)) {
+            writeStages(pipeJson, gen);
+        }
+    }
+
+    /**
+     * Same layout with the Jackson bean serialization of {@link PipelineSyncRunListener.PipelineJson}
+     */
+    private static void writeStages(PipelineSyncRunListener.PipelineJson pipeJson, JsonGenerator gen) throws IOException {
+        gen.writeStartObject();
+        gen.writeStringField("start_stage_id", pipeJson.start_stage_id);
+        gen.writeArrayFieldStart("stages");
+        for (PipelineSyncRunListener.PipelineStage stage : pipeJson.stages) {
+            gen.writeStartObject();
+            gen.writeStringField("id", stage.id);
+            gen.writeStringField("name", stage.name);
+            gen.writeStringField("status", stage.status);
+            gen.writeStringField("result", stage.result);
+            gen.writeStringField("start_time", stage.start_time);
+            writeNumberField(gen, "duration_millis", stage.duration_millis);
+            writeNumberField(gen, "pause_duration_millis", stage.pause_duration_millis);
+            writeEdges(gen, stage.edges);
+            gen.writeEndObject();
+        }
+        gen.writeEndArray();
+        gen.writeEndObject();
+    }
+
+    private static void writeEdges(JsonGenerator gen, List<PipelineSyncRunListener.PipelineEdge> edges) throws IOException {
+        if (edges == null) {
+            gen.writeNullField("edges");
+            return;
+        }
+
+        gen.writeArrayFieldStart("edges");
+        for (PipelineSyncRunListener.PipelineEdge edge : edges) {
+            gen.writeStartObject();
+            gen.writeStringField("id", edge.id);
+            gen.writeEndObject();
+        }
+        gen.writeEndArray();
+    }
+
+    private static void writeNumberField(JsonGenerator gen, String name, Long value) throws IOException {
+        if (value == null) {
+            gen.writeNullField(name);
+        } else {
+            gen.writeNumberField(name, value);
+        }
+    }
+}
@@ -528,31 +528,9 @@ public abstract class AlaudaUtils {
 
     public static void updatePipelinePhase(Pipeline pipeline, String phase) {
         logger.log(FINE, "setting pipeline to {0} in namespace {1}/{2}", new Object[]{phase, pipeline.getMetadata().getNamespace(), pipeline.getMetadata().getName()});
-        AlaudaDevOpsClient client = getAuthenticatedAlaudaClient();
-        if(client == null) {
-            logger.severe("Can't found alauda client.");
-            return;
-        }
-
-        String namespace = pipeline.getMetadata().getNamespace();
-        String name = pipeline.getMetadata().getName();
-        Pipeline pipe = client.pipelines().inNamespace(namespace).withName(name).get();
-        if (pipe == null) {
-            logger.warning(() -> "Can't find Pipeline by namespace: " + namespace + ", name: " + name);
-            return;
-        }
-
-        PipelineStatus stats = pipe.getStatus();
-        if (stats == null) {
-            stats = new PipelineStatusBuilder().build();
-        }
-        stats.setPhase(phase);
-        pipe.setStatus(stats);
 
-        client.pipelines()
-                .inNamespace(namespace)
-                .withName(name)
-                .patch(pipe);
+        // it will be kept and sent later if the API server is not reachable
+        PipelineOutbox.getInstance().updatePhase(pipeline, phase);
     }
 
     /**
@@ -617,6 +595,21 @@ public abstract class AlaudaUtils {
         return pipelineStatus.getPhase().equals(PENDING);
     }
 
+    /**
+     * @param pipeline target Pipeline
+     * @return true if it's new, or it's still held by {@link io.alauda.jenkins.devops.sync.PipelineTriggerScheduler}
+     */
+    public static boolean isWaitingForTrigger(Pipeline pipeline) {
+        PipelineStatus status = pipeline.getStatus();
+        if (status == null || isNew(status)) {
+            return true;
+        }
+
+        Map<String, String> annotations = pipeline.getMetadata().getAnnotations();
+        return QUEUED.equals(status.getPhase()) && annotations != null
+                && annotations.containsKey(Constants.ALAUDA_DEVOPS_ANNOTATIONS_JENKINS_TRIGGER_POSITION);
+    }
+
     public static boolean isCancelled(PipelineStatus status) {
       return status != null && status.getAborted();
     }
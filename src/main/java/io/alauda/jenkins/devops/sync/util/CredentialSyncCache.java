@@ -0,0 +1,80 @@
+package io.alauda.jenkins.devops.sync.util;
+
+import io.alauda.kubernetes.api.model.ObjectMeta;
+import io.alauda.kubernetes.api.model.Secret;
+
+import javax.annotation.CheckForNull;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Remembers which revision of a Secret has been written into the credentials store,
+ * so that we don't need to rewrite the credential when the Secret is not changed.
+ */
+public class CredentialSyncCache {
+    private static final CredentialSyncCache INSTANCE = new CredentialSyncCache();
+
+    private final Map<NamespaceName, SyncedSecret> syncedSecrets = new ConcurrentHashMap<>();
+
+    private CredentialSyncCache() {}
+
+    public static CredentialSyncCache getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * @param secret Secret from the API server
+     * @return true if the same uid and resourceVersion of this Secret was synced already
+     */
+    public boolean isSynced(Secret secret) {
+        ObjectMeta meta = secret.getMetadata();
+        SyncedSecret synced = get(meta.getNamespace(), meta.getName());
+
+        return synced != null && synced.uid != null
+                && synced.uid.equals(meta.getUid())
+                && synced.resourceVersion != null
+                && synced.resourceVersion.equals(meta.getResourceVersion());
+    }
+
+    @CheckForNull
+    public String getCredentialId(String namespace, String name) {
+        SyncedSecret synced = get(namespace, name);
+        return synced != null ? synced.credentialId : null;
+    }
+
+    public void synced(Secret secret, String credentialId) {
+        ObjectMeta meta = secret.getMetadata();
+        syncedSecrets.put(new NamespaceName(meta.getNamespace(), meta.getName()),
+                new SyncedSecret(meta.getUid(), meta.getResourceVersion(), credentialId));
+    }
+
+    public void invalidate(String namespace, String name) {
+        if (namespace == null || name == null) {
+            return;
+        }
+        syncedSecrets.remove(new NamespaceName(namespace, name));
+    }
+
+    public void clear() {
+        syncedSecrets.clear();
+    }
+
+    private SyncedSecret get(String namespace, String name) {
+        if (namespace == null || name == null) {
+            return null;
+        }
+        return syncedSecrets.get(new NamespaceName(namespace, name));
+    }
+
+    private static class SyncedSecret {
+        private final String uid;
+        private final String resourceVersion;
+        private final String credentialId;
+
+        SyncedSecret(String uid, String resourceVersion, String credentialId) {
+            this.uid = uid;
+            this.resourceVersion = resourceVersion;
+            this.credentialId = credentialId;
+        }
+    }
+}
@@ -0,0 +1,166 @@
+package io.alauda.jenkins.devops.sync.util;
+
+import com.cloudbees.plugins.credentials.CredentialsStore;
+import com.cloudbees.plugins.credentials.SystemCredentialsProvider;
+import hudson.BulkChange;
+import hudson.model.ModelObject;
+import hudson.model.Saveable;
+import hudson.security.ACL;
+import org.acegisecurity.context.SecurityContext;
+import org.acegisecurity.context.SecurityContextHolder;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Groups the credential mutations of current thread, so that every touched {@link CredentialsStore}
+ * is persisted once per batch instead of once per credential. Mutations are wrapped in {@link BulkChange}
+ * and flushed when the batch is closed, or when the batch has been open longer than the flush interval.
+ * <p>
+ * Usage:
+ * <pre>
+ * try (CredentialsBatch batch = CredentialsBatch.open()) {
+ *     CredentialsUtils.upsertCredential(secret);
+ * }
+ * </pre>
+ * Without an open batch, every mutation is saved immediately as before.
+ */
+public final class CredentialsBatch implements AutoCloseable {
+    private static final Logger LOGGER = Logger.getLogger(CredentialsBatch.class.getName());
+
+    static final long DEFAULT_FLUSH_INTERVAL = TimeUnit.SECONDS.toMillis(10);
+
+    private static final ThreadLocal<CredentialsBatch> CURRENT = new ThreadLocal<>();
+
+    private final CredentialsBatch parent;
+    private final long flushInterval;
+    private final Set<CredentialsStore> stores = new HashSet<>();
+    private final Deque<BulkChange> bulkChanges = new ArrayDeque<>();
+    private long openedAt;
+    private int mutations;
+
+    private CredentialsBatch(CredentialsBatch parent, long flushInterval) {
+        this.parent = parent;
+        this.flushInterval = flushInterval;
+        this.openedAt = System.currentTimeMillis();
+    }
+
+    public static CredentialsBatch open() {
+        return open(DEFAULT_FLUSH_INTERVAL);
+    }
+
+    public static CredentialsBatch open(long flushInterval) {
+        CredentialsBatch batch = new CredentialsBatch(CURRENT.get(), flushInterval);
+        CURRENT.set(batch);
+        return batch;
+    }
+
+    /**
+     * Must be called before mutating the store, it makes the mutation part of current batch if there's one
+     * @param store target credentials store
+     */
+    static void beforeChange(CredentialsStore store) {
+        CredentialsBatch batch = CURRENT.get();
+        if (batch != null) {
+            batch.enlist(store);
+        }
+    }
+
+    /**
+     * Must be called after mutating the store, it saves the store immediately if there's no batch
+     * @param store target credentials store
+     * @throws IOException in case of save failure
+     */
+    static void afterChange(CredentialsStore store) throws IOException {
+        CredentialsBatch batch = CURRENT.get();
+        if (batch == null) {
+            store.save();
+            return;
+        }
+
+        batch.mutations++;
+        if (System.currentTimeMillis() - batch.openedAt > batch.flushInterval) {
+            batch.flush();
+        }
+    }
+
+    private void enlist(CredentialsStore store) {
+        if (!stores.add(store)) {
+            return;
+        }
+
+        // both the store and the object which really holds the credentials might save on every mutation
+        bulkChanges.push(new BulkChange(store));
+        if (store.getProvider() instanceof SystemCredentialsProvider.ProviderImpl) {
+            bulkChanges.push(new BulkChange(SystemCredentialsProvider.getInstance()));
+        } else {
+            ModelObject context = store.getContext();
+            if (context instanceof Saveable) {
+                bulkChanges.push(new BulkChange((Saveable) context));
+            }
+        }
+    }
+
+    /**
+     * Persist all touched stores, the batch stays open for further mutations
+     * @throws IOException in case of save failure
+     */
+    public void flush() throws IOException {
+        IOException failure = null;
+
+        final SecurityContext previousContext = ACL.impersonate(ACL.SYSTEM);
+        CredentialsIndex.selfSaving(true);
+        try {
+            // BulkChange works as stack, commit in the reverse order
+            while (!bulkChanges.isEmpty()) {
+                BulkChange bulkChange = bulkChanges.pop();
+                try {
+                    bulkChange.commit();
+                } catch (IOException e) {
+                    LOGGER.log(Level.WARNING, "Failed to save credentials", e);
+                    if (failure == null) {
+                        failure = e;
+                    }
+                }
+            }
+        } finally {
+            CredentialsIndex.selfSaving(false);
+            SecurityContextHolder.setContext(previousContext);
+        }
+
+        if (mutations > 0) {
+            LOGGER.fine(String.format("Flushed %d credential mutations in %d stores", mutations, stores.size()));
+        }
+
+        stores.clear();
+        mutations = 0;
+        openedAt = System.currentTimeMillis();
+
+        if (failure != null) {
+            // the synced revisions are not trustworthy anymore
+            CredentialSyncCache.getInstance().clear();
+            throw failure;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            flush();
+        } finally {
+            if (CURRENT.get() == this) {
+                if (parent == null) {
+                    CURRENT.remove();
+                } else {
+                    CURRENT.set(parent);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,286 @@
+/**
+ * Copyright (C) 2018 Alauda.io
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.alauda.jenkins.devops.sync.util;
+
+import com.cloudbees.hudson.plugins.folder.AbstractFolder;
+import com.cloudbees.hudson.plugins.folder.properties.FolderCredentialsProvider;
+import com.cloudbees.plugins.credentials.Credentials;
+import com.cloudbees.plugins.credentials.CredentialsMatchers;
+import com.cloudbees.plugins.credentials.CredentialsProvider;
+import com.cloudbees.plugins.credentials.CredentialsStore;
+import com.cloudbees.plugins.credentials.SystemCredentialsProvider;
+import com.cloudbees.plugins.credentials.common.IdCredentials;
+import com.cloudbees.plugins.credentials.domains.Domain;
+import hudson.Extension;
+import hudson.XmlFile;
+import hudson.model.Item;
+import hudson.model.ItemGroup;
+import hudson.model.Saveable;
+import hudson.model.listeners.ItemListener;
+import hudson.model.listeners.SaveableListener;
+import hudson.security.ACL;
+import hudson.security.ACLContext;
+import jenkins.model.Jenkins;
+
+import javax.annotation.CheckForNull;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+/**
+ * Index of the credentials which visible to the namespace folders, keyed by credential id.
+ * Every namespace is scanned once, after that lookups are O(1). Our own mutations update the index
+ * directly, other changes of folders or global credentials are caught by {@link StoreListener}
+ * and drop the affected entries, they will be rebuilt on next lookup.
+ * <p>
+ * Only the stores of Jenkins and folders are indexed, we can't see the changes of other providers.
+ * If any other provider is enabled, the credentials are looked up on every miss.
+ */
+public class CredentialsIndex {
+    private static final Logger LOGGER = Logger.getLogger(CredentialsIndex.class.getName());
+
+    private static final CredentialsIndex INSTANCE = new CredentialsIndex();
+
+    // the key for the credentials of Jenkins level
+    private static final String GLOBAL_KEY = "";
+
+    // set when the save comes from ourselves, the index is already up to date in that case
+    private static final ThreadLocal<Boolean> SELF_SAVING = new ThreadLocal<>();
+
+    private final Map<String, Map<String, Credentials>> credentialsMap = new ConcurrentHashMap<>();
+    private final Map<String, CredentialsStore> storeMap = new ConcurrentHashMap<>();
+    // changed on every invalidation, an index which was built before that is not installed
+    private final AtomicLong generation = new AtomicLong();
+
+    private CredentialsIndex() {}
+
+    public static CredentialsIndex getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Find the credential by id which visible to the namespace
+     * @param namespace namespace, null or shared namespace means Jenkins level
+     * @param id credential id
+     * @return credential, null if not found
+     */
+    @CheckForNull
+    public Credentials get(String namespace, String id) {
+        if (id == null) {
+            return null;
+        }
+
+        ItemGroup context = context(namespace);
+        if (context == null) {
+            return null;
+        }
+
+        String key = key(namespace);
+        Map<String, Credentials> credentials = credentialsMap.get(key);
+        if (credentials == null) {
+            long built = generation.get();
+            Map<String, Credentials> index = build(context);
+            // the one built by others wins, ours is dropped if anything was invalidated since we started
+            credentials = credentialsMap.compute(key, (k, current) ->
+                    current != null || generation.get() != built ? current : index);
+            if (credentials == null) {
+                credentials = index;
+            }
+        }
+
+        Credentials found = credentials.get(id);
+        return found != null || !hasOtherProviders() ? found : lookup(context, id);
+    }
+
+    @CheckForNull
+    public CredentialsStore getStore(String namespace) {
+        ItemGroup context = context(namespace);
+        if (context == null) {
+            return null;
+        }
+
+        // the store belongs to the folder object, check it in case of the folder was recreated or reloaded
+        CredentialsStore store = storeMap.get(key(namespace));
+        if (store != null && store.getContext() == context) {
+            return store;
+        }
+
+        Iterator<CredentialsStore> stores = CredentialsProvider.lookupStores(context).iterator();
+        if (!stores.hasNext()) {
+            return null;
+        }
+
+        store = stores.next();
+        storeMap.put(key(namespace), store);
+        return store;
+    }
+
+    void put(String namespace, String id, Credentials credentials) {
+        generation.incrementAndGet();
+        Map<String, Credentials> index = credentialsMap.get(key(namespace));
+        if (index != null) {
+            index.put(id, credentials);
+        }
+
+        // credentials of Jenkins level are visible to all folders
+        if (CredentialsUtils.isGlobal(namespace)) {
+            credentialsMap.keySet().removeIf(key -> !GLOBAL_KEY.equals(key));
+        }
+    }
+
+    void remove(String namespace, String id) {
+        generation.incrementAndGet();
+        Map<String, Credentials> index = credentialsMap.get(key(namespace));
+        if (index != null) {
+            index.remove(id);
+        }
+
+        if (CredentialsUtils.isGlobal(namespace)) {
+            credentialsMap.keySet().removeIf(key -> !GLOBAL_KEY.equals(key));
+        }
+    }
+
+    public void invalidate(String namespace) {
+        generation.incrementAndGet();
+        credentialsMap.remove(key(namespace));
+        storeMap.remove(key(namespace));
+    }
+
+    public void invalidateAll() {
+        generation.incrementAndGet();
+        credentialsMap.clear();
+        storeMap.clear();
+    }
+
+    /**
+     * Mark the saves of current thread as our own ones, they don't invalidate the index
+     * @param saving true before our mutation, false after it
+     */
+    static void selfSaving(boolean saving) {
+        if (saving) {
+            SELF_SAVING.set(Boolean.TRUE);
+        } else {
+            SELF_SAVING.remove();
+        }
+    }
+
+    private static String key(String namespace) {
+        return CredentialsUtils.isGlobal(namespace) ? GLOBAL_KEY : namespace;
+    }
+
+    @CheckForNull
+    private static ItemGroup context(String namespace) {
+        Jenkins jenkins = Jenkins.getInstance();
+        if (CredentialsUtils.isGlobal(namespace)) {
+            return jenkins;
+        }
+
+        Item folder = jenkins.getItem(namespace);
+        if (folder instanceof ItemGroup) {
+            return (ItemGroup) folder;
+        }
+
+        LOGGER.fine(() -> String.format("Can't find folder[%s] for credentials lookup", namespace));
+        return null;
+    }
+
+    private static Map<String, Credentials> build(ItemGroup context) {
+        Map<String, Credentials> index = new ConcurrentHashMap<>();
+        try (ACLContext ignored = ACL.as(ACL.SYSTEM)) {
+            // the stores of the folder come before the ones of its parents
+            for (CredentialsStore store : CredentialsProvider.lookupStores(context)) {
+                if (!isIndexed(store)) {
+                    continue;
+                }
+
+                for (Domain domain : store.getDomains()) {
+                    // keep the first one, same with CredentialsMatchers.firstOrNull
+                    store.getCredentials(domain).stream().filter(cred -> cred instanceof IdCredentials)
+                            .forEach(cred -> index.putIfAbsent(((IdCredentials) cred).getId(), cred));
+                }
+            }
+        }
+
+        LOGGER.fine(() -> String.format("Indexed %d credentials for %s", index.size(), context.getFullName()));
+        return index;
+    }
+
+    /**
+     * @return true if the changes of the store are caught by {@link StoreListener}
+     */
+    private static boolean isIndexed(CredentialsStore store) {
+        CredentialsProvider provider = store.getProvider();
+        return provider instanceof SystemCredentialsProvider.ProviderImpl || provider instanceof FolderCredentialsProvider;
+    }
+
+    private static boolean hasOtherProviders() {
+        for (CredentialsProvider provider : Jenkins.getInstance().getExtensionList(CredentialsProvider.class)) {
+            if (provider.isEnabled() && !(provider instanceof SystemCredentialsProvider.ProviderImpl)
+                    && !(provider instanceof FolderCredentialsProvider)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @CheckForNull
+    private static Credentials lookup(ItemGroup context, String id) {
+        List<Credentials> credentials = CredentialsProvider.lookupCredentials(Credentials.class,
+                context, ACL.SYSTEM, Collections.emptyList());
+        return CredentialsMatchers.firstOrNull(credentials, CredentialsMatchers.withId(id));
+    }
+
+    /**
+     * Drop the index entries when the credentials were changed by others
+     */
+    @Extension
+    public static class StoreListener extends SaveableListener {
+        @Override
+        public void onChange(Saveable o, XmlFile file) {
+            if (Boolean.TRUE.equals(SELF_SAVING.get())) {
+                return;
+            }
+
+            if (o instanceof AbstractFolder) {
+                INSTANCE.invalidate(((AbstractFolder) o).getFullName());
+            } else if (o instanceof Jenkins || o instanceof SystemCredentialsProvider) {
+                INSTANCE.invalidateAll();
+            }
+        }
+    }
+
+    @Extension
+    public static class FolderListener extends ItemListener {
+        @Override
+        public void onDeleted(Item item) {
+            if (item instanceof AbstractFolder) {
+                INSTANCE.invalidate(item.getFullName());
+            }
+        }
+
+        @Override
+        public void onLocationChanged(Item item, String oldFullName, String newFullName) {
+            if (item instanceof AbstractFolder) {
+                INSTANCE.invalidate(oldFullName);
+                INSTANCE.invalidate(newFullName);
+            }
+        }
+    }
+}
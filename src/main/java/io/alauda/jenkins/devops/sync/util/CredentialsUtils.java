@@ -4,18 +4,16 @@ import com.cloudbees.hudson.plugins.folder.Folder;
 import com.cloudbees.jenkins.plugins.sshcredentials.impl.BasicSSHUserPrivateKey;
 import com.cloudbees.plugins.credentials.*;
 import com.cloudbees.plugins.credentials.domains.Domain;
-import com.cloudbees.plugins.credentials.domains.DomainRequirement;
 import com.cloudbees.plugins.credentials.impl.UsernamePasswordCredentialsImpl;
 import hudson.model.Fingerprint;
-import hudson.model.TopLevelItem;
 import hudson.remoting.Base64;
 import hudson.security.ACL;
 import io.alauda.devops.client.AlaudaDevOpsClient;
 import io.alauda.jenkins.devops.sync.AlaudaSyncGlobalConfiguration;
 import io.alauda.jenkins.devops.sync.core.InvalidSecretException;
 import io.alauda.jenkins.devops.sync.credential.AlaudaToken;
+import io.alauda.jenkins.devops.sync.watcher.ResourcesCache;
 import io.alauda.kubernetes.api.model.*;
-import jenkins.model.Jenkins;
 import org.acegisecurity.context.SecurityContext;
 import org.acegisecurity.context.SecurityContextHolder;
 import org.apache.commons.lang.StringUtils;
@@ -24,8 +22,6 @@ import org.json.JSONObject;
 import javax.validation.constraints.NotNull;
 import java.io.IOException;
 import java.nio.charset.StandardCharsets;
-import java.util.Collections;
-import java.util.List;
 import java.util.Map;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -57,6 +53,18 @@ public abstract class CredentialsUtils {
 //    }
 
   private static synchronized Secret getSourceCredentials(final PipelineConfig pipelineConfig) {
+      NamespaceName secretRef = getSourceSecretRef(pipelineConfig);
+      if(secretRef == null) {
+          return null;
+      }
+
+      return AlaudaUtils.getAuthenticatedAlaudaClient()
+              .secrets()
+              .inNamespace(secretRef.getNamespace())
+              .withName(secretRef.getName()).get();
+  }
+
+  private static NamespaceName getSourceSecretRef(final PipelineConfig pipelineConfig) {
       PipelineConfigSpec spec = pipelineConfig.getSpec();
       if(spec == null) {
           return null;
@@ -72,10 +80,7 @@ public abstract class CredentialsUtils {
           final String namespace = StringUtils.isBlank(secret.getNamespace())
                   ? pipelineConfig.getMetadata().getNamespace() : secret.getNamespace();
 
-          return AlaudaUtils.getAuthenticatedAlaudaClient()
-                  .secrets()
-                  .inNamespace(namespace)
-                  .withName(secret.getName()).get();
+          return new NamespaceName(namespace, secret.getName());
       }
 
       return null;
@@ -112,6 +117,18 @@ public abstract class CredentialsUtils {
      * @throws InvalidSecretException
      */
     public static synchronized String updateSourceCredentials(final PipelineConfig pipelineConfig) throws IOException {
+        // the SecretWatcher keeps the credential up to date when the secret is in a watched namespace,
+        // so the existing credential could be reused without asking the API server
+        NamespaceName secretRef = getSourceSecretRef(pipelineConfig);
+        if(secretRef != null && isWatchedSecretNamespace(secretRef.getNamespace())) {
+            String cachedCredID = CredentialSyncCache.getInstance()
+                    .getCredentialId(secretRef.getNamespace(), secretRef.getName());
+            if(cachedCredID != null && lookupCredentials(secretRef.getNamespace(), cachedCredID) != null) {
+                PipelineConfigSecretToCredentialsMap.linkPCSecretToCredential(NamespaceName.create(pipelineConfig).toString(), cachedCredID);
+                return cachedCredID;
+            }
+        }
+
         final Secret sourceSecret = getSourceCredentials(pipelineConfig);
         final String credID;
         if (sourceSecret != null) {
@@ -179,6 +196,13 @@ public abstract class CredentialsUtils {
             throws IOException {
         final String id = secretName(namespace, secretName);
         if (secret != null) {
+            CredentialSyncCache syncCache = CredentialSyncCache.getInstance();
+            if (syncCache.isSynced(secret) && lookupCredentials(namespace, id) != null) {
+                logger.fine(() -> "Credential " + id + " is up to date with Secret revision "
+                        + secret.getMetadata().getResourceVersion() + ", skip to update it.");
+                return id;
+            }
+
             Credentials credentials = secretToCredentials(secret);
             if (credentials == null) {
                 throw new InvalidSecretException(secret.getKind());
@@ -192,18 +216,26 @@ public abstract class CredentialsUtils {
                     return null;
                 }
 
-                if (existingCredentials != null) {
-                    store.updateCredentials(Domain.global(), existingCredentials, credentials);
-                    logger.info("Updated credential " + id + " from Secret "
-                            + NamespaceName.create(secret) + " with revision: "
-                            + secret.getMetadata().getResourceVersion());
-                } else {
-                    store.addCredentials(Domain.global(), credentials);
-                    logger.info("Created credential " + id + " from Secret "
-                            + NamespaceName.create(secret) + " with revision: "
-                            + secret.getMetadata().getResourceVersion());
+                CredentialsIndex.selfSaving(true);
+                try {
+                    CredentialsBatch.beforeChange(store);
+                    if (existingCredentials != null) {
+                        store.updateCredentials(Domain.global(), existingCredentials, credentials);
+                        logger.info("Updated credential " + id + " from Secret "
+                                + NamespaceName.create(secret) + " with revision: "
+                                + secret.getMetadata().getResourceVersion());
+                    } else {
+                        store.addCredentials(Domain.global(), credentials);
+                        logger.info("Created credential " + id + " from Secret "
+                                + NamespaceName.create(secret) + " with revision: "
+                                + secret.getMetadata().getResourceVersion());
+                    }
+                    CredentialsIndex.getInstance().put(namespace, id, credentials);
+                    CredentialsBatch.afterChange(store);
+                } finally {
+                    CredentialsIndex.selfSaving(false);
                 }
-                store.save();
+                syncCache.synced(secret, id);
             } finally {
                 SecurityContextHolder.setContext(previousContext);
             }
@@ -238,10 +270,17 @@ public abstract class CredentialsUtils {
                     return;
                 }
 
-                store.removeCredentials(Domain.global(), existingCred);
-                logger.info("Deleted credential " + id + " from Secret " + name
-                        + " with revision: " + resourceRevision);
-                store.save();
+                CredentialsIndex.selfSaving(true);
+                try {
+                    CredentialsBatch.beforeChange(store);
+                    store.removeCredentials(Domain.global(), existingCred);
+                    logger.info("Deleted credential " + id + " from Secret " + name
+                            + " with revision: " + resourceRevision);
+                    CredentialsIndex.getInstance().remove(name.getNamespace(), id);
+                    CredentialsBatch.afterChange(store);
+                } finally {
+                    CredentialsIndex.selfSaving(false);
+                }
             } finally {
                 SecurityContextHolder.setContext(previousContext);
             }
@@ -250,6 +289,8 @@ public abstract class CredentialsUtils {
 
     public static void deleteCredential(Secret secret) throws IOException {
         if (secret != null) {
+            CredentialSyncCache.getInstance().invalidate(secret.getMetadata().getNamespace(),
+                    secret.getMetadata().getName());
             String id = secretName(secret.getMetadata().getNamespace(), secret
                     .getMetadata().getName());
             deleteCredential(id, NamespaceName.create(secret), secret
@@ -283,14 +324,10 @@ public abstract class CredentialsUtils {
     }
 
     public static String getToken(String credentialId) {
-        AlaudaToken token = CredentialsMatchers.firstOrNull(
-                CredentialsProvider.lookupCredentials(AlaudaToken.class,
-                        Jenkins.getInstance(), ACL.SYSTEM,
-                        Collections.<DomainRequirement> emptyList()),
-                CredentialsMatchers.withId(credentialId));
-
-        if (token != null) {
-            return token.getToken();
+        Credentials credentials = CredentialsIndex.getInstance().get(null, credentialId);
+
+        if (credentials instanceof AlaudaToken) {
+            return ((AlaudaToken) credentials).getToken();
         } else {
             return null;
         }
@@ -306,39 +343,21 @@ public abstract class CredentialsUtils {
     }
 
     public static Credentials findCredentials(String namespace, String id) {
-        Jenkins jenkins = Jenkins.getInstance();
-        List<Credentials> credentials;
-        if(isGlobal(namespace)) {
-            credentials = CredentialsProvider.lookupCredentials(Credentials.class,
-                    jenkins, ACL.SYSTEM,
-                    Collections.emptyList());
-        } else{
-            credentials = CredentialsProvider.lookupCredentials(Credentials.class,
-                    jenkins.getItem(namespace), ACL.SYSTEM,
-                    Collections.emptyList());
-        }
-
-        return CredentialsMatchers.firstOrNull(credentials, CredentialsMatchers.withId(id));
+        return CredentialsIndex.getInstance().get(namespace, id);
     }
 
     public static CredentialsStore getStore(String namespace) {
-        Jenkins jenkins = Jenkins.getInstance();
-
-        if(isGlobal(namespace)) {
-            return CredentialsProvider
-                    .lookupStores(jenkins).iterator()
-                    .next();
-        } else {
-            TopLevelItem folder = jenkins.getItem(namespace);
-            if(folder == null) {
-                logger.warning(String.format("Can't find folder[%s], can't create credentials.", namespace));
-                return null;
-            }
-
-            return CredentialsProvider
-                    .lookupStores(folder).iterator()
-                    .next();
+        CredentialsStore store = CredentialsIndex.getInstance().getStore(namespace);
+        if(store == null) {
+            logger.warning(String.format("Can't find folder[%s], can't create credentials.", namespace));
         }
+        return store;
+    }
+
+    private static boolean isWatchedSecretNamespace(String namespace) {
+        AlaudaSyncGlobalConfiguration config = AlaudaSyncGlobalConfiguration.get();
+        return config.getSecretWatcher() != null
+                && ResourcesCache.getInstance().isBindingSecretNamespace(namespace);
     }
 
     public static boolean isGlobal(String namespace) {
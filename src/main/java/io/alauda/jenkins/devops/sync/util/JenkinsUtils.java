@@ -16,13 +16,13 @@
 package io.alauda.jenkins.devops.sync.util;
 
 import antlr.ANTLRException;
-import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
 import hudson.model.*;
 import hudson.model.Job;
 import hudson.model.Queue;
 import hudson.model.queue.QueueTaskFuture;
 import hudson.plugins.git.RevisionParameterAction;
 import hudson.security.ACL;
+import hudson.security.ACLContext;
 import hudson.triggers.SCMTrigger;
 import hudson.triggers.SafeTimerTask;
 import hudson.triggers.TimerTrigger;
@@ -33,6 +33,7 @@ import io.alauda.jenkins.devops.sync.AlaudaSyncGlobalConfiguration;
 import io.alauda.jenkins.devops.sync.JenkinsPipelineCause;
 import io.alauda.jenkins.devops.sync.MultiBranchProperty;
 import io.alauda.jenkins.devops.sync.PipelineComparator;
+import io.alauda.jenkins.devops.sync.PipelineTriggerScheduler;
 import io.alauda.jenkins.devops.sync.SCMRevisionAction;
 import io.alauda.jenkins.devops.sync.WorkflowJobProperty;
 import io.alauda.jenkins.devops.sync.constants.Annotations;
@@ -400,7 +401,7 @@ public abstract class JenkinsUtils {
             // plugins may rely on them.
             List<Cause> newCauses = new ArrayList<>();
             newCauses.add(new JenkinsPipelineCause(pipeline, pcProp.getUid()));
-            CauseAction originalCauseAction = PipelineToActionMapper.removeCauseAction(pipelineName);
+            CauseAction originalCauseAction = PipelineToActionMapper.removeCauseAction(pipeline);
             if (originalCauseAction != null) {
                 if (LOGGER.isLoggable(Level.FINE)) {
                     LOGGER.fine("Adding existing causes...");
@@ -501,7 +502,8 @@ public abstract class JenkinsUtils {
     }
 
 	private static boolean isAlreadyTriggered(WorkflowJob job, Pipeline pipeline) {
-		return getRun(job, pipeline) != null;
+		return !QueuedPipelineIndex.getInstance().getItemIds(pipeline.getMetadata().getUid()).isEmpty()
+				|| getRun(job, pipeline) != null;
 	}
 
 	public synchronized static void cancelPipeline(WorkflowJob job, Pipeline pipeline) {
@@ -607,42 +609,50 @@ public abstract class JenkinsUtils {
 		});
 	}
 
-	@SuppressFBWarnings("SE_BAD_FIELD")
 	public static boolean cancelQueuedPipeline(WorkflowJob job, Pipeline pipeline) {
 	  LOGGER.info("cancelling queued pipeline: "+pipeline.getMetadata().getName());
+		if (PipelineTriggerScheduler.getInstance().remove(pipeline)) {
+			return true;
+		}
 		String pipelineUid = pipeline.getMetadata().getUid();
-		final Queue pipelineQueue = Jenkins.getInstance().getQueue();
-		for (final Queue.Item item : pipelineQueue.getItems()) {
-			for (Cause cause : item.getCauses()) {
-				if (cause instanceof JenkinsPipelineCause && ((JenkinsPipelineCause) cause).getUid().equals(pipelineUid)) {
-					return ACL.impersonate(ACL.SYSTEM, new NotReallyRoleSensitiveCallable<Boolean, RuntimeException>() {
-						@Override
-						public Boolean call() throws RuntimeException {
-							pipelineQueue.cancel(item);
-							return true;
-						}
-					});
-				}
-			}
+		if (cancelQueuedItems(QueuedPipelineIndex.getInstance().getItemIds(pipelineUid))) {
+			return true;
 		}
 		return cancelNotYetStartedPipeline(job, pipeline);
 	}
 
 	public static void cancelQueuedBuilds(WorkflowJob job, String pcUid) {
         LOGGER.info(() -> "cancelling queued pipeline by uuid: "+pcUid);
+		cancelQueuedItems(QueuedPipelineIndex.getInstance().getItemIdsByPipelineConfig(pcUid));
+	}
+
+	/**
+	 * @return true if any of the items was cancelled
+	 */
+	private static boolean cancelQueuedItems(List<Long> itemIds) {
+		if (itemIds.isEmpty()) {
+			return false;
+		}
+
 		Queue pipelineQueue = Jenkins.getInstance().getQueue();
-		for (Queue.Item item : pipelineQueue.getItems()) {
-			for (Cause cause : item.getCauses()) {
-				if (cause instanceof JenkinsPipelineCause) {
-					JenkinsPipelineCause pipelineCause = (JenkinsPipelineCause) cause;
-					if (pipelineCause.getPipelineConfigUid().equals(pcUid)) {
-						Pipeline pipeline = new PipelineBuilder().withNewMetadata().withNamespace(pipelineCause.getNamespace())
-								.withName(pipelineCause.getName()).and().build();
-						cancelQueuedPipeline(job, pipeline);
-					}
+		QueuedPipelineIndex index = QueuedPipelineIndex.getInstance();
+		boolean cancelled = false;
+		try (ACLContext ignored = ACL.as(ACL.SYSTEM)) {
+			for (long id : itemIds) {
+				Queue.Item item = index.getItem(id);
+				if (item != null && pipelineQueue.cancel(item)) {
+					cancelled = true;
+					continue;
+				}
+
+				// the item might have moved to another state, or been restored from the disk, find it by scanning the queue
+				item = pipelineQueue.getItem(id);
+				if (item != null) {
+					cancelled |= pipelineQueue.cancel(item);
 				}
 			}
 		}
+		return cancelled;
 	}
 
     /**
@@ -701,6 +711,14 @@ public abstract class JenkinsUtils {
             return;
         }
 
+        NewPipelineIndex index = NewPipelineIndex.getInstance();
+        if (index.isInitialized()) {
+            List<Pipeline> pipelines = index.getNewPipelines(pcp.getNamespace(), pcp.getName());
+            LOGGER.fine(() -> "Got new pipelines from index: " + pipelines.size());
+            handlePipelineList(job, pipelines);
+            return;
+        }
+
         // TODO: Change to filter on the API level
         PipelineList list = filterNew(getAuthenticatedAlaudaClient().pipelines()
                 .inNamespace(pcp.getNamespace()).withLabel(ALAUDA_DEVOPS_LABELS_PIPELINE_CONFIG, pcp.getName()).list());
@@ -712,7 +730,7 @@ public abstract class JenkinsUtils {
         if (list == null || list.getItems() == null || list.getItems().size() == 0) {
             return list;
         }
-        list.getItems().removeIf(p -> !isNew(p.getStatus()));
+        list.getItems().removeIf(p -> !isWaitingForTrigger(p));
         return list;
     }
 
@@ -721,38 +739,52 @@ public abstract class JenkinsUtils {
 			return;
 		}
         Collections.sort(pipelines, new PipelineComparator());
-		boolean isSerial = !job.isConcurrentBuild();
-		boolean jobIsBuilding = job.isBuilding();
-		for (int i = 0; i < pipelines.size(); i++) {
-			Pipeline p = pipelines.get(i);
-			if (!AlaudaUtils.isPipelineStrategyPipeline(p))
-				continue;
-			// For SerialLatestOnly we should try to cancel all pipelines before
-			// the latest one requested.
-            if (jobIsBuilding && !isCancelled(p.getStatus())) {
-                return;
-            }
+		pipelines.removeIf(p -> !AlaudaUtils.isPipelineStrategyPipeline(p));
+		if (pipelines.isEmpty()) {
+			return;
+		}
 
-            if (i < pipelines.size() - 1) {
-                cancelQueuedPipeline(job, p);
-                // TODO: maybe not necessary?
-                updatePipelinePhase(p, CANCELLED);
-                continue;
-            }
+		if (!job.isConcurrentBuild()) {
+			// latest wins for the serial jobs, the older ones are superseded by it
+			Pipeline latest = pipelines.get(pipelines.size() - 1);
+			cancelSupersededPipelines(pipelines.subList(0, pipelines.size() - 1));
+
+			// it will be picked up when the current run is completed
+			if (job.isBuilding() && !isCancelled(latest.getStatus())) {
+				return;
+			}
+			pipelines = Collections.singletonList(latest);
+		}
 
-			boolean buildAdded = false;
+		for (Pipeline p : pipelines) {
 			try {
-				buildAdded = PipelineWatcher.addEventToJenkinsJobRun(p);
+				PipelineWatcher.addEventToJenkinsJobRun(p);
 			} catch (IOException e) {
 				ObjectMeta meta = p.getMetadata();
 				LOGGER.log(WARNING, "Failed to add new build " + meta.getNamespace() + "/" + meta.getName(), e);
 			}
-			// If it's a serial build then we only need to schedule the first
-			// build request.
-			if (isSerial && buildAdded) {
-				return;
+		}
+	}
+
+	/**
+	 * Cancel the new Pipelines which are superseded, their phases are sent in one batch
+	 */
+	private static void cancelSupersededPipelines(List<Pipeline> superseded) {
+		if (superseded.isEmpty()) {
+			return;
+		}
+
+		NewPipelineIndex index = NewPipelineIndex.getInstance();
+		for (Pipeline p : superseded) {
+			// they might be held by the trigger scheduler or queued already
+			if (!PipelineTriggerScheduler.getInstance().remove(p)) {
+				cancelQueuedItems(QueuedPipelineIndex.getInstance().getItemIds(p.getMetadata().getUid()));
 			}
+			index.remove(p);
 		}
+
+		LOGGER.info(() -> "Cancelling " + superseded.size() + " superseded pipelines");
+		PipelineOutbox.getInstance().updatePhaseLater(new ArrayList<>(superseded), CANCELLED);
 	}
 
     @Nonnull
@@ -0,0 +1,165 @@
+/**
+ * Copyright (C) 2018 Alauda.io
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.alauda.jenkins.devops.sync.util;
+
+import io.alauda.kubernetes.api.model.ObjectMeta;
+import io.alauda.kubernetes.api.model.Pipeline;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+
+import static io.alauda.jenkins.devops.sync.constants.Constants.ALAUDA_DEVOPS_ANNOTATIONS_PIPELINE_NUMBER;
+
+/**
+ * Index of the new Pipelines by their PipelineConfig, it's fed by the initial list and the events
+ * of {@link io.alauda.jenkins.devops.sync.watcher.PipelineWatcher}. So we can find the next Pipeline
+ * to build without listing Pipelines from the API server.
+ * <p>
+ * The Pipelines of each PipelineConfig, which is one job in Jenkins, are kept in the order of their numbers.
+ */
+public class NewPipelineIndex {
+    private static final NewPipelineIndex instance = new NewPipelineIndex();
+
+    private static final Comparator<Pipeline> ORDER = Comparator.comparingLong(NewPipelineIndex::getNumber)
+            .thenComparing(pipeline -> pipeline.getMetadata().getName());
+
+    // PipelineConfig -> new Pipelines
+    private final Map<NamespaceName, PendingPipelines> pipelines = new HashMap<>();
+    private volatile boolean initialized;
+
+    NewPipelineIndex() {}
+
+    public static NewPipelineIndex getInstance() {
+        return instance;
+    }
+
+    /**
+     * Add the Pipeline if it's new or held by the trigger scheduler, otherwise remove it from the index
+     * @param pipeline Pipeline from the API server
+     */
+    public synchronized void update(@Nonnull Pipeline pipeline) {
+        NamespaceName pc = getPipelineConfig(pipeline);
+        if (pc == null) {
+            return;
+        }
+
+        if (AlaudaUtils.isWaitingForTrigger(pipeline)) {
+            pipelines.computeIfAbsent(pc, key -> new PendingPipelines()).put(pipeline);
+        } else {
+            remove(pc, pipeline.getMetadata().getName());
+        }
+    }
+
+    /**
+     * Take the listed Pipelines as all the new ones of the namespace, the others are dropped,
+     * e.g. they were deleted or finished while the watch was down
+     * @param namespace namespace which was listed
+     * @param listed new Pipelines of the namespace
+     */
+    public synchronized void replace(@Nonnull String namespace, @Nonnull List<Pipeline> listed) {
+        pipelines.keySet().removeIf(pc -> namespace.equals(pc.getNamespace()));
+        listed.forEach(this::update);
+    }
+
+    public synchronized void remove(@Nonnull Pipeline pipeline) {
+        NamespaceName pc = getPipelineConfig(pipeline);
+        if (pc != null) {
+            remove(pc, pipeline.getMetadata().getName());
+        }
+    }
+
+    /**
+     * @param namespace namespace of PipelineConfig
+     * @param pcName name of PipelineConfig
+     * @return the new Pipelines of target PipelineConfig, ordered by their numbers
+     */
+    @Nonnull
+    public synchronized List<Pipeline> getNewPipelines(String namespace, String pcName) {
+        PendingPipelines items = pipelines.get(new NamespaceName(namespace, pcName));
+        return items == null ? new ArrayList<>() : new ArrayList<>(items.ordered);
+    }
+
+    /**
+     * @return true if all new Pipelines were loaded, it's only complete after the initial list
+     */
+    public boolean isInitialized() {
+        return initialized;
+    }
+
+    public void setInitialized(boolean initialized) {
+        this.initialized = initialized;
+    }
+
+    private void remove(NamespaceName pc, String name) {
+        PendingPipelines items = pipelines.get(pc);
+        if (items != null) {
+            items.remove(name);
+            if (items.byName.isEmpty()) {
+                pipelines.remove(pc);
+            }
+        }
+    }
+
+    private static long getNumber(Pipeline pipeline) {
+        Map<String, String> annotations = pipeline.getMetadata().getAnnotations();
+        String number = annotations == null ? null : annotations.get(ALAUDA_DEVOPS_ANNOTATIONS_PIPELINE_NUMBER);
+        try {
+            return number == null ? -1 : Long.parseLong(number);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    @CheckForNull
+    private static NamespaceName getPipelineConfig(Pipeline pipeline) {
+        ObjectMeta meta = pipeline.getMetadata();
+        if (meta == null || pipeline.getSpec() == null || pipeline.getSpec().getPipelineConfig() == null) {
+            return null;
+        }
+
+        String pcName = pipeline.getSpec().getPipelineConfig().getName();
+        if (pcName == null || meta.getNamespace() == null || meta.getName() == null) {
+            return null;
+        }
+        return new NamespaceName(meta.getNamespace(), pcName);
+    }
+
+    private static class PendingPipelines {
+        private final Map<String, Pipeline> byName = new HashMap<>();
+        private final TreeSet<Pipeline> ordered = new TreeSet<>(ORDER);
+
+        void put(Pipeline pipeline) {
+            Pipeline old = byName.put(pipeline.getMetadata().getName(), pipeline);
+            if (old != null) {
+                ordered.remove(old);
+            }
+            ordered.add(pipeline);
+        }
+
+        void remove(String name) {
+            Pipeline old = byName.remove(name);
+            if (old != null) {
+                ordered.remove(old);
+            }
+        }
+    }
+}
@@ -1,60 +1,94 @@
 package io.alauda.jenkins.devops.sync.util;
 
+import hudson.Extension;
+import hudson.model.Item;
 import hudson.model.TopLevelItem;
+import hudson.model.listeners.ItemListener;
+import hudson.security.ACL;
+import hudson.security.ACLContext;
+import hudson.triggers.SafeTimerTask;
 import io.alauda.jenkins.devops.sync.AlaudaJobProperty;
 import io.alauda.jenkins.devops.sync.MultiBranchProperty;
 import io.alauda.jenkins.devops.sync.WorkflowJobProperty;
 import io.alauda.kubernetes.api.model.ObjectMeta;
 import io.alauda.kubernetes.api.model.PipelineConfig;
 import jenkins.model.Jenkins;
+import jenkins.util.Timer;
+import org.acegisecurity.context.SecurityContext;
+import org.acegisecurity.context.SecurityContextHolder;
 import org.jenkinsci.plugins.workflow.job.WorkflowJob;
 import org.jenkinsci.plugins.workflow.multibranch.WorkflowMultiBranchProject;
 
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.logging.Logger;
 
 import static org.apache.commons.lang.StringUtils.isBlank;
 import static org.apache.commons.lang.StringUtils.isNotBlank;
 
+/**
+ * Index of the Jenkins items which created from PipelineConfig. Items are indexed by PipelineConfig uid
+ * and by PipelineConfig namespace/name. The index is maintained incrementally by {@link ItemIndexer},
+ * the full rebuild only happens once when Jenkins loaded all items. The reverse mappings from uid and from
+ * item are kept as well, so an item is removed, or moved to another uid, without scanning the index.
+ */
 public class PipelineConfigToJobMap {
     private static final Logger LOGGER = Logger.getLogger(PipelineConfigToJobMap.class.getName());
 
-    private static Map<String, TopLevelItem> pipelineConfigToJobMap;
+    private static final Map<String, TopLevelItem> pipelineConfigToJobMap = new ConcurrentHashMap<>();
+    private static final Map<NamespaceName, String> namespaceNameToUidMap = new ConcurrentHashMap<>();
+    private static final Map<String, NamespaceName> uidToNamespaceNameMap = new ConcurrentHashMap<>();
+    private static final Map<TopLevelItem, String> itemToUidMap = new ConcurrentHashMap<>();
+    private static final AtomicBoolean initialized = new AtomicBoolean(false);
+    // keeps the maps consistent with each other, the lookups don't need it
+    private static final Object writeLock = new Object();
 
     private PipelineConfigToJobMap() {
     }
 
+    /**
+     * Walk all items and put the ones which belong to a PipelineConfig into the index.
+     * It's only necessary once, after that the index is kept by {@link ItemIndexer}.
+     */
     public static synchronized void initializePipelineConfigToJobMap() {
         Jenkins jenkins = Jenkins.getInstance();
         List<WorkflowJob> jobs = jenkins.getAllItems(WorkflowJob.class);
-        if (pipelineConfigToJobMap == null) {
-            pipelineConfigToJobMap = new ConcurrentHashMap<>(jobs.size());
-        }
+        jobs.forEach(PipelineConfigToJobMap::index);
 
-        jobs.stream().filter(job -> {
-            WorkflowJobProperty property = job.getProperty(WorkflowJobProperty.class);
+        List<WorkflowMultiBranchProject> wfMultiList = jenkins.getAllItems(WorkflowMultiBranchProject.class);
+        wfMultiList.forEach(PipelineConfigToJobMap::index);
 
-            return (property != null && isNotBlank(property.getUid()));
-        }).forEach(job -> {
-            String uid = job.getProperty(WorkflowJobProperty.class).getUid();
-            pipelineConfigToJobMap.put(uid, job);
-        });
+        initialized.set(true);
+        LOGGER.info(String.format("PipelineConfigToJobMap initialized, total cache number %d", pipelineConfigToJobMap.size()));
+    }
 
-        List<WorkflowMultiBranchProject> wfMultiList = jenkins.getAllItems(WorkflowMultiBranchProject.class);
-        wfMultiList.stream().filter(job -> {
-            MultiBranchProperty property = job.getProperties().get(MultiBranchProperty.class);
+    public static boolean isInitialized() {
+        return initialized.get();
+    }
+
+    /**
+     * Wait for the walk after Jenkins loaded all items, or walk the items now if it didn't start at all,
+     * e.g. the plugin was installed without restart. The watchers call it before they start, so a DELETED
+     * event never misses the item because it's not indexed yet.
+     */
+    public static void awaitInitialized() {
+        if (initialized.get()) {
+            return;
+        }
 
-            return (property != null && isNotBlank(property.getUid()));
-        }).forEach(job -> {
-            String uid = job.getProperties().get(MultiBranchProperty.class).getUid();
-            pipelineConfigToJobMap.put(uid, job);
-        });
+        try (ACLContext ignored = ACL.as(ACL.SYSTEM)) {
+            synchronized (PipelineConfigToJobMap.class) {
+                if (!initialized.get()) {
+                    initializePipelineConfigToJobMap();
+                }
+            }
+        }
     }
 
     @Deprecated
-    public static synchronized WorkflowJob getJobFromPipelineConfig(PipelineConfig pipelineConfig) {
+    public static WorkflowJob getJobFromPipelineConfig(PipelineConfig pipelineConfig) {
         ObjectMeta meta = pipelineConfig.getMetadata();
         if (meta == null) {
             return null;
@@ -64,7 +98,7 @@ public class PipelineConfigToJobMap {
     }
 
     @Deprecated
-    public static synchronized WorkflowJob getJobFromPipelineConfigUid(String uid) {
+    public static WorkflowJob getJobFromPipelineConfigUid(String uid) {
         if (isBlank(uid)) {
             return null;
         }
@@ -77,7 +111,11 @@ public class PipelineConfigToJobMap {
         return null;
     }
 
-    private static synchronized WorkflowMultiBranchProject getMultiBranchById(String uid) {
+    private static WorkflowMultiBranchProject getMultiBranchById(String uid) {
+        if (isBlank(uid)) {
+            return null;
+        }
+
         TopLevelItem item = pipelineConfigToJobMap.get(uid);
         if(item instanceof WorkflowMultiBranchProject) {
             return (WorkflowMultiBranchProject) item;
@@ -85,7 +123,7 @@ public class PipelineConfigToJobMap {
         return null;
     }
 
-    public static synchronized WorkflowMultiBranchProject getMultiBranchByPC(PipelineConfig pc){
+    public static WorkflowMultiBranchProject getMultiBranchByPC(PipelineConfig pc){
         ObjectMeta meta = pc.getMetadata();
         if (meta == null) {
             return null;
@@ -94,10 +132,13 @@ public class PipelineConfigToJobMap {
     }
 
     public static TopLevelItem getItemById(String uid) {
+        if (isBlank(uid)) {
+            return null;
+        }
         return pipelineConfigToJobMap.get(uid);
     }
 
-    public static synchronized TopLevelItem getItemByPC(PipelineConfig pc) {
+    public static TopLevelItem getItemByPC(PipelineConfig pc) {
         ObjectMeta meta = pc.getMetadata();
         if (meta == null) {
             return null;
@@ -105,7 +146,29 @@ public class PipelineConfigToJobMap {
         return getItemById(meta.getUid());
     }
 
-    public static synchronized void putJobWithPipelineConfig(TopLevelItem job, PipelineConfig pipelineConfig) {
+    /**
+     * Find the item by PipelineConfig namespace and name, no need to know the uid.
+     * @param namespace namespace of PipelineConfig
+     * @param name name of PipelineConfig
+     * @return item of the PipelineConfig, null if not found
+     */
+    public static TopLevelItem getItemByNamespaceName(String namespace, String name) {
+        if (isBlank(namespace) || isBlank(name)) {
+            return null;
+        }
+
+        String uid = namespaceNameToUidMap.get(new NamespaceName(namespace, name));
+        return getItemById(uid);
+    }
+
+    public static String getUidByNamespaceName(String namespace, String name) {
+        if (isBlank(namespace) || isBlank(name)) {
+            return null;
+        }
+        return namespaceNameToUidMap.get(new NamespaceName(namespace, name));
+    }
+
+    public static void putJobWithPipelineConfig(TopLevelItem job, PipelineConfig pipelineConfig) {
         if (pipelineConfig == null) {
             throw new IllegalArgumentException("PipelineConfig cannot be null");
         }
@@ -117,19 +180,46 @@ public class PipelineConfigToJobMap {
             throw new IllegalArgumentException("PipelineConfig must contain valid metadata");
         }
 
-        putJobWithPipelineConfigUid(job, meta.getUid());
+        putJobWithPipelineConfigUid(job, meta.getUid(), meta.getNamespace(), meta.getName());
     }
 
-    private static synchronized void putJobWithPipelineConfigUid(TopLevelItem job, String uid) {
+    private static void putJobWithPipelineConfigUid(TopLevelItem job, String uid, String namespace, String name) {
         if (isBlank(uid)) {
             throw new IllegalArgumentException("PipelineConfig uid must not be blank");
         }
-        pipelineConfigToJobMap.put(uid, job);
+        TopLevelItem old;
+        synchronized (writeLock) {
+            // the uid of the item was changed, drop the stale one
+            String oldUid = itemToUidMap.put(job, uid);
+            if (oldUid != null && !oldUid.equals(uid) && pipelineConfigToJobMap.remove(oldUid, job)) {
+                removeNamespaceName(oldUid);
+            }
+
+            old = pipelineConfigToJobMap.put(uid, job);
+            if (old != null && old != job) {
+                itemToUidMap.remove(old, uid);
+            }
+
+            if (isNotBlank(namespace) && isNotBlank(name)) {
+                NamespaceName namespaceName = new NamespaceName(namespace, name);
+                NamespaceName oldNamespaceName = uidToNamespaceNameMap.put(uid, namespaceName);
+                if (oldNamespaceName != null && !oldNamespaceName.equals(namespaceName)) {
+                    namespaceNameToUidMap.remove(oldNamespaceName, uid);
+                }
+
+                String replacedUid = namespaceNameToUidMap.put(namespaceName, uid);
+                if (replacedUid != null && !replacedUid.equals(uid)) {
+                    uidToNamespaceNameMap.remove(replacedUid, namespaceName);
+                }
+            }
+        }
 
-        LOGGER.info(String.format("Add job %s, uid %s, total cache number %d", job.getFullName(), uid, pipelineConfigToJobMap.size()));
+        if (old != job) {
+            LOGGER.info(String.format("Add job %s, uid %s, total cache number %d", job.getFullName(), uid, pipelineConfigToJobMap.size()));
+        }
     }
 
-    public static synchronized void removeJobWithPipelineConfig(PipelineConfig pipelineConfig) {
+    public static void removeJobWithPipelineConfig(PipelineConfig pipelineConfig) {
         if (pipelineConfig == null) {
             throw new IllegalArgumentException("PipelineConfig cannot be null");
         }
@@ -140,15 +230,70 @@ public class PipelineConfigToJobMap {
         removeJobWithPipelineConfigUid(meta.getUid());
     }
 
-    private static synchronized void removeJobWithPipelineConfigUid(String uid) {
+    private static void removeJobWithPipelineConfigUid(String uid) {
         if (isBlank(uid)) {
             throw new IllegalArgumentException("PipelineConfig uid must not be blank");
         }
-        pipelineConfigToJobMap.remove(uid);
+        synchronized (writeLock) {
+            TopLevelItem item = pipelineConfigToJobMap.remove(uid);
+            if (item != null) {
+                itemToUidMap.remove(item, uid);
+            }
+            removeNamespaceName(uid);
+        }
 
         LOGGER.info(String.format("Remove job uid %s, total cache number %d", uid, pipelineConfigToJobMap.size()));
     }
 
+    /**
+     * Put the item into the index if it belongs to a PipelineConfig
+     * @param item Jenkins item
+     */
+    private static void index(Item item) {
+        if (!(item instanceof TopLevelItem)) {
+            return;
+        }
+
+        AlaudaJobProperty property = getProperty((TopLevelItem) item);
+        if (property == null || isBlank(property.getUid())) {
+            // it might be detached from its PipelineConfig
+            unindex(item);
+            return;
+        }
+
+        putJobWithPipelineConfigUid((TopLevelItem) item, property.getUid(),
+                property.getNamespace(), property.getName());
+    }
+
+    /**
+     * Remove the item from the index, only when it's still the mapped one
+     * @param item Jenkins item
+     */
+    private static void unindex(Item item) {
+        if (!(item instanceof TopLevelItem)) {
+            return;
+        }
+
+        String uid;
+        synchronized (writeLock) {
+            // the indexed uid, the property might be changed after that
+            uid = itemToUidMap.remove(item);
+            if (uid == null || !pipelineConfigToJobMap.remove(uid, item)) {
+                return;
+            }
+            removeNamespaceName(uid);
+        }
+
+        LOGGER.info(String.format("Remove job %s, uid %s, total cache number %d", item.getFullName(), uid, pipelineConfigToJobMap.size()));
+    }
+
+    private static void removeNamespaceName(String uid) {
+        NamespaceName namespaceName = uidToNamespaceNameMap.remove(uid);
+        if (namespaceName != null) {
+            namespaceNameToUidMap.remove(namespaceName, uid);
+        }
+    }
+
     public static AlaudaJobProperty getProperty(TopLevelItem item) {
         AlaudaJobProperty property = null;
         if(item instanceof WorkflowJob) {
@@ -158,4 +303,45 @@ public class PipelineConfigToJobMap {
         }
         return property;
     }
+
+    /**
+     * Keep the index up to date according to the item events.
+     */
+    @Extension
+    public static class ItemIndexer extends ItemListener {
+        @Override
+        public void onLoaded() {
+            Timer.get().submit(new SafeTimerTask() {
+                @Override
+                protected void doRun() {
+                    final SecurityContext previousContext = ACL.impersonate(ACL.SYSTEM);
+                    try {
+                        initializePipelineConfigToJobMap();
+                    } finally {
+                        SecurityContextHolder.setContext(previousContext);
+                    }
+                }
+            });
+        }
+
+        @Override
+        public void onCreated(Item item) {
+            index(item);
+        }
+
+        @Override
+        public void onUpdated(Item item) {
+            index(item);
+        }
+
+        @Override
+        public void onLocationChanged(Item item, String oldFullName, String newFullName) {
+            index(item);
+        }
+
+        @Override
+        public void onDeleted(Item item) {
+            unindex(item);
+        }
+    }
 }
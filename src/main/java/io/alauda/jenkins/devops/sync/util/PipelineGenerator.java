@@ -37,8 +37,23 @@ public abstract class PipelineGenerator {
 
     public static Pipeline buildPipeline(PipelineConfig config, @NotNull WorkflowJob job,
                                          String triggerURL, List<Action> actions) {
+        return buildPipeline(config, job, triggerURL, actions, null);
+    }
+
+    public static Pipeline buildPipeline(PipelineConfig config, @NotNull WorkflowJob job,
+                                         String triggerURL, List<Action> actions,
+                                         Map<String, String> extraAnnotations) {
+        return buildPipeline(config, job, triggerURL, actions, extraAnnotations, null);
+    }
+
+    public static Pipeline buildPipeline(PipelineConfig config, @NotNull WorkflowJob job,
+                                         String triggerURL, List<Action> actions,
+                                         Map<String, String> extraAnnotations, Map<String, String> labels) {
         ItemGroup parent = job.getParent();
         Map<String, String> annotations = new HashMap<>();
+        if(extraAnnotations != null) {
+            annotations.putAll(extraAnnotations);
+        }
         if(parent instanceof WorkflowMultiBranchProject) {
             BranchJobProperty property = job.getProperty(BranchJobProperty.class);
             if(property != null) {
@@ -54,7 +69,7 @@ public abstract class PipelineGenerator {
             }
         }
 
-        return buildPipeline(config, annotations, triggerURL, actions);
+        return buildPipeline(config, annotations, labels, triggerURL, actions);
     }
 
     public static boolean isPR(Item item) {
@@ -75,6 +90,11 @@ public abstract class PipelineGenerator {
     }
 
     public static Pipeline buildPipeline(PipelineConfig config, Map<String, String> annotations, String triggerURL, List<Action> actions) {
+        return buildPipeline(config, annotations, null, triggerURL, actions);
+    }
+
+    public static Pipeline buildPipeline(PipelineConfig config, Map<String, String> annotations, Map<String, String> labels,
+                                         String triggerURL, List<Action> actions) {
         PipelineSpec pipelineSpec = buildPipelineSpec(config, triggerURL);
 
         // TODO here should be multi-cause, fix later
@@ -136,6 +156,7 @@ public abstract class PipelineGenerator {
             .inNamespace(namespace)
             .createNew()
             .withNewMetadata().addToAnnotations(annotations)
+            .addToLabels(labels != null ? labels : new HashMap<>())
             .withName(config.getMetadata().getName())
             .withNamespace(namespace)
             .endMetadata()
@@ -0,0 +1,586 @@
+/**
+ * Copyright (C) 2018 Alauda.io
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.alauda.jenkins.devops.sync.util;
+
+import hudson.Extension;
+import hudson.XmlFile;
+import hudson.model.AsyncPeriodicWork;
+import hudson.model.TaskListener;
+import hudson.triggers.SafeTimerTask;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+import io.alauda.devops.client.AlaudaDevOpsClient;
+import io.alauda.jenkins.devops.sync.constants.Constants;
+import io.alauda.jenkins.devops.sync.constants.PipelinePhases;
+import io.alauda.kubernetes.api.model.ObjectMeta;
+import io.alauda.kubernetes.api.model.Pipeline;
+import io.alauda.kubernetes.api.model.PipelineStatus;
+import io.alauda.kubernetes.api.model.PipelineStatusBuilder;
+import io.alauda.kubernetes.client.KubernetesClientException;
+import jenkins.model.Jenkins;
+import jenkins.util.Timer;
+import org.apache.commons.httpclient.HttpStatus;
+
+import javax.annotation.Nonnull;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Outbox of the mutations which we send to Pipelines: phase changes, aborted flags and deletes.
+ * Every mutation is kept here first, compacted per Pipeline, and sent right after by one background thread,
+ * so the callers never wait for the API server. The ones which can't be sent are persisted under JENKINS_HOME
+ * and replayed in order by {@link Replayer}. Only one replay runs at a time, so two mutations of the same
+ * Pipeline are never sent concurrently. The file is not written on every change, it's saved shortly after in
+ * background and at the end of every replay.
+ * <p>
+ * Aborted flags from the callbacks of queue, and the phases of superseded Pipelines, are collected per Pipeline
+ * and handed over in one batch on {@link Timer} shortly after, so cancelling lots of queue items doesn't wake up
+ * the sender for each of them.
+ * <p>
+ * Status patches of runs are not kept here, they are retried by re-polling the run, see {@link UnsyncedRunJournal}.
+ */
+public class PipelineOutbox {
+    private static final Logger LOGGER = Logger.getLogger(PipelineOutbox.class.getName());
+
+    private static final String OUTBOX_FILE = "alauda-sync/pipeline-outbox.xml";
+    static final int MAX_ENTRIES = 2000;
+
+    private static final long DEFERRED_FLUSH_DELAY_MS = 500;
+    private static final long SAVE_DELAY_MS = 1000;
+
+    private static final List<String> TERMINAL_PHASES = Arrays.asList(PipelinePhases.COMPLETE,
+            PipelinePhases.FAILED, PipelinePhases.ERROR, PipelinePhases.CANCELLED);
+
+    private static PipelineOutbox instance;
+
+    private final transient XmlFile file;
+    private final transient Executor sender;
+    private final AtomicBoolean sendScheduled = new AtomicBoolean();
+    // only one replay at a time, the pending mutations are sent in order
+    private final Object replayLock = new Object();
+    private final LinkedHashMap<NamespaceName, Entry> entries = new LinkedHashMap<>();
+    // mutations which are waiting for the next flush
+    private final LinkedHashMap<NamespaceName, Entry> deferred = new LinkedHashMap<>();
+    private final AtomicBoolean deferredFlushScheduled = new AtomicBoolean();
+    // entries were changed after the last save, guarded by this
+    private boolean dirty;
+    private final AtomicBoolean saveScheduled = new AtomicBoolean();
+    // keeps the saves in order, the snapshot is taken while holding it
+    private final Object saveLock = new Object();
+
+    PipelineOutbox(XmlFile file, Executor sender) {
+        this.file = file;
+        this.sender = sender;
+        load();
+    }
+
+    public static synchronized PipelineOutbox getInstance() {
+        if (instance == null) {
+            ThreadPoolExecutor sender = new ThreadPoolExecutor(1, 1, 60, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<>(),
+                    new NamingThreadFactory(new DaemonThreadFactory(), "PipelineOutbox"));
+            sender.allowCoreThreadTimeOut(true);
+            instance = new PipelineOutbox(new XmlFile(new File(Jenkins.getInstance().getRootDir(), OUTBOX_FILE)),
+                    sender);
+        }
+        return instance;
+    }
+
+    /**
+     * Set the phase of Pipeline, the trigger position of it is removed if there's any
+     */
+    public void updatePhase(@Nonnull Pipeline pipeline, @Nonnull String phase) {
+        Entry entry = Entry.create(pipeline);
+        entry.phase = phase;
+        submit(entry);
+    }
+
+    /**
+     * Mark the Pipeline as queued with its position in the trigger scheduler
+     */
+    public void updateTriggerPosition(@Nonnull Pipeline pipeline, int position) {
+        Entry entry = Entry.create(pipeline);
+        entry.phase = PipelinePhases.QUEUED;
+        entry.triggerPosition = String.valueOf(position);
+        submit(entry);
+    }
+
+    /**
+     * Mark the Pipeline as aborted in background, it's safe to call it while holding the lock of queue
+     */
+    public void abort(@Nonnull String namespace, @Nonnull String name) {
+        Entry entry = new Entry(namespace, name, null, null);
+        entry.aborted = true;
+        defer(Collections.singletonList(entry));
+    }
+
+    /**
+     * Set the phase of Pipelines in background, they are sent in one batch
+     */
+    public void updatePhaseLater(@Nonnull List<Pipeline> pipelines, @Nonnull String phase) {
+        List<Entry> batch = new ArrayList<>();
+        for (Pipeline pipeline : pipelines) {
+            Entry entry = Entry.create(pipeline);
+            entry.phase = phase;
+            batch.add(entry);
+        }
+        defer(batch);
+    }
+
+    private void defer(List<Entry> batch) {
+        synchronized (deferred) {
+            for (Entry entry : batch) {
+                Entry pending = deferred.get(entry.key());
+                if (pending != null) {
+                    pending.merge(entry);
+                } else {
+                    deferred.put(entry.key(), entry);
+                }
+            }
+            dropOldest(deferred, "deferred");
+        }
+
+        if (deferredFlushScheduled.compareAndSet(false, true)) {
+            Timer.get().schedule(new SafeTimerTask() {
+                @Override
+                protected void doRun() {
+                    flushDeferred();
+                }
+            }, DEFERRED_FLUSH_DELAY_MS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    void flushDeferred() {
+        // the ones which come after this will schedule the next flush
+        deferredFlushScheduled.set(false);
+
+        List<Entry> batch;
+        synchronized (deferred) {
+            batch = new ArrayList<>(deferred.values());
+            deferred.clear();
+        }
+
+        LOGGER.fine(() -> String.format("Sending deferred mutations of %d Pipelines", batch.size()));
+        synchronized (this) {
+            for (Entry entry : batch) {
+                enqueue(entry);
+            }
+        }
+        scheduleSend();
+    }
+
+    /**
+     * Delete the Pipeline in background
+     */
+    public void delete(@Nonnull String namespace, @Nonnull String name) {
+        Entry entry = new Entry(namespace, name, null, null);
+        entry.delete = true;
+        submit(entry);
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    /**
+     * @return copy of the pending mutation of the Pipeline, null if there's nothing pending
+     */
+    synchronized Entry getPending(@Nonnull String namespace, @Nonnull String name) {
+        Entry entry = entries.get(new NamespaceName(namespace, name));
+        return entry == null ? null : entry.copy();
+    }
+
+    private void submit(Entry entry) {
+        // it's merged into the pending one if there's any, so the order is kept
+        synchronized (this) {
+            enqueue(entry);
+        }
+        scheduleSend();
+    }
+
+    private void scheduleSend() {
+        if (sendScheduled.compareAndSet(false, true)) {
+            sender.execute(new SafeTimerTask() {
+                @Override
+                protected void doRun() {
+                    // the mutations after this will schedule the next send
+                    sendScheduled.set(false);
+                    replay();
+                }
+            });
+        }
+    }
+
+    /**
+     * Send all pending mutations in order, stop at the first one which still can't be sent
+     */
+    public void replay() {
+        synchronized (replayLock) {
+            List<Entry> pending;
+            synchronized (this) {
+                pending = new ArrayList<>(entries.values());
+            }
+
+            for (Entry entry : pending) {
+                Result result = apply(entry);
+                if (result == Result.RETRY) {
+                    LOGGER.fine(() -> "Still can't send the pending mutation of Pipeline " + entry.key());
+                    return;
+                }
+
+                synchronized (this) {
+                    // a newer mutation might be merged into it in the meantime
+                    if (entries.get(entry.key()) == entry && entry.version == entry.sentVersion) {
+                        entries.remove(entry.key());
+                        dirty = true;
+                    }
+                }
+            }
+        }
+    }
+
+    private void enqueue(Entry entry) {
+        Entry pending = entries.get(entry.key());
+        if (pending != null) {
+            pending.merge(entry);
+        } else {
+            entries.put(entry.key(), entry);
+            dropOldest(entries, "pending");
+        }
+        dirty = true;
+        scheduleSave();
+    }
+
+    private static void dropOldest(LinkedHashMap<NamespaceName, Entry> map, String kind) {
+        Iterator<Map.Entry<NamespaceName, Entry>> it = map.entrySet().iterator();
+        while (map.size() > MAX_ENTRIES && it.hasNext()) {
+            Entry dropped = it.next().getValue();
+            it.remove();
+            LOGGER.warning("Too many " + kind + " Pipeline mutations, drop the oldest one " + dropped);
+        }
+    }
+
+    private void scheduleSave() {
+        if (saveScheduled.compareAndSet(false, true)) {
+            Timer.get().schedule(new SafeTimerTask() {
+                @Override
+                protected void doRun() {
+                    // the changes after this will schedule the next save
+                    saveScheduled.set(false);
+                    saveIfDirty();
+                }
+            }, SAVE_DELAY_MS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private Result apply(Entry entry) {
+        AlaudaDevOpsClient client = AlaudaUtils.getAuthenticatedAlaudaClient();
+        if (client == null) {
+            return Result.RETRY;
+        }
+
+        int version;
+        synchronized (this) {
+            version = entry.version;
+        }
+
+        String namespace = entry.namespace;
+        String name = entry.name;
+        try {
+            if (entry.delete) {
+                boolean deleted = client.pipelines().inNamespace(namespace).withName(name).delete();
+                LOGGER.fine(() -> "Delete Pipeline " + entry.key() + ", result is: " + deleted);
+                entry.sentVersion = version;
+                return deleted ? Result.DONE : Result.DROPPED;
+            }
+
+            Pipeline pipe = client.pipelines().inNamespace(namespace).withName(name).get();
+            if (pipe == null) {
+                LOGGER.warning(() -> "Can't find Pipeline by namespace: " + namespace + ", name: " + name);
+                entry.sentVersion = version;
+                return Result.DROPPED;
+            }
+
+            ObjectMeta meta = pipe.getMetadata();
+            if (entry.uid != null && !entry.uid.equals(meta.getUid())) {
+                LOGGER.info(() -> "Pipeline " + entry.key() + " was recreated, drop the pending mutation");
+                entry.sentVersion = version;
+                return Result.DROPPED;
+            }
+
+            PipelineStatus stats = pipe.getStatus();
+            if (stats == null) {
+                stats = new PipelineStatusBuilder().build();
+            }
+
+            // the scheduler might have triggered it after the position was recorded
+            boolean staleTriggerPosition = entry.triggerPosition != null && !AlaudaUtils.isWaitingForTrigger(pipe);
+            if (staleTriggerPosition) {
+                LOGGER.fine(() -> "Pipeline " + entry.key() + " is not waiting for trigger, skip its trigger position");
+            }
+
+            boolean changed = false;
+            boolean phaseSkipped = false;
+            if (entry.phase != null && !staleTriggerPosition && !entry.phase.equals(stats.getPhase())) {
+                // don't go back when someone else finished it after we recorded this change
+                boolean otherChange = entry.resourceVersion != null
+                        && !entry.resourceVersion.equals(meta.getResourceVersion());
+                if (otherChange && TERMINAL_PHASES.contains(stats.getPhase())
+                        && !TERMINAL_PHASES.contains(entry.phase)) {
+                    LOGGER.info(() -> "Pipeline " + entry.key() + " is finished already, skip to set phase " + entry.phase);
+                    phaseSkipped = true;
+                } else {
+                    stats.setPhase(entry.phase);
+                    changed = true;
+                }
+            }
+            if (entry.phase != null && !staleTriggerPosition) {
+                // the position is only meaningful while the Pipeline is held by the trigger scheduler
+                String wanted = phaseSkipped ? null : entry.triggerPosition;
+                Map<String, String> annotations = meta.getAnnotations();
+                if (annotations == null) {
+                    annotations = new HashMap<>();
+                }
+                String position = annotations.get(Constants.ALAUDA_DEVOPS_ANNOTATIONS_JENKINS_TRIGGER_POSITION);
+                if (wanted != null ? !wanted.equals(position) : position != null) {
+                    if (wanted != null) {
+                        annotations.put(Constants.ALAUDA_DEVOPS_ANNOTATIONS_JENKINS_TRIGGER_POSITION, wanted);
+                    } else {
+                        annotations.remove(Constants.ALAUDA_DEVOPS_ANNOTATIONS_JENKINS_TRIGGER_POSITION);
+                    }
+                    meta.setAnnotations(annotations);
+                    changed = true;
+                }
+            }
+            if (entry.aborted && !Boolean.TRUE.equals(stats.getAborted())) {
+                stats.setAborted(Boolean.TRUE);
+                changed = true;
+            }
+
+            if (changed) {
+                pipe.setStatus(stats);
+                client.pipelines().inNamespace(namespace).withName(name).patch(pipe);
+            }
+            entry.sentVersion = version;
+            return Result.DONE;
+        } catch (KubernetesClientException e) {
+            int code = e.getCode();
+            if (code == HttpStatus.SC_NOT_FOUND || code == HttpStatus.SC_CONFLICT
+                    || code == HttpStatus.SC_UNPROCESSABLE_ENTITY || code == HttpStatus.SC_FORBIDDEN) {
+                LOGGER.log(Level.WARNING, "Failed to send mutation of Pipeline " + entry.key() + ", drop it", e);
+                entry.sentVersion = version;
+                return Result.DROPPED;
+            }
+
+            LOGGER.log(Level.WARNING, "Failed to send mutation of Pipeline " + entry.key() + ", will retry it", e);
+            return Result.RETRY;
+        } catch (RuntimeException e) {
+            LOGGER.log(Level.WARNING, "Failed to send mutation of Pipeline " + entry.key() + ", will retry it", e);
+            return Result.RETRY;
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private void load() {
+        if (file == null || !file.exists()) {
+            return;
+        }
+
+        try {
+            Object obj = file.read();
+            if (obj instanceof List) {
+                for (Entry entry : (List<Entry>) obj) {
+                    entries.put(entry.key(), entry);
+                }
+            }
+            LOGGER.info(String.format("Loaded %d pending Pipeline mutations from %s", entries.size(), file));
+        } catch (IOException | RuntimeException e) {
+            LOGGER.log(Level.WARNING, "Failed to load the pending Pipeline mutations from " + file, e);
+        }
+    }
+
+    /**
+     * Write the pending mutations into the file if they were changed, the file is written without holding the outbox
+     */
+    void saveIfDirty() {
+        if (file == null) {
+            return;
+        }
+
+        synchronized (saveLock) {
+            List<Entry> snapshot = new ArrayList<>();
+            synchronized (this) {
+                if (!dirty) {
+                    return;
+                }
+                dirty = false;
+                for (Entry entry : entries.values()) {
+                    snapshot.add(entry.copy());
+                }
+            }
+
+            try {
+                if (snapshot.isEmpty()) {
+                    if (file.exists()) {
+                        file.delete();
+                    }
+                    return;
+                }
+
+                file.write(snapshot);
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "Failed to save the pending Pipeline mutations into " + file, e);
+                synchronized (this) {
+                    dirty = true;
+                }
+            }
+        }
+    }
+
+    private enum Result {
+        DONE, DROPPED, RETRY
+    }
+
+    /**
+     * Pending mutations of one Pipeline
+     */
+    static class Entry {
+        private final String namespace;
+        private final String name;
+        private String uid;
+        // version of the Pipeline when the change was made
+        private String resourceVersion;
+        private String phase;
+        // only set together with the phase, null means there's no position
+        private String triggerPosition;
+        private boolean aborted;
+        private boolean delete;
+        private final long createdAt;
+
+        private transient int version;
+        private transient int sentVersion = -1;
+
+        Entry(String namespace, String name, String uid, String resourceVersion) {
+            this(namespace, name, uid, resourceVersion, System.currentTimeMillis());
+        }
+
+        private Entry(String namespace, String name, String uid, String resourceVersion, long createdAt) {
+            this.namespace = namespace;
+            this.name = name;
+            this.uid = uid;
+            this.resourceVersion = resourceVersion;
+            this.createdAt = createdAt;
+        }
+
+        static Entry create(Pipeline pipeline) {
+            ObjectMeta meta = pipeline.getMetadata();
+            return new Entry(meta.getNamespace(), meta.getName(), meta.getUid(), meta.getResourceVersion());
+        }
+
+        NamespaceName key() {
+            return new NamespaceName(namespace, name);
+        }
+
+        String getPhase() {
+            return phase;
+        }
+
+        String getTriggerPosition() {
+            return triggerPosition;
+        }
+
+        boolean isAborted() {
+            return aborted;
+        }
+
+        boolean isDelete() {
+            return delete;
+        }
+
+        /**
+         * @return copy of the persisted fields, so it can be written while this one is changed
+         */
+        Entry copy() {
+            Entry copy = new Entry(namespace, name, uid, resourceVersion, createdAt);
+            copy.phase = phase;
+            copy.triggerPosition = triggerPosition;
+            copy.aborted = aborted;
+            copy.delete = delete;
+            return copy;
+        }
+
+        void merge(Entry newer) {
+            version++;
+            if (newer.delete) {
+                delete = true;
+                return;
+            }
+
+            if (newer.phase != null) {
+                phase = newer.phase;
+                triggerPosition = newer.triggerPosition;
+                resourceVersion = newer.resourceVersion;
+            }
+            if (newer.uid != null) {
+                uid = newer.uid;
+            }
+            aborted |= newer.aborted;
+        }
+
+        @Override
+        public String toString() {
+            return namespace + "/" + name + "[phase=" + phase + ", triggerPosition=" + triggerPosition
+                    + ", aborted=" + aborted + ", delete=" + delete + "]";
+        }
+    }
+
+    @Extension
+    public static class Replayer extends AsyncPeriodicWork {
+        public Replayer() {
+            super("Pipeline outbox replay work");
+        }
+
+        @Override
+        protected void execute(TaskListener listener) throws IOException, InterruptedException {
+            PipelineOutbox outbox = PipelineOutbox.getInstance();
+            if (outbox.size() > 0) {
+                LOGGER.info(String.format("Replaying %d pending Pipeline mutations", outbox.size()));
+                outbox.replay();
+            }
+            outbox.saveIfDirty();
+        }
+
+        @Override
+        public long getRecurrencePeriod() {
+            return TimeUnit.SECONDS.toMillis(15);
+        }
+    }
+}
@@ -15,37 +15,384 @@
  */
 package io.alauda.jenkins.devops.sync.util;
 
+import hudson.model.Action;
+import hudson.model.Cause;
 import hudson.model.CauseAction;
+import hudson.model.Job;
 import hudson.model.ParametersAction;
+import hudson.model.Run;
+import hudson.security.ACL;
+import hudson.security.ACLContext;
+import hudson.triggers.SCMTrigger;
+import hudson.triggers.TimerTrigger;
+import io.alauda.jenkins.devops.sync.constants.Annotations;
+import io.alauda.kubernetes.api.model.ObjectMeta;
+import io.alauda.kubernetes.api.model.Pipeline;
+import jenkins.model.Jenkins;
+import jenkins.security.HMACConfidentialKey;
+import net.sf.json.JSONArray;
+import net.sf.json.JSONObject;
+import org.acegisecurity.GrantedAuthority;
+import org.acegisecurity.providers.UsernamePasswordAuthenticationToken;
 
+import javax.annotation.CheckForNull;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
+/**
+ * Keeps the actions of builds which triggered from Jenkins until the Pipeline got triggered.
+ * Entries are evicted after {@link #DEFAULT_TTL} or when there are more than {@link #DEFAULT_MAX_SIZE}
+ * entries, so the actions of failed or cancelled Pipelines don't stay forever.
+ * The well-known causes of CauseAction are persisted onto the Pipeline as signed annotation too, they will be
+ * restored from there in case of master restarted. The signature is bound to the name and uid of the Pipeline,
+ * so it's only trusted on the Pipeline it was written for.
+ */
 public class PipelineToActionMapper {
+    private static final Logger LOGGER = Logger.getLogger(PipelineToActionMapper.class.getName());
 
-    private static Map<String, ParametersAction> buildToParametersMap;
-    private static Map<String, CauseAction> buildToCauseMap;
+    static final long DEFAULT_TTL = TimeUnit.HOURS.toMillis(1);
+    static final int DEFAULT_MAX_SIZE = 1000;
+    // the annotation should be small, give up if the cause is too large
+    private static final int MAX_ENCODED_LENGTH = 8 * 1024;
 
-    static {
-        buildToParametersMap = new ConcurrentHashMap<String, ParametersAction>();
-        buildToCauseMap = new ConcurrentHashMap<String, CauseAction>();
-    }
+    private static final String CAUSE_USER = "user";
+    private static final String CAUSE_UPSTREAM = "upstream";
+    private static final String CAUSE_TIMER = "timer";
+    private static final String CAUSE_SCM = "scm";
+
+    private static final HMACConfidentialKey CAUSE_KEY = new HMACConfidentialKey(PipelineToActionMapper.class, "causeAction");
 
-    public static synchronized void addParameterAction(String pipelineId,
+    private static final ActionStore<ParametersAction> buildToParametersMap = new ActionStore<>(DEFAULT_TTL, DEFAULT_MAX_SIZE);
+    private static final ActionStore<CauseAction> buildToCauseMap = new ActionStore<>(DEFAULT_TTL, DEFAULT_MAX_SIZE);
+
+    private PipelineToActionMapper() {}
+
+    public static void addParameterAction(String pipelineId,
             ParametersAction params) {
         buildToParametersMap.put(pipelineId, params);
     }
 
-    static synchronized ParametersAction removeParameterAction(String pipelineId) {
+    static ParametersAction removeParameterAction(String pipelineId) {
         return buildToParametersMap.remove(pipelineId);
     }
 
-    public static synchronized void addCauseAction(String pipelineId, CauseAction cause) {
+    public static void addCauseAction(String pipelineId, CauseAction cause) {
         buildToCauseMap.put(pipelineId, cause);
     }
 
-    static synchronized CauseAction removeCauseAction(String pipelineId) {
+    static CauseAction removeCauseAction(String pipelineId) {
         return buildToCauseMap.remove(pipelineId);
     }
 
+    /**
+     * Take the CauseAction of target Pipeline, will try to restore it from annotation
+     * if there is no one in memory.
+     * @param pipeline target Pipeline
+     * @return CauseAction of target Pipeline, null if not found
+     */
+    @CheckForNull
+    static CauseAction removeCauseAction(Pipeline pipeline) {
+        ObjectMeta meta = pipeline.getMetadata();
+        CauseAction causeAction = removeCauseAction(meta.getName());
+        if (causeAction != null) {
+            return causeAction;
+        }
+
+        Map<String, String> annotations = meta.getAnnotations();
+        if (annotations == null) {
+            return null;
+        }
+
+        return decodeCauseAction(meta.getNamespace(), meta.getName(), meta.getUid(),
+                annotations.get(Annotations.JENKINS_CAUSE_ACTION));
+    }
+
+    /**
+     * Describe the causes which we know how to restore as JSON, it's signed by a secret of Jenkins together with
+     * the identity of the Pipeline, so only the annotations written by this plugin for that Pipeline are trusted
+     * when they are decoded. It's written once the Pipeline is created, see PipelineCreationWorker.
+     * @param pipeline the Pipeline which is created
+     * @param causeAction CauseAction
+     * @return encoded text, null if there's nothing to keep or it's too large
+     */
+    @CheckForNull
+    public static String encodeCauseAction(Pipeline pipeline, CauseAction causeAction) {
+        ObjectMeta meta = pipeline.getMetadata();
+        JSONArray causes = describe(causeAction);
+        if (causes.isEmpty() || meta == null || meta.getUid() == null) {
+            return null;
+        }
+
+        JSONObject encoded = new JSONObject();
+        encoded.put("causes", causes);
+        encoded.put("mac", CAUSE_KEY.mac(signedMessage(meta.getNamespace(), meta.getName(), meta.getUid(), causes)));
+
+        String text = encoded.toString();
+        if (text.length() > MAX_ENCODED_LENGTH) {
+            LOGGER.fine(() -> "Encoded CauseAction is too large to keep, length is " + text.length());
+            return null;
+        }
+        return text;
+    }
+
+    /**
+     * Restore the CauseAction from annotation. It's only trusted when the signature matches the name and uid of
+     * the Pipeline, the uid is never reused, so the annotation copied onto any other Pipeline is rejected.
+     */
+    @CheckForNull
+    static CauseAction decodeCauseAction(String namespace, String pipelineName, String uid, String encoded) {
+        if (encoded == null || encoded.isEmpty() || uid == null) {
+            return null;
+        }
+
+        try {
+            JSONObject obj = JSONObject.fromObject(encoded);
+            JSONArray described = obj.getJSONArray("causes");
+            if (!CAUSE_KEY.checkMac(signedMessage(namespace, pipelineName, uid, described), obj.getString("mac"))) {
+                LOGGER.warning(() -> "Ignore the CauseAction annotation which was not signed for Pipeline "
+                        + namespace + "/" + pipelineName);
+                return null;
+            }
+
+            return restore(described);
+        } catch (RuntimeException e) {
+            LOGGER.log(Level.WARNING, "Failed to decode CauseAction from annotation", e);
+            return null;
+        }
+    }
+
+    /**
+     * Describe the causes which we know how to restore as JSON, it's not signed so only keep it where
+     * nobody else could change it
+     * @param causeAction CauseAction
+     * @return described causes, null if there's nothing to keep
+     */
+    @CheckForNull
+    public static String describeCauses(@CheckForNull CauseAction causeAction) {
+        JSONArray causes = describe(causeAction);
+        return causes.isEmpty() ? null : causes.toString();
+    }
+
+    /**
+     * Restore the CauseAction from the text of {@link #describeCauses(CauseAction)}
+     * @param described described causes
+     * @return CauseAction, null if none of the causes could be restored
+     */
+    @CheckForNull
+    public static CauseAction restoreCauses(@CheckForNull String described) {
+        if (described == null || described.isEmpty()) {
+            return null;
+        }
+
+        try {
+            return restore(JSONArray.fromObject(described));
+        } catch (RuntimeException e) {
+            LOGGER.log(Level.WARNING, "Failed to restore CauseAction from " + described, e);
+            return null;
+        }
+    }
+
+    private static String signedMessage(String namespace, String pipelineName, String uid, JSONArray causes) {
+        return namespace + "/" + pipelineName + "@" + uid + ":" + causes.toString();
+    }
+
+    private static JSONArray describe(@CheckForNull CauseAction causeAction) {
+        JSONArray causes = new JSONArray();
+        if (causeAction == null) {
+            return causes;
+        }
+
+        for (Cause cause : causeAction.getCauses()) {
+            JSONObject described = describe(cause);
+            if (described != null) {
+                causes.add(described);
+            }
+        }
+        return causes;
+    }
+
+    @CheckForNull
+    private static CauseAction restore(JSONArray described) {
+        List<Cause> causes = new ArrayList<>();
+        for (int i = 0; i < described.size(); i++) {
+            Cause cause = restore(described.getJSONObject(i));
+            if (cause != null) {
+                causes.add(cause);
+            }
+        }
+        return causes.isEmpty() ? null : new CauseAction(causes);
+    }
+
+    @CheckForNull
+    private static JSONObject describe(Cause cause) {
+        JSONObject described = new JSONObject();
+        if (cause instanceof Cause.UserIdCause) {
+            String userId = ((Cause.UserIdCause) cause).getUserId();
+            if (userId == null) {
+                return null;
+            }
+            described.put("type", CAUSE_USER);
+            described.put("userId", userId);
+        } else if (cause instanceof Cause.UpstreamCause) {
+            Cause.UpstreamCause upstream = (Cause.UpstreamCause) cause;
+            described.put("type", CAUSE_UPSTREAM);
+            described.put("job", upstream.getUpstreamProject());
+            described.put("build", upstream.getUpstreamBuild());
+        } else if (cause instanceof TimerTrigger.TimerTriggerCause) {
+            described.put("type", CAUSE_TIMER);
+        } else if (cause instanceof SCMTrigger.SCMTriggerCause) {
+            described.put("type", CAUSE_SCM);
+        } else {
+            return null;
+        }
+        return described;
+    }
+
+    @CheckForNull
+    private static Cause restore(JSONObject described) {
+        switch (described.optString("type")) {
+            case CAUSE_USER:
+                String userId = described.getString("userId");
+                // UserIdCause takes the current user
+                try (ACLContext ignored = ACL.as(new UsernamePasswordAuthenticationToken(userId, "",
+                        new GrantedAuthority[0]))) {
+                    return new Cause.UserIdCause();
+                }
+            case CAUSE_UPSTREAM:
+                Job<?, ?> job = Jenkins.getInstance().getItemByFullName(described.getString("job"), Job.class);
+                Run<?, ?> build = job == null ? null : job.getBuildByNumber(described.getInt("build"));
+                return build == null ? null : new Cause.UpstreamCause(build);
+            case CAUSE_TIMER:
+                return new TimerTrigger.TimerTriggerCause();
+            case CAUSE_SCM:
+                return new SCMTrigger.SCMTriggerCause("");
+            default:
+                return null;
+        }
+    }
+
+    public static long getHitCount() {
+        return buildToCauseMap.hits.get() + buildToParametersMap.hits.get();
+    }
+
+    public static long getMissCount() {
+        return buildToCauseMap.misses.get() + buildToParametersMap.misses.get();
+    }
+
+    public static long getEvictionCount() {
+        return buildToCauseMap.evictions.get() + buildToParametersMap.evictions.get();
+    }
+
+    public static int size() {
+        return buildToCauseMap.map.size() + buildToParametersMap.map.size();
+    }
+
+    /**
+     * Bounded store which evicts the entries by time, it doesn't need any lock.
+     * Expired entries are swept by the put and remove calls, at most once per {@link #SWEEP_INTERVAL}.
+     * @param <T> type of action
+     */
+    static class ActionStore<T extends Action> {
+        private static final long SWEEP_INTERVAL = TimeUnit.MINUTES.toMillis(1);
+
+        private final Map<String, Entry<T>> map = new ConcurrentHashMap<>();
+        private final long ttl;
+        private final int maxSize;
+        private final AtomicLong nextSweep = new AtomicLong();
+
+        private final AtomicLong hits = new AtomicLong();
+        private final AtomicLong misses = new AtomicLong();
+        private final AtomicLong evictions = new AtomicLong();
+
+        ActionStore(long ttl, int maxSize) {
+            this.ttl = ttl;
+            this.maxSize = maxSize;
+        }
+
+        void put(String key, T value) {
+            long now = System.currentTimeMillis();
+            map.put(key, new Entry<>(value, now));
+
+            if (map.size() > maxSize) {
+                evict();
+            } else {
+                sweepIfDue(now);
+            }
+        }
+
+        T remove(String key) {
+            long now = System.currentTimeMillis();
+            Entry<T> entry = map.remove(key);
+            sweepIfDue(now);
+            if (entry == null || entry.isExpired(now, ttl)) {
+                misses.incrementAndGet();
+                return null;
+            }
+
+            hits.incrementAndGet();
+            return entry.value;
+        }
+
+        private void sweepIfDue(long now) {
+            long due = nextSweep.get();
+            if (now >= due && nextSweep.compareAndSet(due, now + SWEEP_INTERVAL)) {
+                removeExpired(now);
+            }
+        }
+
+        private void removeExpired(long now) {
+            map.entrySet().removeIf(entry -> {
+                boolean expired = entry.getValue().isExpired(now, ttl);
+                if (expired) {
+                    evictions.incrementAndGet();
+                }
+                return expired;
+            });
+        }
+
+        private void evict() {
+            long now = System.currentTimeMillis();
+            removeExpired(now);
+            nextSweep.set(now + SWEEP_INTERVAL);
+
+            // still too many, drop the oldest ones
+            while (map.size() > maxSize) {
+                String oldestKey = null;
+                long oldest = Long.MAX_VALUE;
+                for (Map.Entry<String, Entry<T>> entry : map.entrySet()) {
+                    if (entry.getValue().createdAt < oldest) {
+                        oldest = entry.getValue().createdAt;
+                        oldestKey = entry.getKey();
+                    }
+                }
+
+                if (oldestKey == null) {
+                    break;
+                }
+                if (map.remove(oldestKey) != null) {
+                    evictions.incrementAndGet();
+                }
+            }
+        }
+    }
+
+    private static class Entry<T> {
+        private final T value;
+        private final long createdAt;
+
+        Entry(T value, long createdAt) {
+            this.value = value;
+            this.createdAt = createdAt;
+        }
+
+        boolean isExpired(long now, long ttl) {
+            return now - createdAt > ttl;
+        }
+    }
 }
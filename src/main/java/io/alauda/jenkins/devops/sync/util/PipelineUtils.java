@@ -13,18 +13,17 @@ import io.alauda.kubernetes.api.model.PipelineList;
 import org.jenkinsci.plugins.workflow.job.WorkflowJob;
 import org.jenkinsci.plugins.workflow.job.WorkflowRun;
 
+import javax.annotation.Nonnull;
 import java.util.Map;
 
 import static io.alauda.jenkins.devops.sync.constants.Constants.ALAUDA_DEVOPS_LABELS_PIPELINE_CONFIG;
 
 public class PipelineUtils {
-    public static boolean delete(String namespace, String name) {
-        AlaudaDevOpsClient client = AlaudaUtils.getAuthenticatedAlaudaClient();
-        if(client == null) {
-            return false;
-        }
-
-        return client.pipelines().inNamespace(namespace).withName(name).delete();
+    /**
+     * The Pipeline is deleted in background, see {@link PipelineOutbox}
+     */
+    public static void delete(String namespace, String name) {
+        PipelineOutbox.getInstance().delete(namespace, name);
     }
 
     public static void pipelinesCheck(PipelineConfig config) {
@@ -107,20 +106,30 @@ public class PipelineUtils {
             } else {
                 Result result = run.getResult();
                 if (result != null) {
-                    if (result.equals(Result.SUCCESS)) {
-                        return PipelinePhases.COMPLETE;
-                    } else if (result.equals(Result.ABORTED)) {
-                        return PipelinePhases.CANCELLED;
-                    } else if (result.equals(Result.FAILURE)) {
-                        return PipelinePhases.FAILED;
-                    } else if (result.equals(Result.UNSTABLE)) {
-                        return PipelinePhases.FAILED;
-                    } else {
-                        return PipelinePhases.QUEUED;
-                    }
+                    return resultToPipelinePhase(result);
                 }
             }
         }
         return PipelinePhases.PENDING;
     }
+
+    /**
+     * Phase of a run which has its result already, it's taken even the run is still building,
+     * e.g. in {@link hudson.model.listeners.RunListener#onCompleted}
+     * @param result result of run
+     * @return phase of Pipeline
+     */
+    public static String resultToPipelinePhase(@Nonnull Result result) {
+        if (result.equals(Result.SUCCESS)) {
+            return PipelinePhases.COMPLETE;
+        } else if (result.equals(Result.ABORTED)) {
+            return PipelinePhases.CANCELLED;
+        } else if (result.equals(Result.FAILURE)) {
+            return PipelinePhases.FAILED;
+        } else if (result.equals(Result.UNSTABLE)) {
+            return PipelinePhases.FAILED;
+        } else {
+            return PipelinePhases.QUEUED;
+        }
+    }
 }
@@ -0,0 +1,194 @@
+/**
+ * Copyright (C) 2018 Alauda.io
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.alauda.jenkins.devops.sync.util;
+
+import hudson.model.Cause;
+import hudson.model.Queue;
+import io.alauda.jenkins.devops.sync.JenkinsPipelineCause;
+import jenkins.model.Jenkins;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Index of the queue items which were scheduled for Pipelines, by the uid of Pipeline and of PipelineConfig.
+ * It's fed by {@link io.alauda.jenkins.devops.sync.listener.PipelineQueueListener}, so cancelling a Pipeline
+ * doesn't need to go through every cause of every item in the queue.
+ * <p>
+ * The items which were restored from the disk don't pass the listener, the index is built from the queue
+ * on its first use for them.
+ * <p>
+ * The item object is replaced when it moves between the waiting, blocked and buildable states, the latest one
+ * is kept by a weak reference, so cancelling an item doesn't need to look it up through the queue.
+ */
+public class QueuedPipelineIndex {
+    private static final QueuedPipelineIndex instance = new QueuedPipelineIndex();
+
+    // Pipeline uid -> queue item ids
+    private final Map<String, Set<Long>> byPipeline = new HashMap<>();
+    // PipelineConfig uid -> queue item ids
+    private final Map<String, Set<Long>> byPipelineConfig = new HashMap<>();
+    // namespace of Pipeline -> queue item ids
+    private final Map<String, Set<Long>> byNamespace = new HashMap<>();
+    // queue item id -> latest item object
+    private final Map<Long, WeakReference<Queue.Item>> items = new HashMap<>();
+    private boolean loaded;
+
+    private QueuedPipelineIndex() {}
+
+    public static QueuedPipelineIndex getInstance() {
+        return instance;
+    }
+
+    public synchronized void add(@Nonnull Queue.Item item) {
+        JenkinsPipelineCause cause = getCause(item);
+        if (cause == null) {
+            return;
+        }
+
+        put(byPipeline, cause.getUid(), item.getId());
+        put(byPipelineConfig, cause.getPipelineConfigUid(), item.getId());
+        put(byNamespace, cause.getNamespace(), item.getId());
+        items.put(item.getId(), new WeakReference<>(item));
+    }
+
+    /**
+     * Keep the latest object of the item, it's called when the item enters another state of queue
+     */
+    public synchronized void update(@Nonnull Queue.Item item) {
+        if (items.containsKey(item.getId())) {
+            items.put(item.getId(), new WeakReference<>(item));
+        }
+    }
+
+    public synchronized void remove(@Nonnull Queue.Item item) {
+        JenkinsPipelineCause cause = getCause(item);
+        if (cause == null) {
+            return;
+        }
+
+        remove(byPipeline, cause.getUid(), item.getId());
+        remove(byPipelineConfig, cause.getPipelineConfigUid(), item.getId());
+        remove(byNamespace, cause.getNamespace(), item.getId());
+        items.remove(item.getId());
+    }
+
+    /**
+     * @param id id of queue item
+     * @return the latest item object which was seen by the listener, it might be out of date already
+     */
+    @CheckForNull
+    public synchronized Queue.Item getItem(long id) {
+        WeakReference<Queue.Item> ref = items.get(id);
+        return ref != null ? ref.get() : null;
+    }
+
+    /**
+     * @param pipelineUid uid of Pipeline
+     * @return ids of the queue items which were scheduled for target Pipeline
+     */
+    @Nonnull
+    public synchronized List<Long> getItemIds(String pipelineUid) {
+        load();
+        return get(byPipeline, pipelineUid);
+    }
+
+    /**
+     * @param pipelineConfigUid uid of PipelineConfig
+     * @return ids of the queue items which were scheduled for the Pipelines of target PipelineConfig
+     */
+    @Nonnull
+    public synchronized List<Long> getItemIdsByPipelineConfig(String pipelineConfigUid) {
+        load();
+        return get(byPipelineConfig, pipelineConfigUid);
+    }
+
+    /**
+     * @return count of the queue items which were scheduled for Pipelines
+     */
+    public synchronized int getQueuedCount() {
+        load();
+        int count = 0;
+        for (Set<Long> ids : byNamespace.values()) {
+            count += ids.size();
+        }
+        return count;
+    }
+
+    /**
+     * @param namespace namespace of Pipelines
+     * @return count of the queue items which were scheduled for the Pipelines of target namespace
+     */
+    public synchronized int getQueuedCount(String namespace) {
+        load();
+        Set<Long> ids = namespace == null ? null : byNamespace.get(namespace);
+        return ids == null ? 0 : ids.size();
+    }
+
+    private void load() {
+        if (loaded) {
+            return;
+        }
+
+        Jenkins jenkins = Jenkins.getInstanceOrNull();
+        if (jenkins == null) {
+            return;
+        }
+
+        for (Queue.Item item : jenkins.getQueue().getItems()) {
+            add(item);
+        }
+        loaded = true;
+    }
+
+    @CheckForNull
+    private static JenkinsPipelineCause getCause(Queue.Item item) {
+        for (Cause cause : item.getCauses()) {
+            if (cause instanceof JenkinsPipelineCause) {
+                return (JenkinsPipelineCause) cause;
+            }
+        }
+        return null;
+    }
+
+    private static void put(Map<String, Set<Long>> index, String key, long id) {
+        if (key != null) {
+            index.computeIfAbsent(key, k -> new LinkedHashSet<>()).add(id);
+        }
+    }
+
+    private static void remove(Map<String, Set<Long>> index, String key, long id) {
+        Set<Long> ids = key == null ? null : index.get(key);
+        if (ids != null) {
+            ids.remove(id);
+            if (ids.isEmpty()) {
+                index.remove(key);
+            }
+        }
+    }
+
+    private static List<Long> get(Map<String, Set<Long>> index, String key) {
+        Set<Long> ids = key == null ? null : index.get(key);
+        return ids == null ? new ArrayList<>() : new ArrayList<>(ids);
+    }
+}
@@ -0,0 +1,195 @@
+/**
+ * Copyright (C) 2018 Alauda.io
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.alauda.jenkins.devops.sync.util;
+
+import hudson.util.AtomicFileWriter;
+import jenkins.model.Jenkins;
+
+import javax.annotation.Nonnull;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Append-only journal of the runs which failed to sync their status into Pipeline.
+ * Each line is either {@code +<run id>} or {@code -<run id>}, the run id is
+ * {@link hudson.model.Run#getExternalizableId()}. The file is compacted when most of the lines are stale.
+ * <p>
+ * The retry task only needs to read this journal instead of loading every build of every job.
+ * Once the unsynced runs of older versions were found, {@link #markMigrated()} writes a marker line,
+ * so the file exists even if every run is synced and the builds are not scanned again after restart.
+ */
+public class UnsyncedRunJournal {
+    private static final Logger LOGGER = Logger.getLogger(UnsyncedRunJournal.class.getName());
+
+    private static final String JOURNAL_FILE = "alauda-sync/unsynced-runs.journal";
+    static final int COMPACT_MIN_LINES = 1000;
+    private static final String MIGRATED_MARKER = "#migrated";
+
+    private static UnsyncedRunJournal instance;
+
+    private final File file;
+    private final Set<String> runIds = new LinkedHashSet<>();
+    private boolean existed;
+    private int lines;
+
+    UnsyncedRunJournal(@Nonnull File file) {
+        this.file = file;
+        this.existed = file.exists();
+        load();
+    }
+
+    public static synchronized UnsyncedRunJournal getInstance() {
+        if (instance == null) {
+            instance = new UnsyncedRunJournal(new File(Jenkins.getInstance().getRootDir(), JOURNAL_FILE));
+        }
+        return instance;
+    }
+
+    /**
+     * @return false if there was no journal file when it was loaded and it's not migrated yet,
+     * the unsynced runs from older versions are not recorded in that case
+     */
+    public synchronized boolean isExisted() {
+        return existed;
+    }
+
+    /**
+     * Record that the unsynced runs from older versions are in the journal now
+     */
+    public synchronized void markMigrated() {
+        if (existed) {
+            return;
+        }
+
+        if (file.exists() || append(MIGRATED_MARKER)) {
+            existed = true;
+        }
+    }
+
+    public synchronized void add(@Nonnull String runId) {
+        if (runIds.add(runId)) {
+            append('+', runId);
+        }
+    }
+
+    public synchronized void remove(@Nonnull String runId) {
+        if (runIds.remove(runId)) {
+            append('-', runId);
+            compactIfNeeded();
+        }
+    }
+
+    public synchronized boolean contains(String runId) {
+        return runIds.contains(runId);
+    }
+
+    @Nonnull
+    public synchronized List<String> getRunIds() {
+        return new ArrayList<>(runIds);
+    }
+
+    public synchronized int size() {
+        return runIds.size();
+    }
+
+    private void load() {
+        if (!file.exists()) {
+            return;
+        }
+
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(
+                Files.newInputStream(file.toPath()), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                lines++;
+                if (line.length() < 2) {
+                    continue;
+                }
+
+                String runId = line.substring(1);
+                if (line.charAt(0) == '+') {
+                    runIds.add(runId);
+                } else if (line.charAt(0) == '-') {
+                    runIds.remove(runId);
+                }
+            }
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Failed to load the journal of unsynced runs " + file, e);
+        }
+
+        LOGGER.info(String.format("Loaded %d unsynced runs from %s", runIds.size(), file));
+        compactIfNeeded();
+    }
+
+    private void append(char op, String runId) {
+        append(op + runId);
+    }
+
+    private boolean append(String line) {
+        File parent = file.getParentFile();
+        if (parent != null && !parent.exists() && !parent.mkdirs()) {
+            LOGGER.warning("Failed to create directory " + parent);
+            return false;
+        }
+
+        try (Writer writer = new OutputStreamWriter(new FileOutputStream(file, true), StandardCharsets.UTF_8)) {
+            writer.write(line);
+            writer.write('\n');
+            lines++;
+            return true;
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Failed to write the journal of unsynced runs " + file, e);
+            return false;
+        }
+    }
+
+    private void compactIfNeeded() {
+        if (lines < COMPACT_MIN_LINES || lines < runIds.size() * 2) {
+            return;
+        }
+
+        AtomicFileWriter writer = null;
+        try {
+            writer = new AtomicFileWriter(file);
+            for (String runId : runIds) {
+                writer.write('+');
+                writer.write(runId);
+                writer.write('\n');
+            }
+            writer.commit();
+            lines = runIds.size();
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Failed to compact the journal of unsynced runs " + file, e);
+        } finally {
+            if (writer != null) {
+                writer.abort();
+            }
+        }
+    }
+}
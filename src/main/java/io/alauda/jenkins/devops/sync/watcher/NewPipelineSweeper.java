@@ -0,0 +1,157 @@
+/**
+ * Copyright (C) 2018 Alauda.io
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.alauda.jenkins.devops.sync.watcher;
+
+import hudson.security.ACL;
+import hudson.security.ACLContext;
+import hudson.triggers.SafeTimerTask;
+import io.alauda.devops.client.AlaudaDevOpsClient;
+import io.alauda.jenkins.devops.sync.constants.Constants;
+import io.alauda.jenkins.devops.sync.util.AlaudaUtils;
+import io.alauda.jenkins.devops.sync.util.JenkinsUtils;
+import io.alauda.kubernetes.api.model.Pipeline;
+import io.alauda.kubernetes.api.model.PipelineList;
+import io.alauda.kubernetes.client.KubernetesClientException;
+import jenkins.util.Timer;
+
+import javax.annotation.Nonnull;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Backup query of the new Pipelines for the PipelineConfigs which were just added, in case the events
+ * of their Pipelines were lost. The requests in one window are coalesced, the Pipelines of the requested
+ * PipelineConfigs are listed per namespace by their label and the new ones are dispatched to the jobs. The names
+ * go into the query string of the label selector, so they are sent in chunks to keep the URL short.
+ */
+public class NewPipelineSweeper {
+    private static final Logger logger = Logger.getLogger(NewPipelineSweeper.class.getName());
+
+    private static final long WINDOW = TimeUnit.SECONDS.toMillis(10);
+    // PipelineConfig names are up to 253 characters, this keeps the URL of one query under 16k
+    static final int MAX_NAMES_PER_QUERY = 50;
+
+    private static final NewPipelineSweeper INSTANCE = new NewPipelineSweeper();
+
+    // namespace -> names of PipelineConfig
+    private final Map<String, Set<String>> requests = new HashMap<>();
+    private final AtomicBoolean scheduled = new AtomicBoolean();
+
+    private NewPipelineSweeper() {}
+
+    public static NewPipelineSweeper getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Check the new Pipelines of target PipelineConfig in the next sweep
+     * @param namespace namespace of PipelineConfig
+     * @param pcName name of PipelineConfig
+     */
+    public void request(@Nonnull String namespace, @Nonnull String pcName) {
+        synchronized (requests) {
+            requests.computeIfAbsent(namespace, key -> new HashSet<>()).add(pcName);
+        }
+
+        if (scheduled.compareAndSet(false, true)) {
+            Timer.get().schedule(new SafeTimerTask() {
+                @Override
+                protected void doRun() {
+                    sweep();
+                }
+            }, WINDOW, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private void sweep() {
+        // the requests after this will go to the next window
+        scheduled.set(false);
+
+        Map<String, Set<String>> batch;
+        synchronized (requests) {
+            batch = new HashMap<>(requests);
+            requests.clear();
+        }
+
+        AlaudaDevOpsClient client = AlaudaUtils.getAuthenticatedAlaudaClient();
+        if (client == null) {
+            logger.warning("client is null, skip the backup query of new Pipelines");
+            return;
+        }
+
+        try (ACLContext ignored = ACL.as(ACL.SYSTEM)) {
+            batch.forEach((namespace, pcNames) -> sweep(client, namespace, pcNames));
+        }
+    }
+
+    private void sweep(AlaudaDevOpsClient client, String namespace, Set<String> pcNames) {
+        for (List<String> chunk : chunk(pcNames, MAX_NAMES_PER_QUERY)) {
+            sweepChunk(client, namespace, new HashSet<>(chunk));
+        }
+    }
+
+    private void sweepChunk(AlaudaDevOpsClient client, String namespace, Set<String> pcNames) {
+        PipelineList list;
+        try {
+            list = JenkinsUtils.filterNew(client.pipelines().inNamespace(namespace)
+                    .withLabelIn(Constants.ALAUDA_DEVOPS_LABELS_PIPELINE_CONFIG, pcNames.toArray(new String[0])).list());
+        } catch (KubernetesClientException e) {
+            logger.log(Level.WARNING, "Failed to list new Pipelines in namespace " + namespace, e);
+            return;
+        }
+
+        if (list == null || list.getItems() == null) {
+            return;
+        }
+
+        // the label and the spec might not agree, the spec is the one to trust
+        list.getItems().removeIf(pipeline -> !isRequested(pipeline, pcNames));
+        if (!list.getItems().isEmpty()) {
+            logger.info(() -> String.format("pipeline backup query for %d PipelineConfigs in namespace %s found %d new pipelines",
+                    pcNames.size(), namespace, list.getItems().size()));
+            PipelineWatcher.onInitialPipelines(list);
+        }
+    }
+
+    static List<List<String>> chunk(Set<String> names, int size) {
+        List<List<String>> chunks = new ArrayList<>();
+        List<String> current = new ArrayList<>(size);
+        for (String name : names) {
+            current.add(name);
+            if (current.size() == size) {
+                chunks.add(current);
+                current = new ArrayList<>(size);
+            }
+        }
+        if (!current.isEmpty()) {
+            chunks.add(current);
+        }
+        return chunks;
+    }
+
+    private static boolean isRequested(Pipeline pipeline, Set<String> pcNames) {
+        return pipeline.getSpec() != null && pipeline.getSpec().getPipelineConfig() != null
+                && pcNames.contains(pipeline.getSpec().getPipelineConfig().getName());
+    }
+}
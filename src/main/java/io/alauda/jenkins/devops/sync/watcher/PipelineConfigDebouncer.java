@@ -0,0 +1,274 @@
+/**
+ * Copyright (C) 2018 Alauda.io
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.alauda.jenkins.devops.sync.watcher;
+
+import hudson.security.ACL;
+import hudson.security.ACLContext;
+import io.alauda.jenkins.devops.sync.util.NamespaceName;
+import io.alauda.kubernetes.api.model.PipelineConfig;
+import io.alauda.kubernetes.client.Watcher;
+import jenkins.util.Timer;
+
+import javax.annotation.Nonnull;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Handles the events of PipelineConfigs one at a time per PipelineConfig, and debounces the MODIFIED ones.
+ * One change of user usually comes with a few more events caused by our own writes, e.g. the formatted Jenkinsfile,
+ * annotations and phase. MODIFIED events of the same PipelineConfig are held until there's no new one in
+ * {@link #QUIET_MS}, or the first one has waited for {@link #MAX_DELAY_MS}, then only the latest state is converted.
+ * <p>
+ * ADDED and DELETED events go through the same lane without waiting, so a conversion which is still running
+ * can't bring back a deleted job. Events which arrive while the lane is busy are handled after it.
+ */
+public class PipelineConfigDebouncer {
+    private static final Logger logger = Logger.getLogger(PipelineConfigDebouncer.class.getName());
+
+    static final long QUIET_MS = TimeUnit.SECONDS.toMillis(1);
+    static final long MAX_DELAY_MS = TimeUnit.SECONDS.toMillis(5);
+    private static final long STATS_LOG_INTERVAL_MS = TimeUnit.MINUTES.toMillis(10);
+
+    private final Handler handler;
+    private final Scheduler scheduler;
+    private final LongSupplier clock;
+    private final Map<NamespaceName, Lane> lanes = new HashMap<>();
+
+    private final AtomicLong receivedCount = new AtomicLong();
+    private final AtomicLong absorbedCount = new AtomicLong();
+    private final AtomicLong convertedCount = new AtomicLong();
+    private volatile long lastStatsLog;
+
+    PipelineConfigDebouncer(@Nonnull Handler handler) {
+        this(handler, (task, delay) -> Timer.get().schedule(task, delay, TimeUnit.MILLISECONDS),
+                System::currentTimeMillis);
+    }
+
+    PipelineConfigDebouncer(@Nonnull Handler handler, @Nonnull Scheduler scheduler, @Nonnull LongSupplier clock) {
+        this.handler = handler;
+        this.scheduler = scheduler;
+        this.clock = clock;
+        this.lastStatsLog = clock.getAsLong();
+    }
+
+    /**
+     * Put the event into the lane of its PipelineConfig
+     * @param action ADDED, MODIFIED or DELETED
+     * @param pipelineConfig PipelineConfig of the event
+     */
+    public void submit(@Nonnull Watcher.Action action, @Nonnull PipelineConfig pipelineConfig) {
+        receivedCount.incrementAndGet();
+        NamespaceName key = NamespaceName.create(pipelineConfig);
+        long now = clock.getAsLong();
+        long delay;
+        synchronized (lanes) {
+            Lane lane = lanes.computeIfAbsent(key, k -> new Lane());
+            absorbedCount.addAndGet(lane.offer(new Event(action, pipelineConfig, now)));
+            if (lane.inFlight || lane.armed) {
+                // it will be handled after the running one, or by the armed timer
+                return;
+            }
+
+            lane.armed = true;
+            delay = lane.delay(now);
+        }
+        scheduler.schedule(() -> fire(key), delay);
+    }
+
+    private void fire(NamespaceName key) {
+        Event event;
+        synchronized (lanes) {
+            Lane lane = lanes.get(key);
+            if (lane == null) {
+                return;
+            }
+            lane.armed = false;
+            if (lane.inFlight) {
+                return;
+            }
+            if (lane.events.isEmpty()) {
+                lanes.remove(key);
+                return;
+            }
+
+            long delay = lane.delay(clock.getAsLong());
+            if (delay > 0) {
+                lane.armed = true;
+                scheduler.schedule(() -> fire(key), delay);
+                return;
+            }
+
+            event = lane.events.poll();
+            lane.inFlight = true;
+        }
+
+        if (event.absorbed > 0) {
+            logger.fine(() -> String.format("PipelineConfig %s absorbed %d %s events", key, event.absorbed, event.action));
+        }
+        if (event.action == Watcher.Action.MODIFIED) {
+            convertedCount.incrementAndGet();
+        }
+        try (ACLContext ignored = ACL.as(ACL.SYSTEM)) {
+            handler.handle(event.action, event.pipelineConfig);
+        } catch (Exception e) {
+            logger.log(Level.WARNING, "Failed to handle the " + event.action + " event of PipelineConfig " + key, e);
+        } finally {
+            done(key);
+        }
+        logStats();
+    }
+
+    private void done(NamespaceName key) {
+        long delay;
+        synchronized (lanes) {
+            Lane lane = lanes.get(key);
+            if (lane == null) {
+                return;
+            }
+            lane.inFlight = false;
+            if (lane.events.isEmpty()) {
+                lanes.remove(key);
+                return;
+            }
+
+            lane.armed = true;
+            delay = lane.delay(clock.getAsLong());
+        }
+        scheduler.schedule(() -> fire(key), delay);
+    }
+
+    private void logStats() {
+        long now = clock.getAsLong();
+        if (now - lastStatsLog < STATS_LOG_INTERVAL_MS) {
+            return;
+        }
+        lastStatsLog = now;
+        logger.info(() -> String.format("PipelineConfig events: received %d, absorbed %d, converted %d, pending %d",
+                getReceivedCount(), getAbsorbedCount(), getConvertedCount(), getPendingCount()));
+    }
+
+    /**
+     * @return count of the events which were received
+     */
+    public long getReceivedCount() {
+        return receivedCount.get();
+    }
+
+    /**
+     * @return count of the events which were replaced by a later one
+     */
+    public long getAbsorbedCount() {
+        return absorbedCount.get();
+    }
+
+    /**
+     * @return count of the conversions of MODIFIED events which were done
+     */
+    public long getConvertedCount() {
+        return convertedCount.get();
+    }
+
+    /**
+     * @return count of the events which are waiting in lanes
+     */
+    public int getPendingCount() {
+        synchronized (lanes) {
+            int count = 0;
+            for (Lane lane : lanes.values()) {
+                count += lane.events.size();
+            }
+            return count;
+        }
+    }
+
+    interface Handler {
+        void handle(Watcher.Action action, PipelineConfig pipelineConfig) throws Exception;
+    }
+
+    interface Scheduler {
+        void schedule(Runnable task, long delayMs);
+    }
+
+    private static class Lane {
+        private final Deque<Event> events = new ArrayDeque<>();
+        // a timer is scheduled for this lane
+        private boolean armed;
+        // an event of this lane is being handled
+        private boolean inFlight;
+
+        /**
+         * @return count of the events which were dropped because of this one
+         */
+        int offer(Event event) {
+            if (event.action == Watcher.Action.DELETED) {
+                // nothing before the deletion needs to be converted
+                int dropped = 0;
+                int absorbed = 0;
+                while (!events.isEmpty() && events.peekLast().action != Watcher.Action.DELETED) {
+                    absorbed += events.pollLast().absorbed + 1;
+                    dropped++;
+                }
+                event.absorbed = absorbed;
+                events.add(event);
+                // the ones which were absorbed by the dropped events are counted already
+                return dropped;
+            }
+
+            Event last = events.peekLast();
+            if (last != null && last.action != Watcher.Action.DELETED) {
+                // keep ADDED, the latest state is taken anyway
+                last.pipelineConfig = event.pipelineConfig;
+                last.lastSeen = event.lastSeen;
+                last.absorbed++;
+                return 1;
+            }
+
+            events.add(event);
+            return 0;
+        }
+
+        long delay(long now) {
+            Event head = events.peek();
+            if (head == null || head.action != Watcher.Action.MODIFIED) {
+                return 0;
+            }
+            long due = Math.min(head.lastSeen + QUIET_MS, head.firstSeen + MAX_DELAY_MS);
+            return Math.max(0, due - now);
+        }
+    }
+
+    private static class Event {
+        private final Watcher.Action action;
+        private PipelineConfig pipelineConfig;
+        private final long firstSeen;
+        private long lastSeen;
+        private int absorbed;
+
+        Event(Watcher.Action action, PipelineConfig pipelineConfig, long now) {
+            this.action = action;
+            this.pipelineConfig = pipelineConfig;
+            this.firstSeen = now;
+            this.lastSeen = now;
+        }
+    }
+}
@@ -20,12 +20,11 @@ import hudson.Extension;
 import hudson.ExtensionList;
 import hudson.model.TopLevelItem;
 import hudson.security.ACL;
-import hudson.triggers.SafeTimerTask;
 import io.alauda.devops.client.AlaudaDevOpsClient;
 import io.alauda.jenkins.devops.sync.AlaudaJobProperty;
+import io.alauda.jenkins.devops.sync.AlaudaSyncGlobalConfiguration;
 import io.alauda.jenkins.devops.sync.PipelineConfigConvert;
 import io.alauda.jenkins.devops.sync.WatcherCallback;
-import io.alauda.jenkins.devops.sync.constants.Constants;
 import io.alauda.jenkins.devops.sync.constants.ErrorMessages;
 import io.alauda.jenkins.devops.sync.constants.PipelineConfigPhase;
 import io.alauda.jenkins.devops.sync.util.*;
@@ -33,14 +32,11 @@ import io.alauda.kubernetes.api.model.*;
 import io.alauda.kubernetes.client.Watcher;
 import jenkins.model.Jenkins;
 import jenkins.security.NotReallyRoleSensitiveCallable;
-import jenkins.util.Timer;
 
 import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Optional;
-import java.util.concurrent.TimeUnit;
-import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import static java.util.logging.Level.SEVERE;
@@ -61,6 +57,8 @@ public class PipelineConfigWatcher extends AbstractWatcher implements BaseWatche
     // available
     private static final HashSet<String> deletesInProgress = new HashSet<String>();
     private WatcherCallback watcherCallback;
+    // shared by the watchers which are created when the settings change, so events of one PipelineConfig stay in one lane
+    private static final PipelineConfigDebouncer eventLanes = new PipelineConfigDebouncer(PipelineConfigWatcher::handleEvent);
 
     public static synchronized void deleteInProgress(String pcName) {
         deletesInProgress.add(pcName);
@@ -99,9 +97,12 @@ public class PipelineConfigWatcher extends AbstractWatcher implements BaseWatche
         return watcherCallback;
     }
 
+    public static PipelineConfigDebouncer getEventLanes() {
+        return eventLanes;
+    }
+
     @Override
     public void init(String[] namespaces) {
-        PipelineConfigToJobMap.initializePipelineConfigToJobMap();
 
         for (String namespace : namespaces) {
             logger.info("Looking for pipeline configs in namespace " + namespace);
@@ -140,7 +141,7 @@ public class PipelineConfigWatcher extends AbstractWatcher implements BaseWatche
     }
 
     @SuppressFBWarnings("SF_SWITCH_NO_DEFAULT")
-    public synchronized void eventReceived(Watcher.Action action, PipelineConfig pipelineConfig) {
+    public void eventReceived(Watcher.Action action, PipelineConfig pipelineConfig) {
         ObjectMeta meta = pipelineConfig.getMetadata();
         String pipelineName = meta.getName();
         logger.info("PipelineConfigWatcher receive event: " + action + "; name: " + pipelineName);
@@ -168,70 +169,71 @@ public class PipelineConfigWatcher extends AbstractWatcher implements BaseWatche
             return;
         }
 
-        try {
-            switch (action) {
-                case ADDED:
-                    upsertJob(pipelineConfig);
-                    break;
-                case DELETED:
-                    deleteEventToJenkinsJob(pipelineConfig);
-                    break;
-                case MODIFIED:
-                    modifyEventToJenkinsJob(pipelineConfig);
-                    break;
-                case ERROR:
-                    logger.warning("watch for PipelineConfig " + meta.getName() + " received error event ");
-                    break;
-                default:
-                    logger.warning("watch for PipelineConfig " + meta.getName() + " received unknown event " + action);
-                    break;
-            }
-            // we employ impersonation here to insure we have "full access";
-            // for example, can we actually
-            // read in jobs defs for verification? without impersonation here
-            // we would get null back when trying to read in the job from disk
-            ACL.impersonate(ACL.SYSTEM, new NotReallyRoleSensitiveCallable<Void, Exception>() {
-                @Override
-                public Void call() throws Exception {
-                    // if bc event came after build events, let's
-                    // poke the PipelineWatcher builds with no BC list to
-                    // create job
-                    // runs
-                    // TODO: Change to PipelineWatcher
-                    PipelineWatcher.flushPipelinesWithNoPCList();
-                    // now, if the build event was lost and never
-                    // received, builds
-                    // will stay in
-                    // new for 5 minutes ... let's launch a background
-                    // thread to
-                    // clean them up
-                    // at a quicker interval than the default 5 minute
-                    // general build
-                    // relist function
-                    if (action == Watcher.Action.ADDED) {
-                        Runnable backupBuildQuery = new SafeTimerTask() {
-                            @Override
-                            public void doRun() {
-//                if (!CredentialsUtils.hasCredentials()) {
-//                  logger.fine("No Alauda Kubernetes Token credential defined.");
-//                  return;
-//                }
-                                // TODO: Change to PipelineList and filter
-                                PipelineList pipelineList = JenkinsUtils.filterNew(AlaudaUtils.getAuthenticatedAlaudaClient().pipelines().inNamespace(pipelineConfig.getMetadata().getNamespace())
-                                        .withLabel(Constants.ALAUDA_DEVOPS_LABELS_PIPELINE_CONFIG, meta.getName()).list());
-                                if (pipelineList.getItems().size() > 0) {
-                                    logger.info("pipeline backup query for " + meta.getName() + " found new pipelines");
-                                    PipelineWatcher.onInitialPipelines(pipelineList);
-                                }
-                            }
-                        };
-                        Timer.get().schedule(backupBuildQuery, 10 * 1000, TimeUnit.MILLISECONDS);
-                    }
-                    return null;
-                }
-            });
-        } catch (Exception e) {
-            logger.log(Level.WARNING, "Caught: " + e, e);
+        switch (action) {
+            case ADDED:
+            case MODIFIED:
+            case DELETED:
+                // our own writes cause more MODIFIED events, only the latest state of a burst is converted
+                eventLanes.submit(action, pipelineConfig);
+                break;
+            case ERROR:
+                logger.warning("watch for PipelineConfig " + meta.getName() + " received error event ");
+                break;
+            default:
+                logger.warning("watch for PipelineConfig " + meta.getName() + " received unknown event " + action);
+                break;
+        }
+    }
+
+    private static void handleEvent(Watcher.Action action, PipelineConfig pipelineConfig) throws Exception {
+        AlaudaSyncGlobalConfiguration config = AlaudaSyncGlobalConfiguration.get();
+        PipelineConfigWatcher watcher = config == null ? null : config.getPipelineConfigWatcher();
+        if (watcher == null) {
+            Logger.getLogger(PipelineConfigWatcher.class.getName()).fine(() -> "PipelineConfigWatcher is stopped, skip "
+                    + action + " event of " + NamespaceName.create(pipelineConfig));
+            return;
+        }
+        watcher.eventToJenkinsJob(action, pipelineConfig);
+    }
+
+    /**
+     * It's called in the lane of the PipelineConfig with ACL.SYSTEM, see {@link PipelineConfigDebouncer}.
+     * The lane runs the events of one PipelineConfig one by one, so the watcher is not locked here,
+     * the events of different PipelineConfigs are handled in parallel.
+     */
+    private void eventToJenkinsJob(Watcher.Action action, PipelineConfig pipelineConfig) throws Exception {
+        ObjectMeta meta = pipelineConfig.getMetadata();
+        switch (action) {
+            case ADDED:
+                upsertJob(pipelineConfig);
+                break;
+            case MODIFIED:
+                modifyEventToJenkinsJob(pipelineConfig);
+                break;
+            case DELETED:
+                deleteEventToJenkinsJob(pipelineConfig);
+                break;
+            default:
+                return;
+        }
+
+        // if bc event came after build events, let's
+        // poke the PipelineWatcher builds with no BC list to
+        // create job
+        // runs
+        // TODO: Change to PipelineWatcher
+        PipelineWatcher.flushPipelinesWithNoPCList(meta.getNamespace(), meta.getName());
+        // now, if the build event was lost and never
+        // received, builds
+        // will stay in
+        // new for 5 minutes ... let's launch a background
+        // thread to
+        // clean them up
+        // at a quicker interval than the default 5 minute
+        // general build
+        // relist function
+        if (action == Watcher.Action.ADDED) {
+            NewPipelineSweeper.getInstance().request(meta.getNamespace(), meta.getName());
         }
     }
 
@@ -295,7 +297,7 @@ public class PipelineConfigWatcher extends AbstractWatcher implements BaseWatche
         }
     }
 
-    private synchronized void modifyEventToJenkinsJob(PipelineConfig pipelineConfig) throws Exception {
+    private void modifyEventToJenkinsJob(PipelineConfig pipelineConfig) throws Exception {
         if (AlaudaUtils.isPipelineStrategyPipelineConfig(pipelineConfig)) {
             upsertJob(pipelineConfig);
         }
@@ -342,7 +344,7 @@ public class PipelineConfigWatcher extends AbstractWatcher implements BaseWatche
     // delete events and build delete events that arrive concurrently and in a
     // nondeterministic
     // order
-    private synchronized void deleteEventToJenkinsJob(final PipelineConfig pipelineConfig) throws Exception {
+    private void deleteEventToJenkinsJob(final PipelineConfig pipelineConfig) throws Exception {
         String pcUid = pipelineConfig.getMetadata().getUid();
         if (pcUid != null && pcUid.length() > 0) {
             // employ intern of the BC UID to facilitate sync'ing on the same
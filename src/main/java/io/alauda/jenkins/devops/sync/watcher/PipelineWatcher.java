@@ -21,14 +21,18 @@ import hudson.security.ACL;
 import io.alauda.devops.client.AlaudaDevOpsClient;
 import io.alauda.jenkins.devops.sync.JenkinsPipelineCause;
 import io.alauda.jenkins.devops.sync.PipelineNumComparator;
+import io.alauda.jenkins.devops.sync.PipelineTriggerScheduler;
 import io.alauda.jenkins.devops.sync.WorkflowJobProperty;
 import io.alauda.jenkins.devops.sync.WatcherCallback;
 import io.alauda.jenkins.devops.sync.constants.Constants;
 import io.alauda.jenkins.devops.sync.constants.PipelinePhases;
 import io.alauda.jenkins.devops.sync.util.AlaudaUtils;
 import io.alauda.jenkins.devops.sync.util.JenkinsUtils;
+import io.alauda.jenkins.devops.sync.util.NamespaceName;
+import io.alauda.jenkins.devops.sync.util.NewPipelineIndex;
 import io.alauda.jenkins.devops.sync.util.PipelineConfigToJobMap;
 import io.alauda.kubernetes.api.model.*;
+import io.alauda.kubernetes.client.KubernetesClientException;
 import io.alauda.kubernetes.client.Watcher;
 import jenkins.model.Jenkins;
 import jenkins.security.NotReallyRoleSensitiveCallable;
@@ -39,6 +43,7 @@ import org.jenkinsci.plugins.workflow.job.WorkflowRun;
 import java.io.IOException;
 import java.util.*;
 import java.util.logging.Level;
+import java.util.stream.Collectors;
 import java.util.logging.Logger;
 
 import static java.util.logging.Level.SEVERE;
@@ -49,7 +54,7 @@ import static java.util.logging.Level.SEVERE;
 @Extension
 public class PipelineWatcher extends AbstractWatcher implements BaseWatcher {
     private static final Logger logger = Logger.getLogger(PipelineWatcher.class.getName());
-    private static final HashSet<Pipeline> pipelinesWithNoPCList = new HashSet<>();
+    private static final PipelinesWithNoPCCache pipelinesWithNoPCList = PipelinesWithNoPCCache.getInstance();
     private WatcherCallback<Pipeline> watcherCallback;
 
     @Override
@@ -81,8 +86,9 @@ public class PipelineWatcher extends AbstractWatcher implements BaseWatcher {
 
     @Override
     public void init(String[] namespaces) {
-        PipelineConfigToJobMap.initializePipelineConfigToJobMap();
         PipelineWatcher.flushPipelinesWithNoPCList();
+        NewPipelineIndex newPipelineIndex = NewPipelineIndex.getInstance();
+        boolean listed = true;
         for (String namespace : namespaces) {
             try {
                 logger.fine("listing Pipeline resources");
@@ -95,16 +101,23 @@ public class PipelineWatcher extends AbstractWatcher implements BaseWatcher {
 
                 if(newPipelines == null || newPipelines.getItems() == null
                         || newPipelines.getItems().size() == 0) {
+                    newPipelineIndex.replace(namespace, Collections.emptyList());
                     continue;
                 }
 
+                newPipelineIndex.replace(namespace, newPipelines.getItems().stream()
+                        .filter(p -> AlaudaUtils.isPipelineStrategyPipeline(p) && ResourcesCache.getInstance().isBinding(p))
+                        .collect(Collectors.toList()));
+
                 onInitialPipelines(newPipelines);
 
                 logger.fine("handled Pipeline resources");
             } catch (Exception e) {
+                listed = false;
                 logger.log(Level.SEVERE, "Failed to load initial Builds: " + e, e);
             }
         }
+        newPipelineIndex.setInitialized(listed);
 
         reconcileRunsAndPipelines();
     }
@@ -129,6 +142,12 @@ public class PipelineWatcher extends AbstractWatcher implements BaseWatcher {
             return;
         }
 
+        if (action == Watcher.Action.DELETED) {
+            NewPipelineIndex.getInstance().remove(pipeline);
+        } else if (action != Watcher.Action.ERROR) {
+            NewPipelineIndex.getInstance().update(pipeline);
+        }
+
         try {
             switch (action) {
             case ADDED:
@@ -250,9 +269,13 @@ public class PipelineWatcher extends AbstractWatcher implements BaseWatcher {
                 removePipelineFromNoPCList(pipeline);
             }
         } else {
-          logger.info("Pipeline changed... flusing pipelines... "+pipeline.getMetadata().getName());
-            // see if any pre-BC cached builds can now be flushed
-            flushPipelinesWithNoPCList();
+            // see if any pre-PC cached pipelines of the same PipelineConfig can now be flushed
+            String namespace = pipeline.getMetadata().getNamespace();
+            String pcName = pipeline.getSpec().getPipelineConfig().getName();
+            if (pipelinesWithNoPCList.hasParked(namespace, pcName)) {
+                logger.info("Pipeline changed... flusing pipelines... " + pipeline.getMetadata().getName());
+                flushPipelinesWithNoPCList(namespace, pcName);
+            }
         }
     }
 
@@ -269,7 +292,7 @@ public class PipelineWatcher extends AbstractWatcher implements BaseWatcher {
                 AlaudaUtils.updatePipelinePhase(pipeline, PipelinePhases.CANCELLED);
                 return false;
             }
-            if (!AlaudaUtils.isNew(status)) {
+            if (!AlaudaUtils.isWaitingForTrigger(pipeline)) {
               logger.info("Pipeline is not new... cancelling... "+status);
                 return false;
             }
@@ -279,7 +302,7 @@ public class PipelineWatcher extends AbstractWatcher implements BaseWatcher {
         logger.info("Pipeline got job... "+job);
         if (job != null) {
             logger.info("Pipeline job will trigger... "+job+" pipeline: "+pipeline.getMetadata().getName());
-            return JenkinsUtils.triggerJob(job, pipeline);
+            return PipelineTriggerScheduler.getInstance().submit(job, pipeline);
         }
 
         logger.info("skipping watch event for pipeline "
@@ -292,38 +315,66 @@ public class PipelineWatcher extends AbstractWatcher implements BaseWatcher {
         // should have been caught upstack, but just in case since public method
         if (!AlaudaUtils.isPipelineStrategyPipeline(pipeline))
             return;
-        pipelinesWithNoPCList.add(pipeline);
+        pipelinesWithNoPCList.park(pipeline);
     }
 
-    private static synchronized void removePipelineFromNoPCList(Pipeline pipeline) {
+    private static void removePipelineFromNoPCList(Pipeline pipeline) {
         pipelinesWithNoPCList.remove(pipeline);
     }
 
-    private static synchronized void clearNoPCList() {
-        pipelinesWithNoPCList.clear();
-    }
-
     // trigger any builds whose watch events arrived before the
     // corresponding build config watch events
     public static void flushPipelinesWithNoPCList() {
-        HashSet<Pipeline> clone = (HashSet<Pipeline>) pipelinesWithNoPCList.clone();
-        clearNoPCList();
-        for (Pipeline pipeline : clone) {
+        for (NamespaceName pc : pipelinesWithNoPCList.getPipelineConfigs()) {
+            flushPipelinesWithNoPCList(pc.getNamespace(), pc.getName());
+        }
+    }
+
+    /**
+     * Trigger the parked pipelines which belong to target PipelineConfig
+     * @param namespace namespace of PipelineConfig
+     * @param pcName name of PipelineConfig
+     */
+    public static void flushPipelinesWithNoPCList(String namespace, String pcName) {
+        if (namespace == null || pcName == null || !pipelinesWithNoPCList.hasParked(namespace, pcName)) {
+            return;
+        }
+
+        // the job is still not there, no need to bother the API server
+        if (PipelineConfigToJobMap.isInitialized()
+                && PipelineConfigToJobMap.getItemByNamespaceName(namespace, pcName) == null) {
+            return;
+        }
+
+        AlaudaDevOpsClient client = AlaudaUtils.getAuthenticatedAlaudaClient();
+        if (client == null) {
+            return;
+        }
+
+        for (PipelinesWithNoPCCache.ParkedPipeline parked : pipelinesWithNoPCList.release(namespace, pcName)) {
+            Pipeline pipeline;
+            try {
+                pipeline = client.pipelines().inNamespace(parked.getNamespace()).withName(parked.getName()).get();
+            } catch (KubernetesClientException e) {
+                logger.log(Level.WARNING, "Failed to get parked pipeline " + parked, e);
+                continue;
+            }
+
+            if (pipeline == null || !parked.getUid().equals(pipeline.getMetadata().getUid())
+                    || !AlaudaUtils.isWaitingForTrigger(pipeline)) {
+                logger.info("Parked pipeline " + parked + " is gone or not new any more, drop it.");
+                continue;
+            }
+
             WorkflowJob job = JenkinsUtils.getJobFromPipeline(pipeline);
-            logger.info("Pipeline flush: "+pipeline.getMetadata().getName()+" - job: "+job);
+            logger.info("Pipeline flush: " + parked + " - job: " + job);
             if (job != null) {
-                try {
-                    logger.info("triggering job run for previously skipped pipeline "
-                            + pipeline.getMetadata().getName());
-                    JenkinsUtils.triggerJob(job, pipeline);
-                } catch (IOException e) {
-                    logger.log(Level.WARNING, "flushCachedPipelines", e);
-                }
+                logger.info("triggering job run for previously skipped pipeline " + parked);
+                PipelineTriggerScheduler.getInstance().submit(job, pipeline);
             } else {
                 addPipelineToNoPCList(pipeline);
             }
         }
-
     }
 
     // innerDeleteEventToJenkinsJobRun is the actual delete logic at the heart
@@ -0,0 +1,203 @@
+package io.alauda.jenkins.devops.sync.watcher;
+
+import io.alauda.jenkins.devops.sync.util.NamespaceName;
+import io.alauda.kubernetes.api.model.ObjectMeta;
+import io.alauda.kubernetes.api.model.Pipeline;
+import io.alauda.kubernetes.api.model.PipelineSpec;
+
+import javax.annotation.Nonnull;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+/**
+ * Keeps the Pipelines which arrived before the job of their PipelineConfig. Entries are indexed by
+ * the namespace/name of PipelineConfig, so that only the Pipelines of one PipelineConfig need to be
+ * released when its job appears. Only a slim reference is kept for each Pipeline, and entries expire
+ * after {@link #DEFAULT_TTL}. Parking sweeps the expired ones at most once per {@link #SWEEP_INTERVAL}.
+ *
+ * @author suren
+ */
+public class PipelinesWithNoPCCache {
+    private static final Logger logger = Logger.getLogger(PipelinesWithNoPCCache.class.getName());
+
+    private static final long DEFAULT_TTL = TimeUnit.MINUTES.toMillis(30);
+    private static final long SWEEP_INTERVAL = TimeUnit.MINUTES.toMillis(1);
+
+    private static final PipelinesWithNoPCCache INSTANCE = new PipelinesWithNoPCCache();
+
+    private final Map<NamespaceName, Map<String, ParkedPipeline>> parkedMap = new ConcurrentHashMap<>();
+    private long ttl = DEFAULT_TTL;
+    private final AtomicLong nextSweep = new AtomicLong();
+
+    private PipelinesWithNoPCCache() {}
+
+    public static PipelinesWithNoPCCache getInstance() {
+        return INSTANCE;
+    }
+
+    public void park(@Nonnull Pipeline pipeline) {
+        ParkedPipeline parked = ParkedPipeline.create(pipeline);
+        if (parked == null) {
+            return;
+        }
+
+        expireIfDue();
+
+        parkedMap.computeIfAbsent(parked.getPipelineConfig(), key -> new ConcurrentHashMap<>())
+                .put(parked.getUid(), parked);
+    }
+
+    public void remove(@Nonnull Pipeline pipeline) {
+        ParkedPipeline parked = ParkedPipeline.create(pipeline);
+        if (parked == null) {
+            return;
+        }
+
+        parkedMap.computeIfPresent(parked.getPipelineConfig(), (key, pipelines) -> {
+            pipelines.remove(parked.getUid());
+            return pipelines.isEmpty() ? null : pipelines;
+        });
+    }
+
+    public boolean hasParked(String namespace, String pipelineConfigName) {
+        return parkedMap.containsKey(new NamespaceName(namespace, pipelineConfigName));
+    }
+
+    /**
+     * Take all the unexpired Pipelines of target PipelineConfig out of the cache
+     * @param namespace namespace of PipelineConfig
+     * @param pipelineConfigName name of PipelineConfig
+     * @return parked Pipelines, never be null
+     */
+    @Nonnull
+    public List<ParkedPipeline> release(String namespace, String pipelineConfigName) {
+        Map<String, ParkedPipeline> pipelines = parkedMap.remove(new NamespaceName(namespace, pipelineConfigName));
+        if (pipelines == null) {
+            return Collections.emptyList();
+        }
+
+        long now = System.currentTimeMillis();
+        List<ParkedPipeline> result = new ArrayList<>(pipelines.size());
+        pipelines.values().forEach(parked -> {
+            if (!parked.isExpired(now, ttl)) {
+                result.add(parked);
+            }
+        });
+        return result;
+    }
+
+    @Nonnull
+    public Set<NamespaceName> getPipelineConfigs() {
+        expire();
+        return new HashSet<>(parkedMap.keySet());
+    }
+
+    private void expireIfDue() {
+        long now = System.currentTimeMillis();
+        long due = nextSweep.get();
+        if (now >= due && nextSweep.compareAndSet(due, now + SWEEP_INTERVAL)) {
+            expire(now);
+        }
+    }
+
+    public void expire() {
+        long now = System.currentTimeMillis();
+        nextSweep.set(now + SWEEP_INTERVAL);
+        expire(now);
+    }
+
+    private void expire(long now) {
+        parkedMap.forEach((key, pipelines) -> {
+            pipelines.values().removeIf(parked -> {
+                boolean expired = parked.isExpired(now, ttl);
+                if (expired) {
+                    logger.info(() -> "Parked pipeline " + parked + " is expired, drop it.");
+                }
+                return expired;
+            });
+
+            parkedMap.computeIfPresent(key, (k, v) -> v.isEmpty() ? null : v);
+        });
+    }
+
+    public int size() {
+        return parkedMap.values().stream().mapToInt(Map::size).sum();
+    }
+
+    public void clear() {
+        parkedMap.clear();
+    }
+
+    public void setTtl(long ttl) {
+        this.ttl = ttl;
+    }
+
+    /**
+     * Slim reference of a Pipeline, the whole object will be fetched again when it's released
+     */
+    public static class ParkedPipeline {
+        private final String namespace;
+        private final String name;
+        private final String uid;
+        private final NamespaceName pipelineConfig;
+        private final long parkedAt;
+
+        private ParkedPipeline(String namespace, String name, String uid, String pipelineConfigName) {
+            this.namespace = namespace;
+            this.name = name;
+            this.uid = uid;
+            this.pipelineConfig = new NamespaceName(namespace, pipelineConfigName);
+            this.parkedAt = System.currentTimeMillis();
+        }
+
+        static ParkedPipeline create(Pipeline pipeline) {
+            ObjectMeta meta = pipeline.getMetadata();
+            PipelineSpec spec = pipeline.getSpec();
+            if (meta == null || spec == null || spec.getPipelineConfig() == null
+                    || meta.getNamespace() == null || spec.getPipelineConfig().getName() == null) {
+                return null;
+            }
+
+            String uid = meta.getUid() != null ? meta.getUid() : meta.getName();
+            if (uid == null) {
+                return null;
+            }
+
+            return new ParkedPipeline(meta.getNamespace(), meta.getName(), uid,
+                    spec.getPipelineConfig().getName());
+        }
+
+        boolean isExpired(long now, long ttl) {
+            return now - parkedAt > ttl;
+        }
+
+        public String getNamespace() {
+            return namespace;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public String getUid() {
+            return uid;
+        }
+
+        public NamespaceName getPipelineConfig() {
+            return pipelineConfig;
+        }
+
+        @Override
+        public String toString() {
+            return namespace + "/" + name;
+        }
+    }
+}
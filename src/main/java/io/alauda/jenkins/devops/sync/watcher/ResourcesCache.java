@@ -132,7 +132,13 @@ public class ResourcesCache {
     }
 
     public boolean isBinding(Secret secret) {
-        String namespace = secret.getMetadata().getNamespace();
+        return isBindingSecretNamespace(secret.getMetadata().getNamespace());
+    }
+
+    public boolean isBindingSecretNamespace(String namespace) {
+        if(namespace == null) {
+            return false;
+        }
 
         printNamespaces();
         return namespaces.contains(namespace) ||
@@ -21,6 +21,7 @@ import io.alauda.devops.client.AlaudaDevOpsClient;
 import io.alauda.jenkins.devops.sync.AlaudaSyncGlobalConfiguration;
 import io.alauda.jenkins.devops.sync.WatcherCallback;
 import io.alauda.jenkins.devops.sync.util.AlaudaUtils;
+import io.alauda.jenkins.devops.sync.util.CredentialsBatch;
 import io.alauda.jenkins.devops.sync.util.CredentialsUtils;
 import io.alauda.kubernetes.api.model.ObjectMeta;
 import io.alauda.kubernetes.api.model.Secret;
@@ -28,6 +29,7 @@ import io.alauda.kubernetes.api.model.SecretList;
 import io.alauda.kubernetes.client.Watch;
 import io.alauda.kubernetes.client.Watcher;
 
+import java.io.IOException;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.logging.Level;
@@ -95,20 +97,25 @@ public class SecretWatcher extends AbstractWatcher implements BaseWatcher {
         namespaceSet = new HashSet(Arrays.asList(namespaces));
         namespaceSet.add(AlaudaSyncGlobalConfiguration.get().getSharedNamespace());
 
-        secrets.getItems().stream().filter((item)->{
-            String ns = item.getMetadata().getNamespace();
-            return (namespaceSet.contains(ns));
-        }).forEach(secret -> {
-            try {
-                if (validSecret(secret) && shouldProcessSecret(secret)) {
-                    upsertCredential(secret);
-                    trackedSecrets.put(secret.getMetadata().getUid(),
-                            secret.getMetadata().getResourceVersion());
+        // save every credentials store once instead of once per secret
+        try (CredentialsBatch batch = CredentialsBatch.open()) {
+            secrets.getItems().stream().filter((item) -> {
+                String ns = item.getMetadata().getNamespace();
+                return (namespaceSet.contains(ns));
+            }).forEach(secret -> {
+                try {
+                    if (validSecret(secret) && shouldProcessSecret(secret)) {
+                        upsertCredential(secret);
+                        trackedSecrets.put(secret.getMetadata().getUid(),
+                                secret.getMetadata().getResourceVersion());
+                    }
+                } catch (Exception e) {
+                    logger.log(SEVERE, "Failed to update job", e);
                 }
-            } catch (Exception e) {
-                logger.log(SEVERE, "Failed to update job", e);
-            }
-        });
+            });
+        } catch (IOException e) {
+            logger.log(SEVERE, "Failed to save credentials", e);
+        }
     }
 
     @SuppressFBWarnings("SF_SWITCH_NO_DEFAULT")
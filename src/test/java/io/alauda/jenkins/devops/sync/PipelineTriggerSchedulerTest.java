@@ -0,0 +1,133 @@
+/**
+ * Copyright (C) 2018 Alauda.io
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.alauda.jenkins.devops.sync;
+
+import io.alauda.kubernetes.api.model.Pipeline;
+import io.alauda.kubernetes.api.model.PipelineBuilder;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class PipelineTriggerSchedulerTest {
+    private static final Function<String, Integer> UNLIMITED = namespace -> Integer.MAX_VALUE;
+
+    private PipelineTriggerScheduler scheduler;
+
+    @Before
+    public void setUp() {
+        scheduler = new PipelineTriggerScheduler();
+    }
+
+    @Test
+    public void takesNamespacesInTurn() {
+        enqueue("a", 3);
+        enqueue("b", 3);
+
+        assertEquals(Arrays.asList("a-1", "b-1", "a-2", "b-2", "a-3", "b-3"),
+                names(scheduler.admit(Integer.MAX_VALUE, UNLIMITED, Collections.emptyMap())));
+        assertEquals(0, scheduler.size());
+    }
+
+    @Test
+    public void takesUpToWeightInEachRound() {
+        enqueue("a", 5);
+        enqueue("b", 5);
+        Map<String, Integer> weights = new HashMap<>();
+        weights.put("a", 2);
+
+        assertEquals(Arrays.asList("a-1", "a-2", "b-1", "a-3", "a-4", "b-2"),
+                names(scheduler.admit(6, UNLIMITED, weights)));
+        assertEquals(4, scheduler.size());
+    }
+
+    @Test
+    public void stopsAtBudget() {
+        enqueue("a", 3);
+
+        assertEquals(Arrays.asList("a-1", "a-2"), names(scheduler.admit(2, UNLIMITED, Collections.emptyMap())));
+        assertEquals(1, scheduler.size());
+    }
+
+    @Test
+    public void respectsCapacityOfNamespace() {
+        enqueue("a", 3);
+        enqueue("b", 3);
+        Map<String, Integer> capacities = new HashMap<>();
+        capacities.put("a", 1);
+        capacities.put("b", 0);
+
+        assertEquals(Collections.singletonList("a-1"),
+                names(scheduler.admit(Integer.MAX_VALUE, capacities::get, Collections.emptyMap())));
+        assertEquals(5, scheduler.size());
+    }
+
+    @Test
+    public void servedNamespaceGoesLast() {
+        enqueue("a", 2);
+        enqueue("b", 2);
+
+        assertEquals(Collections.singletonList("a-1"), names(scheduler.admit(1, UNLIMITED, Collections.emptyMap())));
+        assertEquals(Collections.singletonList("b-1"), names(scheduler.admit(1, UNLIMITED, Collections.emptyMap())));
+        assertEquals(Collections.singletonList("a-2"), names(scheduler.admit(1, UNLIMITED, Collections.emptyMap())));
+    }
+
+    @Test
+    public void keepsPositionWhenSubmittedAgain() {
+        enqueue("a", 2);
+        scheduler.enqueue("job", pipeline("a", 1));
+
+        assertEquals(Arrays.asList("a-1", "a-2"),
+                names(scheduler.admit(Integer.MAX_VALUE, UNLIMITED, Collections.emptyMap())));
+    }
+
+    @Test
+    public void removesWaitingPipeline() {
+        enqueue("a", 2);
+
+        assertTrue(scheduler.remove(pipeline("a", 1)));
+        assertFalse(scheduler.remove(pipeline("a", 1)));
+        assertEquals(Collections.singletonList("a-2"),
+                names(scheduler.admit(Integer.MAX_VALUE, UNLIMITED, Collections.emptyMap())));
+    }
+
+    private void enqueue(String namespace, int count) {
+        for (int i = 1; i <= count; i++) {
+            scheduler.enqueue("job", pipeline(namespace, i));
+        }
+    }
+
+    private static Pipeline pipeline(String namespace, int number) {
+        String name = namespace + "-" + number;
+        return new PipelineBuilder().withNewMetadata().withNamespace(namespace).withName(name)
+                .withUid("uid-" + name).endMetadata().build();
+    }
+
+    private static List<String> names(List<PipelineTriggerScheduler.QueuedPipeline> admitted) {
+        return admitted.stream().map(queued -> queued.getPipeline().getMetadata().getName())
+                .collect(Collectors.toList());
+    }
+}
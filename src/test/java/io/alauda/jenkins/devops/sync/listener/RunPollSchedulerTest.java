@@ -0,0 +1,158 @@
+/**
+ * Copyright (C) 2018 Alauda.io
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.alauda.jenkins.devops.sync.listener;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class RunPollSchedulerTest {
+    private static final int NEVER = -1;
+
+    private RunPollScheduler scheduler;
+
+    @Before
+    public void setUp() {
+        scheduler = new RunPollScheduler();
+    }
+
+    @Test
+    public void pollsStartedRunInNextTick() {
+        scheduler.start("job#1");
+
+        assertEquals(Collections.singletonList("job#1"), scheduler.tick());
+        assertEquals(1, scheduler.getLastDueCount());
+        // it's not scheduled again until it's polled
+        assertEquals(NEVER, ticksUntilDue("job#1", 100));
+        assertTrue(scheduler.contains("job#1"));
+    }
+
+    @Test
+    public void backsOffWhenNothingChanged() {
+        scheduler.start("job#1");
+        scheduler.tick();
+
+        long interval = RunPollScheduler.MIN_INTERVAL;
+        for (int i = 0; i < 6; i++) {
+            interval = Math.min(interval * 2, RunPollScheduler.MAX_INTERVAL);
+            scheduler.pollAgain("job#1", false);
+            assertEquals(ticks(interval), ticksUntilDue("job#1", 100));
+        }
+        assertEquals(ticks(RunPollScheduler.MAX_INTERVAL), ticks(interval));
+    }
+
+    @Test
+    public void pollsOftenAgainAfterChange() {
+        scheduler.start("job#1");
+        scheduler.tick();
+        for (int i = 0; i < 4; i++) {
+            scheduler.pollAgain("job#1", false);
+            ticksUntilDue("job#1", 100);
+        }
+
+        scheduler.pollAgain("job#1", true);
+        assertEquals(ticks(RunPollScheduler.MIN_INTERVAL), ticksUntilDue("job#1", 100));
+    }
+
+    @Test
+    public void reschedulingMovesTheRun() {
+        scheduler.start("job#1");
+        scheduler.pollAgain("job#1", true);
+
+        // it's only in the later slot
+        assertEquals(ticks(RunPollScheduler.MIN_INTERVAL), ticksUntilDue("job#1", 100));
+        assertEquals(NEVER, ticksUntilDue("job#1", 100));
+    }
+
+    @Test
+    public void checksInputLessOften() {
+        scheduler.start("job#1");
+        scheduler.tick();
+
+        scheduler.waitForInput("job#1", "input-1");
+        assertEquals("input-1", scheduler.getInputFingerprint("job#1"));
+        assertEquals(ticks(RunPollScheduler.INPUT_CHECK_INTERVAL), ticksUntilDue("job#1", 100));
+
+        scheduler.pollAgain("job#1", true);
+        assertNull(scheduler.getInputFingerprint("job#1"));
+    }
+
+    @Test
+    public void startIfAbsentKeepsScheduledRun() {
+        assertTrue(scheduler.startIfAbsent("job#1"));
+        scheduler.tick();
+        scheduler.pollAgain("job#1", false);
+
+        assertFalse(scheduler.startIfAbsent("job#1"));
+        assertEquals(ticks(RunPollScheduler.MIN_INTERVAL * 2), ticksUntilDue("job#1", 100));
+    }
+
+    @Test
+    public void removedRunIsNeverPolled() {
+        scheduler.start("job#1");
+        scheduler.start("job#2");
+        scheduler.remove("job#1");
+
+        assertEquals(Collections.singletonList("job#2"), scheduler.tick());
+        assertEquals(1, scheduler.size());
+
+        // a poll which was running while it's removed doesn't bring it back
+        scheduler.pollAgain("job#1", true);
+        scheduler.waitForInput("job#1", "input-1");
+        assertEquals(NEVER, ticksUntilDue("job#1", 100));
+        assertFalse(scheduler.contains("job#1"));
+    }
+
+    @Test
+    public void spreadsRunsOverTicks() {
+        for (int i = 0; i < 100; i++) {
+            scheduler.start("job#" + i);
+        }
+        assertEquals(100, scheduler.tick().size());
+
+        for (int i = 0; i < 100; i++) {
+            scheduler.pollAgain("job#" + i, i % 2 == 0);
+        }
+        // the unchanged ones back off, the changed ones come first
+        assertEquals(0, scheduler.tick().size());
+        assertEquals(50, scheduler.tick().size());
+        assertEquals(0, scheduler.tick().size());
+        assertEquals(50, scheduler.tick().size());
+        assertEquals(100, scheduler.size());
+    }
+
+    private static int ticks(long intervalMs) {
+        return (int) ((intervalMs + RunPollScheduler.TICK_MS - 1) / RunPollScheduler.TICK_MS);
+    }
+
+    /**
+     * @return the number of ticks until the run is due, NEVER if it's not due in the limit
+     */
+    private int ticksUntilDue(String runId, int limit) {
+        for (int i = 1; i <= limit; i++) {
+            if (scheduler.tick().contains(runId)) {
+                return i;
+            }
+        }
+        return NEVER;
+    }
+}
@@ -0,0 +1,137 @@
+/**
+ * Copyright (C) 2018 Alauda.io
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.alauda.jenkins.devops.sync.listener;
+
+import com.cloudbees.workflow.rest.external.AtomFlowNodeExt;
+import com.cloudbees.workflow.rest.external.ErrorExt;
+import com.cloudbees.workflow.rest.external.RunExt;
+import com.cloudbees.workflow.rest.external.StageNodeExt;
+import com.cloudbees.workflow.rest.external.StatusExt;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.apache.commons.io.IOUtils;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+public class StatusJsonCodecTest {
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    @Test
+    public void writesSmallStagesAsPlainJson() throws IOException {
+        PipelineSyncRunListener.PipelineJson pipeJson = new PipelineSyncRunListener.PipelineJson();
+        pipeJson.addStage(new PipelineSyncRunListener.PipelineStage("6", "build", "FINISHED", "SUCCESS",
+                "2018-01-01T00:00:00.000+0000", 1000L, null,
+                Collections.singletonList(new PipelineSyncRunListener.PipelineEdge("12"))));
+        pipeJson.addStage(new PipelineSyncRunListener.PipelineStage("12", "deploy", "RUNNING", "UNKNOWN",
+                null, null, null, new ArrayList<>()));
+
+        String encoded = StatusJsonCodec.encodeStages(pipeJson);
+        assertNotNull(encoded);
+        assertFalse(encoded.startsWith(StatusJsonCodec.GZIP_PREFIX));
+
+        JsonNode json = MAPPER.readTree(encoded);
+        assertEquals("6", json.get("start_stage_id").asText());
+        JsonNode build = json.get("stages").get(0);
+        assertEquals("build", build.get("name").asText());
+        assertEquals(1000L, build.get("duration_millis").asLong());
+        assertEquals("12", build.get("edges").get(0).asText());
+        assertFalse(build.has("pause_duration_millis"));
+
+        JsonNode deploy = json.get("stages").get(1);
+        assertEquals("RUNNING", deploy.get("status").asText());
+        assertFalse(deploy.has("start_time"));
+        assertFalse(deploy.has("edges"));
+    }
+
+    @Test
+    public void compressesLargeStages() throws IOException {
+        PipelineSyncRunListener.PipelineJson pipeJson = new PipelineSyncRunListener.PipelineJson();
+        int count = 500;
+        for (int i = 0; i < count; i++) {
+            pipeJson.addStage(new PipelineSyncRunListener.PipelineStage(String.valueOf(i), "stage " + i,
+                    "FINISHED", "SUCCESS", "2018-01-01T00:00:00.000+0000", (long) i, 0L,
+                    Collections.singletonList(new PipelineSyncRunListener.PipelineEdge(String.valueOf(i + 1)))));
+        }
+
+        String encoded = StatusJsonCodec.encodeStages(pipeJson);
+        assertNotNull(encoded);
+        assertTrue(encoded.startsWith(StatusJsonCodec.GZIP_PREFIX));
+
+        JsonNode json = MAPPER.readTree(decode(encoded));
+        assertEquals(count, json.get("stages").size());
+        assertEquals("stage 499", json.get("stages").get(count - 1).get("name").asText());
+    }
+
+    @Test
+    public void writesCompactRun() throws IOException {
+        ErrorExt error = new ErrorExt();
+        error.setMessage("script returned exit code 1");
+        error.setType("hudson.AbortException");
+
+        AtomFlowNodeExt node = new AtomFlowNodeExt();
+        node.setId("8");
+        node.setName("Shell Script");
+        node.setStatus(StatusExt.FAILED);
+        node.setParameterDescription("make test");
+        node.setError(error);
+
+        StageNodeExt stage = new StageNodeExt();
+        stage.setId("6");
+        stage.setName("test");
+        stage.setStatus(StatusExt.FAILED);
+        stage.setStageFlowNodes(Collections.singletonList(node));
+
+        RunExt run = new RunExt();
+        run.setId("3");
+        run.setName("#3");
+        run.setStatus(StatusExt.FAILED);
+        List<StageNodeExt> stages = new ArrayList<>();
+        stages.add(stage);
+        run.setStages(stages);
+
+        String encoded = StatusJsonCodec.encodeRun(run);
+        assertNotNull(encoded);
+
+        JsonNode json = MAPPER.readTree(encoded);
+        assertEquals("FAILED", json.get("status").asText());
+        assertFalse(json.has("_links"));
+        JsonNode compactNode = json.get("stages").get(0).get("nodes").get(0);
+        assertEquals("make test", compactNode.get("parameterDescription").asText());
+        assertEquals("hudson.AbortException", compactNode.get("error").get("type").asText());
+        assertFalse(json.get("stages").get(0).has("error"));
+    }
+
+    private static String decode(String encoded) throws IOException {
+        byte[] gzip = Base64.getDecoder().decode(encoded.substring(StatusJsonCodec.GZIP_PREFIX.length()));
+        try (InputStream in = new GZIPInputStream(new ByteArrayInputStream(gzip))) {
+            return IOUtils.toString(in, StandardCharsets.UTF_8);
+        }
+    }
+}
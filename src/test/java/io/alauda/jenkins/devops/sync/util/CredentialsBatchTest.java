@@ -0,0 +1,151 @@
+/**
+ * Copyright (C) 2018 Alauda.io
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.alauda.jenkins.devops.sync.util;
+
+import com.cloudbees.hudson.plugins.folder.AbstractFolder;
+import com.cloudbees.hudson.plugins.folder.Folder;
+import com.cloudbees.plugins.credentials.CredentialsScope;
+import com.cloudbees.plugins.credentials.CredentialsStore;
+import com.cloudbees.plugins.credentials.SystemCredentialsProvider;
+import com.cloudbees.plugins.credentials.domains.Domain;
+import com.cloudbees.plugins.credentials.impl.UsernamePasswordCredentialsImpl;
+import hudson.XmlFile;
+import hudson.model.Saveable;
+import hudson.model.listeners.SaveableListener;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+import org.jvnet.hudson.test.TestExtension;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+public class CredentialsBatchTest {
+    @Rule
+    public JenkinsRule j = new JenkinsRule();
+
+    private CredentialsStore folderStore;
+    private CredentialsStore globalStore;
+    private int ids;
+
+    @Before
+    public void setUp() throws Exception {
+        j.jenkins.createProject(Folder.class, "ns");
+        folderStore = CredentialsIndex.getInstance().getStore("ns");
+        assertNotNull(folderStore);
+        globalStore = SystemCredentialsProvider.getInstance().getStore();
+        SaveCounter.reset();
+    }
+
+    @Test
+    public void savesEveryMutationWithoutBatch() throws Exception {
+        for (int i = 0; i < 3; i++) {
+            add(folderStore);
+        }
+
+        assertTrue(SaveCounter.FOLDER.get() >= 3);
+    }
+
+    @Test
+    public void savesTouchedStoresWhenBatchIsClosed() throws Exception {
+        try (CredentialsBatch ignored = CredentialsBatch.open()) {
+            for (int i = 0; i < 5; i++) {
+                add(folderStore);
+                add(globalStore);
+            }
+            assertEquals(0, SaveCounter.FOLDER.get());
+            assertEquals(0, SaveCounter.GLOBAL.get());
+        }
+
+        assertTrue(SaveCounter.FOLDER.get() > 0 && SaveCounter.FOLDER.get() < 5);
+        assertTrue(SaveCounter.GLOBAL.get() > 0 && SaveCounter.GLOBAL.get() < 5);
+        assertEquals(5, folderStore.getCredentials(Domain.global()).size());
+    }
+
+    @Test
+    public void flushKeepsBatchOpen() throws Exception {
+        try (CredentialsBatch batch = CredentialsBatch.open()) {
+            add(folderStore);
+            batch.flush();
+            assertTrue(SaveCounter.FOLDER.get() > 0);
+
+            SaveCounter.reset();
+            add(folderStore);
+            assertEquals(0, SaveCounter.FOLDER.get());
+        }
+        assertTrue(SaveCounter.FOLDER.get() > 0);
+    }
+
+    @Test
+    public void flushesBatchOpenLongerThanInterval() throws Exception {
+        try (CredentialsBatch ignored = CredentialsBatch.open(-1)) {
+            add(folderStore);
+            assertTrue(SaveCounter.FOLDER.get() > 0);
+        }
+    }
+
+    @Test
+    public void closingNestedBatchRestoresOuterOne() throws Exception {
+        try (CredentialsBatch ignored = CredentialsBatch.open()) {
+            try (CredentialsBatch inner = CredentialsBatch.open()) {
+                add(folderStore);
+                assertEquals(0, SaveCounter.FOLDER.get());
+            }
+            assertTrue(SaveCounter.FOLDER.get() > 0);
+
+            SaveCounter.reset();
+            // still in the outer batch
+            add(folderStore);
+            assertEquals(0, SaveCounter.FOLDER.get());
+        }
+        assertTrue(SaveCounter.FOLDER.get() > 0);
+
+        SaveCounter.reset();
+        add(folderStore);
+        assertTrue(SaveCounter.FOLDER.get() > 0);
+    }
+
+    private void add(CredentialsStore store) throws Exception {
+        CredentialsBatch.beforeChange(store);
+        store.addCredentials(Domain.global(), new UsernamePasswordCredentialsImpl(CredentialsScope.GLOBAL,
+                "id-" + ids++, null, "user", "password"));
+        CredentialsBatch.afterChange(store);
+    }
+
+    @TestExtension
+    public static class SaveCounter extends SaveableListener {
+        static final AtomicInteger FOLDER = new AtomicInteger();
+        static final AtomicInteger GLOBAL = new AtomicInteger();
+
+        static void reset() {
+            FOLDER.set(0);
+            GLOBAL.set(0);
+        }
+
+        @Override
+        public void onChange(Saveable o, XmlFile file) {
+            if (o instanceof AbstractFolder) {
+                FOLDER.incrementAndGet();
+            } else if (o instanceof SystemCredentialsProvider) {
+                GLOBAL.incrementAndGet();
+            }
+        }
+    }
+}
@@ -0,0 +1,153 @@
+/**
+ * Copyright (C) 2018 Alauda.io
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.alauda.jenkins.devops.sync.util;
+
+import com.cloudbees.hudson.plugins.folder.Folder;
+import com.cloudbees.plugins.credentials.Credentials;
+import com.cloudbees.plugins.credentials.CredentialsScope;
+import com.cloudbees.plugins.credentials.CredentialsStore;
+import com.cloudbees.plugins.credentials.SystemCredentialsProvider;
+import com.cloudbees.plugins.credentials.domains.Domain;
+import com.cloudbees.plugins.credentials.impl.UsernamePasswordCredentialsImpl;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+public class CredentialsIndexTest {
+    @Rule
+    public JenkinsRule j = new JenkinsRule();
+
+    private CredentialsIndex index;
+    private Folder folder;
+    private CredentialsStore folderStore;
+    private CredentialsStore globalStore;
+
+    @Before
+    public void setUp() throws Exception {
+        index = CredentialsIndex.getInstance();
+        // the index is a singleton, it must not keep anything of the previous Jenkins
+        index.invalidateAll();
+
+        folder = j.jenkins.createProject(Folder.class, "ns");
+        folderStore = index.getStore("ns");
+        assertNotNull(folderStore);
+        assertSame(folder, folderStore.getContext());
+        globalStore = SystemCredentialsProvider.getInstance().getStore();
+    }
+
+    @Test
+    public void folderCredentialsComeBeforeGlobalOnes() throws Exception {
+        Credentials shared = credentials("shared");
+        Credentials globalDup = credentials("dup");
+        Credentials folderDup = credentials("dup");
+        Credentials own = credentials("own");
+        globalStore.addCredentials(Domain.global(), shared);
+        globalStore.addCredentials(Domain.global(), globalDup);
+        folderStore.addCredentials(Domain.global(), folderDup);
+        folderStore.addCredentials(Domain.global(), own);
+
+        assertSame(folderDup, index.get("ns", "dup"));
+        assertSame(shared, index.get("ns", "shared"));
+        assertSame(own, index.get("ns", "own"));
+        assertSame(globalDup, index.get(null, "dup"));
+        assertNull(index.get(null, "own"));
+        assertNull(index.get("missing-ns", "shared"));
+        assertNull(index.get("ns", null));
+    }
+
+    @Test
+    public void changesOfOthersDropTheEntries() throws Exception {
+        Credentials old = credentials("id");
+        folderStore.addCredentials(Domain.global(), old);
+        assertSame(old, index.get("ns", "id"));
+
+        Credentials updated = credentials("id");
+        folderStore.updateCredentials(Domain.global(), old, updated);
+        assertSame(updated, index.get("ns", "id"));
+
+        // the global ones are visible to every folder
+        Credentials global = credentials("global-id");
+        globalStore.addCredentials(Domain.global(), global);
+        assertSame(global, index.get("ns", "global-id"));
+        assertSame(global, index.get(null, "global-id"));
+    }
+
+    @Test
+    public void ownChangesUpdateTheIndexDirectly() throws Exception {
+        Credentials old = credentials("id");
+        folderStore.addCredentials(Domain.global(), old);
+        assertSame(old, index.get("ns", "id"));
+
+        Credentials updated = credentials("id");
+        CredentialsIndex.selfSaving(true);
+        try {
+            folderStore.updateCredentials(Domain.global(), old, updated);
+            // our own save is not taken as a change of others
+            assertSame(old, index.get("ns", "id"));
+            index.put("ns", "id", updated);
+        } finally {
+            CredentialsIndex.selfSaving(false);
+        }
+        assertSame(updated, index.get("ns", "id"));
+
+        CredentialsIndex.selfSaving(true);
+        try {
+            folderStore.removeCredentials(Domain.global(), updated);
+            index.remove("ns", "id");
+        } finally {
+            CredentialsIndex.selfSaving(false);
+        }
+        assertNull(index.get("ns", "id"));
+    }
+
+    @Test
+    public void ownGlobalChangesDropTheFolderEntries() throws Exception {
+        Credentials old = credentials("id");
+        globalStore.addCredentials(Domain.global(), old);
+        assertSame(old, index.get("ns", "id"));
+
+        Credentials updated = credentials("id");
+        CredentialsIndex.selfSaving(true);
+        try {
+            globalStore.updateCredentials(Domain.global(), old, updated);
+            index.put(null, "id", updated);
+        } finally {
+            CredentialsIndex.selfSaving(false);
+        }
+        assertSame(updated, index.get(null, "id"));
+        assertSame(updated, index.get("ns", "id"));
+    }
+
+    @Test
+    public void deletedFolderHasNoCredentials() throws Exception {
+        Credentials own = credentials("own");
+        folderStore.addCredentials(Domain.global(), own);
+        assertSame(own, index.get("ns", "own"));
+
+        folder.delete();
+        assertNull(index.get("ns", "own"));
+        assertNull(index.getStore("ns"));
+    }
+
+    private static Credentials credentials(String id) {
+        return new UsernamePasswordCredentialsImpl(CredentialsScope.GLOBAL, id, null, "user", "password");
+    }
+}
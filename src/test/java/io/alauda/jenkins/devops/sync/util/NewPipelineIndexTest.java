@@ -0,0 +1,128 @@
+/**
+ * Copyright (C) 2018 Alauda.io
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.alauda.jenkins.devops.sync.util;
+
+import io.alauda.jenkins.devops.sync.constants.Constants;
+import io.alauda.jenkins.devops.sync.constants.PipelinePhases;
+import io.alauda.kubernetes.api.model.LocalObjectReference;
+import io.alauda.kubernetes.api.model.Pipeline;
+import io.alauda.kubernetes.api.model.PipelineBuilder;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class NewPipelineIndexTest {
+    private NewPipelineIndex index;
+
+    @Before
+    public void setUp() {
+        index = new NewPipelineIndex();
+    }
+
+    @Test
+    public void keepsNewPipelinesInOrderOfNumbers() {
+        index.update(pipeline("ns", "pc", "pc-10", 10, PipelinePhases.PENDING));
+        index.update(pipeline("ns", "pc", "pc-2", 2, PipelinePhases.PENDING));
+        index.update(pipeline("ns", "pc", "pc-7", 7, PipelinePhases.PENDING));
+        index.update(pipeline("ns", "other", "other-1", 1, PipelinePhases.PENDING));
+
+        assertEquals(Arrays.asList("pc-2", "pc-7", "pc-10"), names("ns", "pc"));
+        assertEquals(Collections.singletonList("other-1"), names("ns", "other"));
+        assertTrue(names("other-ns", "pc").isEmpty());
+    }
+
+    @Test
+    public void dropsPipelineWhenItStarts() {
+        index.update(pipeline("ns", "pc", "pc-1", 1, PipelinePhases.PENDING));
+        index.update(pipeline("ns", "pc", "pc-2", 2, PipelinePhases.PENDING));
+
+        index.update(pipeline("ns", "pc", "pc-1", 1, PipelinePhases.RUNNING));
+        assertEquals(Collections.singletonList("pc-2"), names("ns", "pc"));
+
+        index.remove(pipeline("ns", "pc", "pc-2", 2, PipelinePhases.PENDING));
+        assertTrue(names("ns", "pc").isEmpty());
+    }
+
+    @Test
+    public void keepsPipelineHeldByTriggerScheduler() {
+        Pipeline queued = new PipelineBuilder(pipeline("ns", "pc", "pc-1", 1, PipelinePhases.QUEUED))
+                .editMetadata().addToAnnotations(Constants.ALAUDA_DEVOPS_ANNOTATIONS_JENKINS_TRIGGER_POSITION, "1")
+                .endMetadata().build();
+        index.update(queued);
+        // queued by Jenkins already
+        index.update(pipeline("ns", "pc", "pc-2", 2, PipelinePhases.QUEUED));
+
+        assertEquals(Collections.singletonList("pc-1"), names("ns", "pc"));
+    }
+
+    @Test
+    public void updateReplacesPipelineWithSameName() {
+        index.update(pipeline("ns", "pc", "pc-a", 5, PipelinePhases.PENDING));
+        index.update(pipeline("ns", "pc", "pc-b", 3, PipelinePhases.PENDING));
+        // the number was not there in the first event
+        index.update(pipeline("ns", "pc", "pc-a", 1, PipelinePhases.PENDING));
+
+        assertEquals(Arrays.asList("pc-a", "pc-b"), names("ns", "pc"));
+    }
+
+    @Test
+    public void replaceDropsUnlistedPipelinesOfNamespace() {
+        index.update(pipeline("ns", "pc", "pc-1", 1, PipelinePhases.PENDING));
+        index.update(pipeline("ns", "gone", "gone-1", 1, PipelinePhases.PENDING));
+        index.update(pipeline("other-ns", "pc", "pc-1", 1, PipelinePhases.PENDING));
+
+        index.replace("ns", Arrays.asList(
+                pipeline("ns", "pc", "pc-3", 3, PipelinePhases.PENDING),
+                pipeline("ns", "pc", "pc-2", 2, PipelinePhases.PENDING)));
+
+        assertEquals(Arrays.asList("pc-2", "pc-3"), names("ns", "pc"));
+        assertTrue(names("ns", "gone").isEmpty());
+        assertEquals(Collections.singletonList("pc-1"), names("other-ns", "pc"));
+    }
+
+    @Test
+    public void ignoresPipelineWithoutPipelineConfig() {
+        Pipeline pipeline = new PipelineBuilder().withNewMetadata().withNamespace("ns").withName("orphan")
+                .endMetadata().build();
+        index.update(pipeline);
+        index.remove(pipeline);
+
+        assertTrue(names("ns", "orphan").isEmpty());
+    }
+
+    private List<String> names(String namespace, String pcName) {
+        return index.getNewPipelines(namespace, pcName).stream()
+                .map(pipeline -> pipeline.getMetadata().getName())
+                .collect(Collectors.toList());
+    }
+
+    private static Pipeline pipeline(String namespace, String pcName, String name, long number, String phase) {
+        return new PipelineBuilder().withNewMetadata().withNamespace(namespace).withName(name)
+                .withUid("uid-" + name)
+                .addToAnnotations(Constants.ALAUDA_DEVOPS_ANNOTATIONS_PIPELINE_NUMBER, String.valueOf(number))
+                .endMetadata()
+                .withNewSpec().withPipelineConfig(new LocalObjectReference(pcName)).endSpec()
+                .withNewStatus().withPhase(phase).endStatus()
+                .build();
+    }
+}
@@ -0,0 +1,154 @@
+/**
+ * Copyright (C) 2018 Alauda.io
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.alauda.jenkins.devops.sync.util;
+
+import hudson.XmlFile;
+import io.alauda.jenkins.devops.sync.constants.PipelinePhases;
+import io.alauda.kubernetes.api.model.Pipeline;
+import io.alauda.kubernetes.api.model.PipelineBuilder;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class PipelineOutboxTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    // the sends are only collected, nothing reaches the API server
+    private final List<Runnable> sends = new ArrayList<>();
+    private File file;
+    private PipelineOutbox outbox;
+
+    @Before
+    public void setUp() throws Exception {
+        file = new File(folder.getRoot(), "pipeline-outbox.xml");
+        outbox = new PipelineOutbox(new XmlFile(file), sends::add);
+    }
+
+    @Test
+    public void mergesMutationsOfOnePipeline() {
+        Pipeline pipeline = pipeline("a");
+        outbox.updatePhase(pipeline, PipelinePhases.RUNNING);
+        outbox.updatePhase(pipeline, PipelinePhases.COMPLETE);
+
+        assertEquals(1, outbox.size());
+        assertEquals(PipelinePhases.COMPLETE, outbox.getPending("ns", "a").getPhase());
+        // the second one is sent by the same pending send
+        assertEquals(1, sends.size());
+    }
+
+    @Test
+    public void triggerPositionFollowsThePhase() {
+        Pipeline pipeline = pipeline("a");
+        outbox.updateTriggerPosition(pipeline, 3);
+
+        PipelineOutbox.Entry pending = outbox.getPending("ns", "a");
+        assertEquals(PipelinePhases.QUEUED, pending.getPhase());
+        assertEquals("3", pending.getTriggerPosition());
+
+        outbox.updatePhase(pipeline, PipelinePhases.RUNNING);
+        pending = outbox.getPending("ns", "a");
+        assertEquals(PipelinePhases.RUNNING, pending.getPhase());
+        assertNull(pending.getTriggerPosition());
+    }
+
+    @Test
+    public void deferredMutationsArePendingAfterFlush() {
+        outbox.abort("ns", "a");
+        outbox.updatePhaseLater(Collections.singletonList(pipeline("b")), PipelinePhases.CANCELLED);
+        outbox.flushDeferred();
+
+        assertEquals(2, outbox.size());
+        assertTrue(outbox.getPending("ns", "a").isAborted());
+        assertNull(outbox.getPending("ns", "a").getPhase());
+        assertEquals(PipelinePhases.CANCELLED, outbox.getPending("ns", "b").getPhase());
+        assertEquals(1, sends.size());
+    }
+
+    @Test
+    public void keepsAbortedFlagWhenPhaseChanges() {
+        Pipeline pipeline = pipeline("a");
+        outbox.abort("ns", "a");
+        outbox.flushDeferred();
+        outbox.updatePhase(pipeline, PipelinePhases.CANCELLED);
+
+        PipelineOutbox.Entry pending = outbox.getPending("ns", "a");
+        assertTrue(pending.isAborted());
+        assertEquals(PipelinePhases.CANCELLED, pending.getPhase());
+    }
+
+    @Test
+    public void deleteReplacesPendingChanges() {
+        outbox.updatePhase(pipeline("a"), PipelinePhases.RUNNING);
+        outbox.delete("ns", "a");
+
+        assertEquals(1, outbox.size());
+        assertTrue(outbox.getPending("ns", "a").isDelete());
+    }
+
+    @Test
+    public void dropsOldestMutationsWhenFull() {
+        for (int i = 0; i <= PipelineOutbox.MAX_ENTRIES; i++) {
+            outbox.updatePhase(pipeline("p-" + i), PipelinePhases.RUNNING);
+        }
+
+        assertEquals(PipelineOutbox.MAX_ENTRIES, outbox.size());
+        assertNull(outbox.getPending("ns", "p-0"));
+        assertNotNull(outbox.getPending("ns", "p-" + PipelineOutbox.MAX_ENTRIES));
+    }
+
+    @Test
+    public void loadsSavedMutations() {
+        outbox.updateTriggerPosition(pipeline("a"), 2);
+        outbox.delete("ns", "b");
+        outbox.saveIfDirty();
+        assertTrue(file.exists());
+
+        PipelineOutbox loaded = new PipelineOutbox(new XmlFile(file), sends::add);
+        assertEquals(2, loaded.size());
+        assertEquals("2", loaded.getPending("ns", "a").getTriggerPosition());
+        assertTrue(loaded.getPending("ns", "b").isDelete());
+    }
+
+    @Test
+    public void keepsMutationsWhenClientIsNotReady() {
+        outbox.updatePhase(pipeline("a"), PipelinePhases.RUNNING);
+
+        // there's no client yet, nothing can be sent
+        outbox.replay();
+        outbox.saveIfDirty();
+
+        assertEquals(1, outbox.size());
+        assertEquals(PipelinePhases.RUNNING, outbox.getPending("ns", "a").getPhase());
+        assertTrue(file.exists());
+    }
+
+    private static Pipeline pipeline(String name) {
+        return new PipelineBuilder().withNewMetadata().withNamespace("ns").withName(name)
+                .withUid("uid-" + name).withResourceVersion("1").endMetadata().build();
+    }
+}
@@ -0,0 +1,110 @@
+/**
+ * Copyright (C) 2018 Alauda.io
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.alauda.jenkins.devops.sync.util;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class UnsyncedRunJournalTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File file;
+
+    @Before
+    public void setUp() {
+        file = new File(folder.getRoot(), "alauda-sync/unsynced-runs.journal");
+    }
+
+    @Test
+    public void keepsRunsInOrderAfterReload() {
+        UnsyncedRunJournal journal = new UnsyncedRunJournal(file);
+        journal.add("job#1");
+        journal.add("job#2");
+        journal.add("job#3");
+        journal.remove("job#2");
+        // only the changes are written
+        journal.add("job#1");
+        journal.remove("job#4");
+
+        assertEquals(4, lineCount());
+
+        UnsyncedRunJournal loaded = new UnsyncedRunJournal(file);
+        assertEquals(Arrays.asList("job#1", "job#3"), loaded.getRunIds());
+        assertTrue(loaded.contains("job#3"));
+        assertFalse(loaded.contains("job#2"));
+    }
+
+    @Test
+    public void migratedJournalExistsWithoutRuns() {
+        UnsyncedRunJournal journal = new UnsyncedRunJournal(file);
+        assertFalse(journal.isExisted());
+
+        journal.markMigrated();
+        assertTrue(journal.isExisted());
+
+        UnsyncedRunJournal loaded = new UnsyncedRunJournal(file);
+        assertTrue(loaded.isExisted());
+        assertEquals(Collections.emptyList(), loaded.getRunIds());
+    }
+
+    @Test
+    public void compactsStaleLines() throws IOException {
+        UnsyncedRunJournal journal = new UnsyncedRunJournal(file);
+        int count = UnsyncedRunJournal.COMPACT_MIN_LINES;
+        for (int i = 0; i < count; i++) {
+            journal.add("job#" + i);
+        }
+        for (int i = 0; i < count - 1; i++) {
+            journal.remove("job#" + i);
+        }
+
+        assertTrue(lineCount() < count);
+        assertEquals(Collections.singletonList("job#" + (count - 1)), journal.getRunIds());
+        assertEquals(journal.getRunIds(), new UnsyncedRunJournal(file).getRunIds());
+    }
+
+    @Test
+    public void skipsBrokenLines() throws IOException {
+        assertTrue(file.getParentFile().mkdirs());
+        Files.write(file.toPath(), Arrays.asList("+job#1", "", "+", "?job#2", "+job#3"), StandardCharsets.UTF_8);
+
+        UnsyncedRunJournal journal = new UnsyncedRunJournal(file);
+        assertTrue(journal.isExisted());
+        assertEquals(Arrays.asList("job#1", "job#3"), journal.getRunIds());
+    }
+
+    private int lineCount() {
+        try {
+            return Files.readAllLines(file.toPath(), StandardCharsets.UTF_8).size();
+        } catch (IOException e) {
+            throw new AssertionError(e);
+        }
+    }
+}
@@ -0,0 +1,174 @@
+/**
+ * Copyright (C) 2018 Alauda.io
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.alauda.jenkins.devops.sync.watcher;
+
+import io.alauda.kubernetes.api.model.PipelineConfig;
+import io.alauda.kubernetes.api.model.PipelineConfigBuilder;
+import io.alauda.kubernetes.client.Watcher;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class PipelineConfigDebouncerTest {
+    private final List<Scheduled> scheduled = new ArrayList<>();
+    private final List<String> handled = new ArrayList<>();
+    private long now;
+    private PipelineConfigDebouncer.Handler onHandle;
+    private PipelineConfigDebouncer debouncer;
+
+    @Before
+    public void setUp() {
+        debouncer = new PipelineConfigDebouncer((action, pc) -> {
+            handled.add(action + ":" + pc.getMetadata().getName() + "@" + pc.getMetadata().getResourceVersion());
+            if (onHandle != null) {
+                onHandle.handle(action, pc);
+            }
+        }, (task, delay) -> scheduled.add(new Scheduled(task, now + delay)), () -> now);
+    }
+
+    @Test
+    public void mergesModifiedEventsUntilQuiet() {
+        debouncer.submit(Watcher.Action.MODIFIED, pipelineConfig("a", "1"));
+        now = 300;
+        debouncer.submit(Watcher.Action.MODIFIED, pipelineConfig("a", "2"));
+        now = 600;
+        debouncer.submit(Watcher.Action.MODIFIED, pipelineConfig("a", "3"));
+        assertEquals(1, scheduled.size());
+
+        // the timer fires on the first due time, but the lane is not quiet yet
+        now = PipelineConfigDebouncer.QUIET_MS;
+        runScheduled();
+        assertTrue(handled.isEmpty());
+
+        now = 600 + PipelineConfigDebouncer.QUIET_MS;
+        runScheduled();
+        assertEquals(Collections.singletonList("MODIFIED:a@3"), handled);
+        assertEquals(3, debouncer.getReceivedCount());
+        assertEquals(2, debouncer.getAbsorbedCount());
+        assertEquals(1, debouncer.getConvertedCount());
+        assertEquals(0, debouncer.getPendingCount());
+    }
+
+    @Test
+    public void convertsBusyPipelineConfigAfterMaxDelay() {
+        for (now = 0; now <= PipelineConfigDebouncer.MAX_DELAY_MS; now += 500) {
+            debouncer.submit(Watcher.Action.MODIFIED, pipelineConfig("a", String.valueOf(now)));
+            runScheduled();
+        }
+
+        assertEquals(Collections.singletonList("MODIFIED:a@" + PipelineConfigDebouncer.MAX_DELAY_MS), handled);
+    }
+
+    @Test
+    public void handlesAddedAndDeletedRightAway() {
+        debouncer.submit(Watcher.Action.ADDED, pipelineConfig("a", "1"));
+        assertEquals(0, scheduled.get(0).due);
+        runScheduled();
+
+        debouncer.submit(Watcher.Action.DELETED, pipelineConfig("b", "1"));
+        assertEquals(0, scheduled.get(0).due);
+        runScheduled();
+
+        assertEquals(Arrays.asList("ADDED:a@1", "DELETED:b@1"), handled);
+    }
+
+    @Test
+    public void deletedAbsorbsPendingEvents() {
+        debouncer.submit(Watcher.Action.ADDED, pipelineConfig("a", "1"));
+        debouncer.submit(Watcher.Action.MODIFIED, pipelineConfig("a", "2"));
+        debouncer.submit(Watcher.Action.DELETED, pipelineConfig("a", "3"));
+        runScheduled();
+
+        assertEquals(Collections.singletonList("DELETED:a@3"), handled);
+        assertEquals(2, debouncer.getAbsorbedCount());
+    }
+
+    @Test
+    public void addedTakesLatestState() {
+        debouncer.submit(Watcher.Action.ADDED, pipelineConfig("a", "1"));
+        debouncer.submit(Watcher.Action.MODIFIED, pipelineConfig("a", "2"));
+        runScheduled();
+
+        assertEquals(Collections.singletonList("ADDED:a@2"), handled);
+    }
+
+    @Test
+    public void handlesEventsOfOnePipelineConfigOneAtATime() {
+        onHandle = (action, pc) -> {
+            if (action == Watcher.Action.ADDED) {
+                // arrives while the ADDED one is still being handled
+                debouncer.submit(Watcher.Action.DELETED, pipelineConfig("a", "2"));
+            }
+        };
+        debouncer.submit(Watcher.Action.ADDED, pipelineConfig("a", "1"));
+        Scheduled first = scheduled.remove(0);
+        first.task.run();
+
+        // it's scheduled only after the running one is done
+        assertEquals(1, scheduled.size());
+        runScheduled();
+        assertEquals(Arrays.asList("ADDED:a@1", "DELETED:a@2"), handled);
+    }
+
+    @Test
+    public void keepsPipelineConfigsApart() {
+        debouncer.submit(Watcher.Action.MODIFIED, pipelineConfig("a", "1"));
+        debouncer.submit(Watcher.Action.MODIFIED, pipelineConfig("b", "1"));
+        assertEquals(2, scheduled.size());
+
+        now = PipelineConfigDebouncer.QUIET_MS;
+        runScheduled();
+        assertEquals(Arrays.asList("MODIFIED:a@1", "MODIFIED:b@1"), handled);
+        assertEquals(0, debouncer.getAbsorbedCount());
+    }
+
+    /**
+     * Run the tasks which are due by the fake clock, in the order of their due time
+     */
+    private void runScheduled() {
+        while (!scheduled.isEmpty()) {
+            Scheduled next = Collections.min(scheduled, Comparator.comparingLong(task -> task.due));
+            if (next.due > now) {
+                return;
+            }
+            scheduled.remove(next);
+            next.task.run();
+        }
+    }
+
+    private static PipelineConfig pipelineConfig(String name, String resourceVersion) {
+        return new PipelineConfigBuilder().withNewMetadata().withNamespace("ns").withName(name)
+                .withResourceVersion(resourceVersion).endMetadata().build();
+    }
+
+    private static class Scheduled {
+        private final Runnable task;
+        private final long due;
+
+        Scheduled(Runnable task, long due) {
+            this.task = task;
+            this.due = due;
+        }
+    }
+}